@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.benchmarks;
+
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+import com.github.kalexmills.stochrammar.examples.WeightedGrammar;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+
+/**
+ * GrammarType enumerates the bundled grammars which are benchmarked.
+ */
+public enum GrammarType {
+    /**
+     * A small TextGrammar which generates English-like paragraphs of two sentences on average.
+     */
+    TEXT {
+        @Override
+        public StochasticGrammar<?> create() {
+            return textGrammar();
+        }
+    },
+    /**
+     * The TEXT grammar, compiled into a CompiledTextGrammar.
+     */
+    COMPILED_TEXT {
+        @Override
+        public StochasticGrammar<?> create() {
+            return textGrammar().compile();
+        }
+    },
+    /**
+     * The TEXT grammar, compiled and flattened.
+     */
+    FLATTENED_TEXT {
+        @Override
+        public StochasticGrammar<?> create() {
+            return textGrammar().compile(true);
+        }
+    },
+    /**
+     * A TextGrammar which chooses between thousands of weighted alternatives at every step.
+     */
+    WEIGHTED_TEXT {
+        @Override
+        public StochasticGrammar<?> create() {
+            TextGrammar g = new TextGrammar();
+
+            g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("WORD"));
+            g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("WORD"), g.new Literal(" "),
+                                            g.new ProductionRule(TextGrammar.ROOT_KEY));
+            for (int i = 1; i <= 4096; ++i) {
+                g.addRule("WORD", 1.0 / i, g.new Literal(Integer.toString(i, 36)));
+            }
+            return g.compile();
+        }
+    },
+    /**
+     * The WeightedGrammar from the bundled examples.
+     */
+    WEIGHTED {
+        @Override
+        public StochasticGrammar<?> create() {
+            return new WeightedGrammar();
+        }
+    };
+
+    public abstract StochasticGrammar<?> create();
+
+    private static TextGrammar textGrammar() {
+        TextGrammar g = new TextGrammar();
+
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("SENTENCE"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("SENTENCE"), g.new Literal(" "),
+                                        g.new ProductionRule(TextGrammar.ROOT_KEY));
+
+        g.addRule("SENTENCE", g.new ProductionRule("NOUN_PHRASE"), g.new Literal(" "),
+                              g.new ProductionRule("VERB"), g.new Literal(" "),
+                              g.new ProductionRule("NOUN_PHRASE"), g.new Literal("."));
+
+        g.addRule("NOUN_PHRASE", g.new Literal("the "), g.new ProductionRule("NOUN"));
+        g.addRule("NOUN_PHRASE", g.new Literal("a "), g.new ProductionRule("ADJECTIVE"), g.new Literal(" "),
+                                 g.new ProductionRule("NOUN"));
+
+        for (String noun : new String[] { "wizard", "rabbit", "hat", "wand", "audience" }) {
+            g.addRule("NOUN", g.new Literal(noun));
+        }
+        for (String verb : new String[] { "pulls", "waves", "astonishes", "conjures" }) {
+            g.addRule("VERB", g.new Literal(verb));
+        }
+        for (String adjective : new String[] { "tall", "mysterious", "tiny", "crimson" }) {
+            g.addRule("ADJECTIVE", g.new Literal(adjective));
+        }
+        return g;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.benchmarks;
+
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.runner.GrammarRunner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RunnerBenchmark measures each runner against each of the bundled grammars. Throughput and latency percentiles are
+ * reported by the Throughput and SampleTime modes. Run with <code>-prof gc</code> to report allocation rates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RunnerBenchmark {
+
+    @Param
+    public GrammarType grammar;
+
+    @Param
+    public RunnerType runner;
+
+    private GrammarRunner<?> underTest;
+    private Random rand;
+    private RandomSource source;
+
+    @Setup
+    public void setup() {
+        underTest = runner.create(grammar.create());
+        rand = new Random(42);
+        source = RandomSource.of(new SplittableRandom(42));
+    }
+
+    @Benchmark
+    public Object run() {
+        return underTest.run(rand);
+    }
+
+    @Benchmark
+    public Object runSplittable() {
+        return underTest.run(source);
+    }
+}
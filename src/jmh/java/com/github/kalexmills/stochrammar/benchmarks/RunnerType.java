@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.benchmarks;
+
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+import com.github.kalexmills.stochrammar.runner.ConcurrentGroundSequenceRunner;
+import com.github.kalexmills.stochrammar.runner.GrammarRunner;
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import com.github.kalexmills.stochrammar.runner.StreamingRunner;
+import com.github.kalexmills.stochrammar.runner.TreeRunner;
+
+/**
+ * RunnerType enumerates the runner configurations which are benchmarked.
+ */
+public enum RunnerType {
+    GROUND_SEQUENCE {
+        @Override
+        public <T> GrammarRunner<T> create(StochasticGrammar<T> grammar) {
+            return new GroundSequenceRunner<>(grammar);
+        }
+    },
+    GROUND_SEQUENCE_LEFTMOST {
+        @Override
+        public <T> GrammarRunner<T> create(StochasticGrammar<T> grammar) {
+            GroundSequenceRunner<T> runner = new GroundSequenceRunner<>(grammar);
+            runner.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+            return runner;
+        }
+    },
+    CONCURRENT_GROUND_SEQUENCE {
+        @Override
+        public <T> GrammarRunner<T> create(StochasticGrammar<T> grammar) {
+            return new ConcurrentGroundSequenceRunner<>(grammar);
+        }
+    },
+    STREAMING {
+        @Override
+        public <T> GrammarRunner<T> create(StochasticGrammar<T> grammar) {
+            return new StreamingRunner<>(grammar);
+        }
+    },
+    TREE_DEPTH_FIRST {
+        @Override
+        public <T> GrammarRunner<T> create(StochasticGrammar<T> grammar) {
+            TreeRunner<T> runner = new TreeRunner<>(grammar);
+            runner.setTraversalType(TreeRunner.TraversalType.DEPTH_FIRST);
+            return runner;
+        }
+    },
+    TREE_BREADTH_FIRST {
+        @Override
+        public <T> GrammarRunner<T> create(StochasticGrammar<T> grammar) {
+            TreeRunner<T> runner = new TreeRunner<>(grammar);
+            runner.setTraversalType(TreeRunner.TraversalType.BREADTH_FIRST);
+            return runner;
+        }
+    };
+
+    public abstract <T> GrammarRunner<T> create(StochasticGrammar<T> grammar);
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.benchmarks;
+
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.impl.CompiledTextGrammar;
+import com.github.kalexmills.stochrammar.impl.SymbolSequenceRunner;
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SymbolSequenceBenchmark compares generating the symbols of a compiled grammar against generating its text in the same
+ * order.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SymbolSequenceBenchmark {
+
+    @Param({"COMPILED_TEXT", "FLATTENED_TEXT", "WEIGHTED_TEXT"})
+    public GrammarType grammar;
+
+    private SymbolSequenceRunner symbols;
+    private GroundSequenceRunner<StringBuilder> text;
+    private RandomSource source;
+
+    @Setup
+    public void setup() {
+        CompiledTextGrammar g = (CompiledTextGrammar) grammar.create();
+        symbols = new SymbolSequenceRunner(g);
+        text = new GroundSequenceRunner<>(g);
+        text.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+        source = RandomSource.of(new SplittableRandom(42));
+    }
+
+    @Benchmark
+    public int runSymbols() {
+        return symbols.run(source);
+    }
+
+    @Benchmark
+    public Object runText() {
+        return text.run(source);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.benchmarks;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * SyntheticGrammar generates random trees with a fixed branching factor and a controllable expected depth. Each
+ * non-ground token is replaced by exactly <code>branching</code> tokens. With probability p = d / (d + 1), one of
+ * these (chosen uniformly) is another non-ground token, and the rest are ground tokens. The depth of a derivation is
+ * therefore geometrically distributed with mean d, and it produces (branching - 1) * d + 1 ground tokens on average.
+ *
+ * Unlike a Galton-Watson tree with the same branching factor, the size of a derivation is finite for every choice of
+ * parameters, which makes it possible to benchmark very deep derivations without also benchmarking huge ones.
+ */
+public class SyntheticGrammar implements StochasticGrammar<StringBuilder> {
+
+    private final int branching;
+    private final float continueProbability;
+
+    private final CFToken<StringBuilder> node = new Node();
+    private final CFToken<StringBuilder> leaf = new Leaf();
+
+    /**
+     * @param branching int the number of tokens each non-ground token is replaced by.
+     * @param expectedDepth double the expected depth of a derivation.
+     */
+    public SyntheticGrammar(int branching, double expectedDepth) {
+        if (branching < 1) throw new IllegalArgumentException("branching must be positive");
+        if (expectedDepth < 0) throw new IllegalArgumentException("expectedDepth must be non-negative");
+        this.branching = branching;
+        this.continueProbability = (float) (expectedDepth / (expectedDepth + 1));
+    }
+
+    @Override
+    public CFToken<StringBuilder> generateRootToken() {
+        return node;
+    }
+
+    @Override
+    public StringBuilder blankEntity() {
+        return new StringBuilder();
+    }
+
+    private class Node extends CFToken<StringBuilder> {
+        @Override
+        public CFToken<StringBuilder>[] replace(Random rand) {
+            CFToken<StringBuilder>[] result = new CFToken[branching];
+            Arrays.fill(result, leaf);
+            if (rand.nextFloat() < continueProbability) {
+                result[rand.nextInt(branching)] = node;
+            }
+            return result;
+        }
+    }
+
+    private static class Leaf extends GroundToken<StringBuilder> {
+        public Leaf() {
+            this.setAction((str) -> str.append('x'));
+        }
+    }
+}
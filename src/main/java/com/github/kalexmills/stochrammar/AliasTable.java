@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar;
+
+import java.util.Random;
+
+/**
+ * AliasTable samples an index from a fixed, discrete probability distribution in constant time, regardless of the
+ * number of outcomes. It implements Vose's variant of Walker's alias method: the table is built once in linear time,
+ * and each sample costs a single random draw and one comparison.
+ *
+ * AliasTables are immutable, and may be shared between threads.
+ */
+public final class AliasTable {
+
+    // prob[i] is the probability of choosing i, rather than alias[i], once column i has been chosen.
+    private final double[] prob;
+    private final int[] alias;
+
+    /**
+     * @param weights double... non-negative relative weights of each outcome. At least one weight must be positive.
+     * @throws IllegalArgumentException if there are no weights, if any weight is negative or not finite, or if every
+     *                                  weight is zero.
+     */
+    public AliasTable(double... weights) {
+        int n = weights.length;
+        if (n == 0) throw new IllegalArgumentException("AliasTable requires at least one weight");
+
+        double sum = 0;
+        for (double weight : weights) {
+            if (!(weight >= 0) || Double.isInfinite(weight)) {
+                throw new IllegalArgumentException("Weights must be finite and non-negative, was " + weight);
+            }
+            sum += weight;
+        }
+        if (sum <= 0) throw new IllegalArgumentException("At least one weight must be positive");
+
+        prob = new double[n];
+        alias = new int[n];
+
+        // Scale each weight so that the average is 1, then split indices by whether they fall short of the average.
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int nSmall = 0, nLarge = 0;
+        for (int i = 0; i < n; ++i) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1) small[nSmall++] = i;
+            else               large[nLarge++] = i;
+        }
+
+        // Fill each short column with probability mass taken from a tall one.
+        while (nSmall > 0 && nLarge > 0) {
+            int s = small[--nSmall];
+            int l = large[--nLarge];
+            prob[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if (scaled[l] < 1) small[nSmall++] = l;
+            else               large[nLarge++] = l;
+        }
+        // Whatever remains is full, up to rounding error.
+        while (nLarge > 0) {
+            int l = large[--nLarge];
+            prob[l] = 1;
+            alias[l] = l;
+        }
+        while (nSmall > 0) {
+            int s = small[--nSmall];
+            prob[s] = 1;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * @return int the number of outcomes in this table.
+     */
+    public int size() {
+        return prob.length;
+    }
+
+    /**
+     * Samples an outcome in constant time.
+     *
+     * @param rand Random random number generator to use.
+     * @return int an index between 0 (inclusive) and size() (exclusive), chosen with probability proportional to its
+     *             weight.
+     */
+    public int sample(Random rand) {
+        return sample(rand.nextDouble());
+    }
+
+    /**
+     * Samples an outcome in constant time.
+     *
+     * @param rand RandomSource source of random numbers to use.
+     * @return int an index between 0 (inclusive) and size() (exclusive), chosen with probability proportional to its
+     *             weight.
+     */
+    public int sample(RandomSource rand) {
+        return sample(rand.nextDouble());
+    }
+
+    private int sample(double uniform) {
+        // A single draw chooses both the column and the biased coin flip within the column.
+        double u = uniform * prob.length;
+        int i = Math.min((int) u, prob.length - 1);
+        return (u - i < prob[i]) ? i : alias[i];
+    }
+}
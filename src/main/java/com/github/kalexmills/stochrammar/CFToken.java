@@ -19,11 +19,18 @@
 package com.github.kalexmills.stochrammar;
 
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * CFToken represents a single token of a context-free grammar. Tokens know how to replace themselves Each token
  * defines the means of its own replacement via CFToken::replace.
  *
+ * The array returned by replace belongs to the token. A token may return the same array from many calls, on any
+ * number of threads, so callers must never modify it, and runners only ever read from it. Tokens are free to reuse
+ * their replacements in this way, and stateless tokens should do so, to avoid allocating on every expansion.
+ * ConstantToken and ChoiceToken are base classes for tokens whose replacements are shared, and GroundToken always
+ * returns the shared EMPTY array.
+ *
  * @param <T> the type of object which this stochastic grammar can produce.
  */
 public abstract class CFToken<T> implements Token<T> {
@@ -33,9 +40,30 @@ public abstract class CFToken<T> implements Token<T> {
      */
     public static final CFToken[] EMPTY = new CFToken[0];
 
+    /**
+     * @return CFToken[] the EMPTY array, typed for the tokens of any grammar.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CFToken<T>[] empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param length int the length of the array.
+     * @return CFToken[] a new array of the given length, typed for the tokens of any grammar.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CFToken<T>[] newArray(int length) {
+        return (CFToken<T>[]) new CFToken<?>[length];
+    }
+
     /**
      * DEFAULT_RAND is a default random number generator used by clients who don't care enough to construct their own.
+     *
+     * @deprecated every thread which draws from DEFAULT_RAND contends for the same seed. Use
+     *             RandomSource.threadLocal() or ThreadLocalRandom.current() instead.
      */
+    @Deprecated
     public static final Random DEFAULT_RAND = new Random();
 
     private TokenAction<T> action;
@@ -47,8 +75,13 @@ public abstract class CFToken<T> implements Token<T> {
         this.action = action;
     }
 
+    /**
+     * Replaces this CFToken using the ThreadLocalRandom of the current thread.
+     *
+     * @return an array of non-null GrammarTokens, or an empty array if this CFToken is a GroundToken.
+     */
     public CFToken<T>[] replace() {
-        return replace(DEFAULT_RAND);
+        return replace(ThreadLocalRandom.current());
     }
 
     /**
@@ -58,10 +91,25 @@ public abstract class CFToken<T> implements Token<T> {
      * infinite loops for which the implementer is entirely responsible.
      *
      * @param rand Random random number generator to use.
-     * @return an array of non-null GrammarTokens, or an empty array if this CFToken is a GroundToken.
+     * @return an array of non-null GrammarTokens, or an empty array if this CFToken is a GroundToken. The array may be
+     *         shared, and must not be modified by the caller.
      */
     public abstract CFToken<T>[] replace(Random rand);
 
+    /**
+     * Replaces this CFToken with one or more others, under the same contract as replace(Random). Runners always call
+     * this method. The default implementation calls replace(rand.asRandom()), so tokens which only implement
+     * replace(Random) work with any RandomSource. Tokens may override this method to draw from the RandomSource
+     * directly.
+     *
+     * @param rand RandomSource source of random numbers to use.
+     * @return an array of non-null GrammarTokens, or an empty array if this CFToken is a GroundToken. The array may be
+     *         shared, and must not be modified by the caller.
+     */
+    public CFToken<T>[] replace(RandomSource rand) {
+        return replace(rand.asRandom());
+    }
+
     /**
      *
      * @param action T object on which this token acts.
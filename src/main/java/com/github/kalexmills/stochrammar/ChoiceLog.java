@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar;
+
+import java.util.Arrays;
+
+/**
+ * ChoiceLog records the choices made during a run, so that the run can later be replayed exactly, without a random
+ * number generator and without storing what it generated.
+ *
+ * A run is recorded by passing the RandomSource returned by record to the runner. Every choice between alternatives
+ * made through RandomSource::choose is drawn from the underlying source as usual, and the index of the alternative
+ * chosen is appended to the log. Passing the RandomSource returned by replay to the same runner, with the same grammar,
+ * makes the same choices in the same order, and so generates the same entity.
+ *
+ * Each choice is stored in as few bits as the number of alternatives allows: a choice between two alternatives takes a
+ * single bit, a choice between 1000 takes ten, and a rule with a single alternative takes none at all. The number of
+ * alternatives is not stored, since it is known again when the choice is replayed, so a log is usually only a few bytes
+ * long. Use toByteArray and fromByteArray to store and restore it.
+ *
+ * Only choices are recorded. Tokens which draw numbers from a RandomSource or Random directly, rather than through
+ * choose, cannot be replayed; a replaying RandomSource throws an IllegalStateException if any such number is drawn.
+ */
+public final class ChoiceLog {
+
+    private long[] words;
+    private long bitLength;
+
+    /**
+     * Creates an empty log.
+     */
+    public ChoiceLog() {
+        words = new long[2];
+    }
+
+    private ChoiceLog(long[] words, long bitLength) {
+        this.words = words;
+        this.bitLength = bitLength;
+    }
+
+    /**
+     * @param bytes byte[] the bytes of a log, as returned by toByteArray.
+     * @return ChoiceLog a log which replays the same choices.
+     */
+    public static ChoiceLog fromByteArray(byte[] bytes) {
+        long[] words = new long[Math.max((bytes.length + 7) / 8, 1)];
+        for (int i = 0; i < bytes.length; ++i) {
+            words[i >>> 3] |= (bytes[i] & 0xffL) << ((i & 7) * 8);
+        }
+        return new ChoiceLog(words, bytes.length * 8L);
+    }
+
+    /**
+     * @return byte[] the smallest array of bytes which holds every bit of this log.
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[(int) ((bitLength + 7) / 8)];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = (byte) (words[i >>> 3] >>> ((i & 7) * 8));
+        }
+        return result;
+    }
+
+    /**
+     * @return long the number of bits in this log.
+     */
+    public long bitLength() {
+        return bitLength;
+    }
+
+    /**
+     * clear empties this log, so that it can be reused to record another run.
+     */
+    public void clear() {
+        Arrays.fill(words, 0, (int) ((bitLength + 63) >>> 6), 0);
+        bitLength = 0;
+    }
+
+    /**
+     * record returns a RandomSource which draws every number from source, and appends each choice made through it to
+     * the end of this log.
+     *
+     * @param source RandomSource the source of the numbers drawn.
+     * @return RandomSource a RandomSource to run with.
+     */
+    public RandomSource record(RandomSource source) {
+        return new Recorder(source);
+    }
+
+    /**
+     * replay returns a RandomSource which makes the choices recorded in this log, starting from the first, without
+     * drawing any random numbers.
+     *
+     * @return RandomSource a RandomSource to run with.
+     */
+    public RandomSource replay() {
+        return new Replayer();
+    }
+
+    /**
+     * @param count int a number of alternatives.
+     * @return int the number of bits needed to store the index of one of the alternatives.
+     */
+    static int width(int count) {
+        return 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+
+    private void append(int value, int width) {
+        if (width == 0) return;
+        int word = (int) (bitLength >>> 6);
+        int offset = (int) (bitLength & 63);
+        if (word + 1 >= words.length) words = Arrays.copyOf(words, words.length * 2);
+        words[word] |= (long) value << offset;
+        if (offset + width > 64) words[word + 1] |= (long) value >>> (64 - offset);
+        bitLength += width;
+    }
+
+    private int read(long position, int width) {
+        if (position + width > bitLength) throw new IllegalStateException("The choice log has no more choices");
+        int word = (int) (position >>> 6);
+        int offset = (int) (position & 63);
+        long bits = words[word] >>> offset;
+        if (offset + width > 64) bits |= words[word + 1] << (64 - offset);
+        return (int) (bits & ((1L << width) - 1));
+    }
+
+    private final class Recorder extends RandomSource {
+        private final RandomSource source;
+
+        Recorder(RandomSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public long nextLong() {
+            return source.nextLong();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return source.nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return source.nextDouble();
+        }
+
+        @Override
+        public float nextFloat() {
+            return source.nextFloat();
+        }
+
+        @Override
+        public int choose(int count) {
+            int choice = source.choose(count);
+            append(choice, width(count));
+            return choice;
+        }
+
+        @Override
+        public int choose(AliasTable table) {
+            int choice = source.choose(table);
+            append(choice, width(table.size()));
+            return choice;
+        }
+
+        @Override
+        public int choose(double[] weights, int count) {
+            int choice = source.choose(weights, count);
+            append(choice, width(count));
+            return choice;
+        }
+    }
+
+    private final class Replayer extends RandomSource {
+        private long position;
+
+        @Override
+        public long nextLong() {
+            throw new IllegalStateException("Only choices can be replayed from a choice log");
+        }
+
+        @Override
+        public int choose(int count) {
+            if (count <= 0) throw new IllegalArgumentException("count must be positive");
+            return next(count);
+        }
+
+        @Override
+        public int choose(AliasTable table) {
+            return next(table.size());
+        }
+
+        @Override
+        public int choose(double[] weights, int count) {
+            if (count <= 0) throw new IllegalArgumentException("count must be positive");
+            return next(count);
+        }
+
+        private int next(int count) {
+            int width = width(count);
+            if (width == 0) return 0;
+            int choice = read(position, width);
+            if (choice >= count) throw new IllegalStateException("The choice log does not match the grammar");
+            position += width;
+            return choice;
+        }
+    }
+}
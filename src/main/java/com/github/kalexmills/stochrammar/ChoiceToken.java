@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar;
+
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * ChoiceToken is a stateless CFToken which is replaced by one of a fixed set of choices, chosen at random according to
+ * their weights. Each choice is held in a single array which is returned every time it is chosen, and weighted choices
+ * are made in constant time using an AliasTable, so replacing a ChoiceToken never allocates. Choices may refer to the
+ * ChoiceToken itself, or to other tokens which refer back to it, since they are added after it has been constructed.
+ *
+ * Once all of its choices have been added, a ChoiceToken may be shared by any number of grammars, runners and threads.
+ *
+ * @param <T> the type of object which this stochastic grammar can produce.
+ */
+public class ChoiceToken<T> extends CFToken<T> {
+    // The arrays grow geometrically, and hold size choices.
+    private CFToken<T>[][] choices = newChoices(4);
+    private double[] weights = new double[4];
+    private int size;
+    // True as long as every weight added is the same and positive, in which case no AliasTable is needed.
+    private boolean uniform = true;
+    // True once a positive weight has been added.
+    private boolean choosable;
+    // Created the first time a weighted choice is made, so that adding choices one at a time takes linear time.
+    private AliasTable table;
+
+    /**
+     * add adds a choice to this token. It must not be called once the token is in use.
+     *
+     * @param weight double non-negative relative weight of the choice.
+     * @param tokens CFToken... the tokens which replace this token when the choice is made.
+     * @return ChoiceToken this token, so that calls may be chained.
+     * @throws IllegalArgumentException if weight is negative or not finite.
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final ChoiceToken<T> add(double weight, CFToken<T>... tokens) {
+        if (!(weight >= 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Weights must be finite and non-negative, was " + weight);
+        }
+        int n = size;
+        if (n == choices.length) {
+            choices = Arrays.copyOf(choices, n * 2);
+            weights = Arrays.copyOf(weights, n * 2);
+        }
+        choices[n] = tokens.length == 0 ? empty() : Arrays.copyOf(tokens, tokens.length);
+        weights[n] = weight;
+        size = n + 1;
+        uniform = uniform && weight > 0 && (n == 0 || weights[0] == weight);
+        choosable = choosable || weight > 0;
+        table = null;
+        return this;
+    }
+
+    /**
+     * @return int the number of choices added to this token.
+     */
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> CFToken<T>[][] newChoices(int length) {
+        return (CFToken<T>[][]) new CFToken<?>[length][];
+    }
+
+    /**
+     * @param rand Random random number generator to use.
+     * @return the shared tokens of the choice made, which must not be modified. Choices of weight 0 are never made.
+     * @throws IllegalStateException if no choices have been added.
+     * @throws TextGrammar.ReplaceException if every choice added has weight 0.
+     */
+    @Override
+    public CFToken<T>[] replace(Random rand) {
+        if (!choosable) throw unchoosable();
+        return choices[uniform ? rand.nextInt(size) : aliasTable().sample(rand)];
+    }
+
+    /**
+     * @param rand RandomSource source of random numbers to use.
+     * @return the shared tokens of the choice made, which must not be modified. Choices of weight 0 are never made.
+     * @throws IllegalStateException if no choices have been added.
+     * @throws TextGrammar.ReplaceException if every choice added has weight 0.
+     */
+    @Override
+    public CFToken<T>[] replace(RandomSource rand) {
+        if (!choosable) throw unchoosable();
+        return choices[uniform ? rand.choose(size) : rand.choose(aliasTable())];
+    }
+
+    private IllegalStateException unchoosable() {
+        if (size == 0) return new IllegalStateException("ChoiceToken has no choices");
+        return new TextGrammar.ReplaceException("Every choice of ChoiceToken has weight 0");
+    }
+
+    private AliasTable aliasTable() {
+        AliasTable result = table;
+        if (result == null) {
+            result = new AliasTable(Arrays.copyOf(weights, size));
+            table = result;
+        }
+        return result;
+    }
+}
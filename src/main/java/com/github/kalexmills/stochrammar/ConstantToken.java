@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * ConstantToken is a stateless CFToken which is always replaced by the same tokens. The replacement is held in a single
+ * array which is returned by every call to replace, so replacing a ConstantToken never allocates. A ConstantToken may
+ * refer to itself, or to other tokens which refer back to it, by setting its replacement after it has been constructed.
+ *
+ * Once its replacement has been set, a ConstantToken may be shared by any number of grammars, runners and threads.
+ *
+ * @param <T> the type of object which this stochastic grammar can produce.
+ */
+public class ConstantToken<T> extends CFToken<T> {
+    private CFToken<T>[] replacement;
+
+    /**
+     * @param replacement CFToken... the tokens which replace this token.
+     */
+    @SafeVarargs
+    public ConstantToken(CFToken<T>... replacement) {
+        setReplacement(replacement);
+    }
+
+    /**
+     * setReplacement changes the tokens which replace this token. It must not be called once the token is in use.
+     *
+     * @param replacement CFToken... the tokens which replace this token.
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final void setReplacement(CFToken<T>... replacement) {
+        // The caller keeps its own array, so a copy is taken to ensure no one else can modify the one returned.
+        this.replacement = replacement.length == 0 ? empty() : Arrays.copyOf(replacement, replacement.length);
+    }
+
+    /**
+     * @param rand Random unused.
+     * @return the shared replacement of this token, which must not be modified.
+     */
+    @Override
+    public CFToken<T>[] replace(Random rand) {
+        return replacement;
+    }
+
+    /**
+     * @param rand RandomSource unused.
+     * @return the shared replacement of this token, which must not be modified.
+     */
+    @Override
+    public CFToken<T>[] replace(RandomSource rand) {
+        return replacement;
+    }
+}
@@ -30,7 +30,15 @@ public abstract class GroundToken<T> extends CFToken<T> {
      */
     @Override
     public CFToken<T>[] replace(Random rand) {
-        return EMPTY;
+        return empty();
+    }
+
+    /**
+     * @return an empty array to indicate that this ground token cannot be replaced.
+     */
+    @Override
+    public CFToken<T>[] replace(RandomSource rand) {
+        return empty();
     }
 
 }
@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RandomSource is a lightweight source of random numbers used by runners and tokens. Unlike java.util.Random, which
+ * updates its seed with a compare-and-set on every draw, a RandomSource need not be safe to use from multiple threads,
+ * so it can be backed by an unsynchronized generator such as SplittableRandom, or by a per-thread generator.
+ *
+ * Subclasses need only implement nextLong(), although they may override the other methods to avoid wasting bits.
+ * Tokens which only implement CFToken::replace(Random) are given the Random returned by asRandom(), which draws all
+ * of its numbers from this RandomSource.
+ */
+public abstract class RandomSource {
+
+    // Created the first time asRandom() is called.
+    private Random view;
+
+    /**
+     * @return long the next pseudorandom 64-bit value.
+     */
+    public abstract long nextLong();
+
+    /**
+     * @param bound int the upper bound (exclusive). Must be positive.
+     * @return int a pseudorandom value, uniformly distributed between 0 (inclusive) and bound (exclusive).
+     */
+    public int nextInt(int bound) {
+        if (bound <= 0) throw new IllegalArgumentException("bound must be positive");
+
+        // Uses the same rejection method as java.util.Random, with 31 bits taken from each call to nextLong().
+        int r = (int) (nextLong() >>> 33);
+        int m = bound - 1;
+        if ((bound & m) == 0) return (int) ((bound * (long) r) >>> 31);
+        for (int u = r; u - (r = u % bound) + m < 0; u = (int) (nextLong() >>> 33));
+        return r;
+    }
+
+    /**
+     * @return double a pseudorandom value, uniformly distributed between 0 (inclusive) and 1 (exclusive).
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * @return float a pseudorandom value, uniformly distributed between 0 (inclusive) and 1 (exclusive).
+     */
+    public float nextFloat() {
+        return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+
+    /**
+     * choose picks one of a number of equally likely alternatives. Every uniform choice between alternatives made by
+     * the tokens and grammars of this library is made by calling this method, so that a RandomSource can observe or
+     * dictate each choice; see ChoiceLog. The default implementation returns nextInt(count).
+     *
+     * @param count int the number of alternatives. Must be positive.
+     * @return int the index of the chosen alternative.
+     */
+    public int choose(int count) {
+        return nextInt(count);
+    }
+
+    /**
+     * choose picks one of the outcomes of an AliasTable, according to their weights. Every weighted choice made by the
+     * tokens and grammars of this library is made by calling this method. The default implementation returns
+     * table.sample(this).
+     *
+     * @param table AliasTable the distribution of the alternatives.
+     * @return int the index of the chosen alternative.
+     */
+    public int choose(AliasTable table) {
+        return table.sample(this);
+    }
+
+    /**
+     * choose picks one of a number of alternatives according to weights which are computed as the choice is made, so
+     * that building an AliasTable would not pay off. Every such choice made by the samplers of this library is made by
+     * calling this method. The default implementation draws a single nextDouble() and takes time linear in count.
+     *
+     * @param weights double[] the non-negative weights of the alternatives, at least one of which is positive.
+     * @param count int the number of alternatives, whose weights are the first count elements of weights.
+     * @return int the index of the chosen alternative, whose weight is positive.
+     */
+    public int choose(double[] weights, int count) {
+        double total = 0;
+        for (int i = 0; i < count; ++i) {
+            total += weights[i];
+        }
+        if (!(total > 0)) throw new IllegalArgumentException("At least one weight must be positive");
+        double u = nextDouble() * total;
+        int last = -1;
+        for (int i = 0; i < count; ++i) {
+            if (weights[i] == 0) continue;
+            last = i;
+            u -= weights[i];
+            if (u < 0) return i;
+        }
+        return last; // Only reached through rounding error.
+    }
+
+    /**
+     * asRandom returns a java.util.Random which draws all of its numbers from this RandomSource, for use with code
+     * which only accepts a Random. The same instance is returned every time.
+     *
+     * @return Random a view of this RandomSource.
+     */
+    public Random asRandom() {
+        Random result = view;
+        if (result == null) {
+            result = new RandomView(this);
+            view = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param random Random the generator to draw numbers from.
+     * @return RandomSource a RandomSource which draws the same numbers that random would have drawn.
+     */
+    public static RandomSource of(Random random) {
+        return new RandomAdapter(random);
+    }
+
+    /**
+     * @param random SplittableRandom the generator to draw numbers from.
+     * @return RandomSource an unsynchronized RandomSource backed by random.
+     */
+    public static RandomSource of(SplittableRandom random) {
+        return new SplittableAdapter(random);
+    }
+
+    /**
+     * @return RandomSource a RandomSource which may be shared by any number of threads, each of which draws numbers
+     *                      from its own ThreadLocalRandom.
+     */
+    public static RandomSource threadLocal() {
+        return ThreadLocalSource.INSTANCE;
+    }
+
+    private static final class RandomAdapter extends RandomSource {
+        private final Random random;
+
+        RandomAdapter(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public long nextLong() {
+            return random.nextLong();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return random.nextDouble();
+        }
+
+        @Override
+        public float nextFloat() {
+            return random.nextFloat();
+        }
+
+        @Override
+        public Random asRandom() {
+            return random;
+        }
+    }
+
+    private static final class SplittableAdapter extends RandomSource {
+        private final SplittableRandom random;
+
+        SplittableAdapter(SplittableRandom random) {
+            this.random = random;
+        }
+
+        @Override
+        public long nextLong() {
+            return random.nextLong();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return random.nextDouble();
+        }
+    }
+
+    private static final class ThreadLocalSource extends RandomSource {
+        static final ThreadLocalSource INSTANCE = new ThreadLocalSource();
+
+        @Override
+        public long nextLong() {
+            return ThreadLocalRandom.current().nextLong();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return ThreadLocalRandom.current().nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return ThreadLocalRandom.current().nextDouble();
+        }
+
+        @Override
+        public float nextFloat() {
+            return ThreadLocalRandom.current().nextFloat();
+        }
+
+        @Override
+        public Random asRandom() {
+            return ThreadLocalRandom.current();
+        }
+    }
+
+    /**
+     * RandomView is a java.util.Random which draws all of its numbers from a RandomSource. Its own seed is unused.
+     */
+    private static final class RandomView extends Random {
+        private static final long serialVersionUID = 1L;
+
+        private final RandomSource source;
+
+        RandomView(RandomSource source) {
+            super(0);
+            this.source = source;
+        }
+
+        @Override
+        protected int next(int bits) {
+            return (int) (source.nextLong() >>> (64 - bits));
+        }
+
+        @Override
+        public long nextLong() {
+            return source.nextLong();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return source.nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return source.nextDouble();
+        }
+
+        @Override
+        public float nextFloat() {
+            return source.nextFloat();
+        }
+    }
+}
@@ -19,12 +19,11 @@
 package com.github.kalexmills.stochrammar.examples;
 
 import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.ChoiceToken;
 import com.github.kalexmills.stochrammar.GroundToken;
 import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
 import com.github.kalexmills.stochrammar.StochasticGrammar;
 
-import java.util.Random;
-
 /**
  * WeightedGrammar provides an example implementation that demonstrates how random weighting can be implemented by
  * client code. The grammar implemented here follows the below weighted BNF grammar, in which the RHS of each production
@@ -33,16 +32,29 @@ import java.util.Random;
  * ROOT := AB(0.2) | A(0.2) | ROOT(0.6)
  * A := "a"(0.5) | "A"(0.5)
  * B := "b"(0.5) | "B"(0.5)
+ *
+ * Every token is stateless, so each one is constructed once along with the grammar, and the arrays which replace them
+ * are shared by every expansion. Running this grammar allocates nothing but the Strings it produces.
  */
 public class WeightedGrammar implements StochasticGrammar<String> {
 
-    public WeightedGrammar() {
+    private final ChoiceToken<String> root = new ChoiceToken<>();
 
+    public WeightedGrammar() {
+        ChoiceToken<String> a = new ChoiceToken<String>()
+                .add(0.5, new Base("a"))
+                .add(0.5, new Base("A"));
+        ChoiceToken<String> b = new ChoiceToken<String>()
+                .add(0.5, new Base("b"))
+                .add(0.5, new Base("B"));
+        root.add(0.2, a, b)
+            .add(0.2, a)
+            .add(0.6, root);
     }
 
     @Override
     public CFToken<String> generateRootToken() {
-        return new RootToken();
+        return root;
     }
 
     @Override
@@ -50,32 +62,6 @@ public class WeightedGrammar implements StochasticGrammar<String> {
         return new String();
     }
 
-    private static class RootToken extends CFToken<String> {
-        @Override
-        public CFToken<String>[] replace(Random rand) {
-            float sample = rand.nextFloat();
-            if (sample < 0.2f) return new CFToken[] { new A(), new B() };
-            if (sample < 0.4f) return new CFToken[] { new A() };
-                               return new CFToken[] { new RootToken() };
-        }
-    }
-
-    private static class A extends CFToken<String> {
-        public CFToken<String>[] replace(Random rand) {
-            float sample = rand.nextFloat();
-            if (sample < 0.5f) return new CFToken[] { new Base("a")};
-                               return new CFToken[] { new Base("A")};
-        }
-    }
-
-    private static class B extends CFToken<String> {
-        public CFToken<String>[] replace(Random rand) {
-            float sample = rand.nextFloat();
-            if (sample < 0.5f) return new CFToken[] { new Base("b")};
-                               return new CFToken[] { new Base("B")};
-        }
-    }
-
     private static class Base extends GroundToken<String> {
         private String token;
         public Base(String token) {
@@ -92,4 +78,4 @@ public class WeightedGrammar implements StochasticGrammar<String> {
             System.out.println(runner.run());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BinaryGrammarFormat reads and writes the binary form of a CompiledTextGrammar. Every value is big-endian, and the
+ * tables appear in the following order.
+ *
+ * <pre>
+ * int       magic number, "STGR"
+ * int       format version
+ * int       string count N
+ * int[N+1]  offset of the UTF-8 bytes of each string, followed by the total number of bytes B
+ * byte[B]   the UTF-8 bytes of every string
+ * int       rule count R, followed by R ints, the string index of each rule key
+ * int[R+1]  offset of the first alternative of each rule, followed by the total number of alternatives A
+ * byte[R]   1 if the alternatives of the rule are weighted, 0 if they are uniform
+ * double[A] weight of each alternative
+ * int[A+1]  offset of the first symbol of each alternative, followed by the total number of symbols S
+ * int[S]    symbols: a rule id if non-negative, otherwise the bitwise complement of the string index of a Literal
+ * int       root rule id, or -1 if the grammar generates the empty string
+ * int       initial capacity of the StringBuilders returned by blankEntity()
+ * </pre>
+ *
+ * Strings are interned, so each distinct key or Literal text is stored once, and every Literal with the same text is
+ * loaded as a single shared token. Since every table can be found from the counts which precede it, a grammar which
+ * is read keeps views of the tables, and decodes each rule from them the first time it is needed.
+ */
+final class BinaryGrammarFormat {
+    private static final int MAGIC = 0x53544752;
+    private static final int VERSION = 2;
+
+    private BinaryGrammarFormat() {
+    }
+
+    static void write(CompiledTextGrammar grammar, OutputStream out) throws IOException {
+        int n = grammar.ruleCount();
+        Map<String, Integer> pool = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+
+        int[] keyIndices = new int[n];
+        int[] ruleOffsets = new int[n + 1];
+        for (int id = 0; id < n; ++id) {
+            keyIndices[id] = intern(grammar.key(id), pool, strings);
+            ruleOffsets[id + 1] = ruleOffsets[id] + grammar.alternativeCount(id);
+        }
+
+        int nAlternatives = ruleOffsets[n];
+        double[] weights = new double[nAlternatives];
+        int[] symbolOffsets = new int[nAlternatives + 1];
+        int[] symbols = new int[nAlternatives];
+        int a = 0;
+        for (int id = 0; id < n; ++id) {
+            for (int k = 0; k < grammar.alternativeCount(id); ++k, ++a) {
+                weights[a] = grammar.weight(id, k);
+                CFToken<StringBuilder>[] tokens = grammar.alternative(id, k);
+                int s = symbolOffsets[a];
+                if (s + tokens.length > symbols.length) {
+                    symbols = Arrays.copyOf(symbols, Math.max(symbols.length * 2, s + tokens.length));
+                }
+                for (CFToken<StringBuilder> token : tokens) {
+                    symbols[s++] = symbol(grammar, token, pool, strings);
+                }
+                symbolOffsets[a + 1] = s;
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        byte[][] text = new byte[strings.size()][];
+        data.writeInt(text.length);
+        data.writeInt(0);
+        int offset = 0;
+        for (int i = 0; i < text.length; ++i) {
+            text[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            offset += text[i].length;
+            data.writeInt(offset);
+        }
+        for (byte[] bytes : text) {
+            data.write(bytes);
+        }
+        data.writeInt(n);
+        writeInts(data, keyIndices, n);
+        writeInts(data, ruleOffsets, n + 1);
+        for (int id = 0; id < n; ++id) {
+            data.writeByte(grammar.isWeighted(id) ? 1 : 0);
+        }
+        for (double weight : weights) {
+            data.writeDouble(weight);
+        }
+        writeInts(data, symbolOffsets, nAlternatives + 1);
+        writeInts(data, symbols, symbolOffsets[nAlternatives]);
+        data.writeInt(grammar.ruleIdOf(grammar.generateRootToken()));
+        data.writeInt(grammar.capacity());
+        data.flush();
+    }
+
+    private static int symbol(CompiledTextGrammar grammar, CFToken<StringBuilder> token, Map<String, Integer> pool,
+                              List<String> strings) {
+        int id = grammar.ruleIdOf(token);
+        if (id >= 0) return id;
+        if (token instanceof TextGrammar.Literal && ((TextGrammar.Literal) token).isPlain()) {
+            return ~intern(((TextGrammar.Literal) token).text, pool, strings);
+        }
+        if (token == grammar.generateRootToken()) {
+            // The root of a grammar without a root rule generates the empty string.
+            return ~intern("", pool, strings);
+        }
+        throw new IllegalArgumentException("Cannot serialize token " + token);
+    }
+
+    private static int intern(String string, Map<String, Integer> pool, List<String> strings) {
+        Integer index = pool.get(string);
+        if (index == null) {
+            index = strings.size();
+            pool.put(string, index);
+            strings.add(string);
+        }
+        return index;
+    }
+
+    private static void writeInts(DataOutputStream data, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            data.writeInt(values[i]);
+        }
+    }
+
+    static CompiledTextGrammar read(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) throw new IOException("Not a serialized grammar");
+            int version = in.getInt();
+            if (version != VERSION) throw new IOException("Unsupported grammar format version " + version);
+
+            int nStrings = count(in, Integer.BYTES);
+            IntBuffer textOffsets = ints(in, nStrings + 1);
+            if (textOffsets.get(0) != 0) throw new IOException("Invalid offset " + textOffsets.get(0));
+            ByteBuffer text = bytes(in, textOffsets.get(nStrings));
+
+            int n = count(in, Integer.BYTES);
+            IntBuffer keyIndices = ints(in, n);
+            for (int id = 0; id < n; ++id) {
+                int index = keyIndices.get(id);
+                if (index < 0 || index >= nStrings) throw new IOException("Invalid key " + index);
+            }
+            IntBuffer ruleOffsets = ints(in, n + 1);
+            checkOffsets(ruleOffsets);
+            ByteBuffer weighted = bytes(in, n);
+
+            int nAlternatives = ruleOffsets.get(n);
+            DoubleBuffer weights = bytes(in, (long) Double.BYTES * nAlternatives).asDoubleBuffer();
+            IntBuffer symbolOffsets = ints(in, nAlternatives + 1);
+            if (symbolOffsets.get(0) != 0) throw new IOException("Invalid offset " + symbolOffsets.get(0));
+            IntBuffer symbols = ints(in, symbolOffsets.get(nAlternatives));
+
+            int rootId = in.getInt();
+            int capacity = in.getInt();
+            if (rootId < -1 || rootId >= n || capacity < 0) throw new IOException("Invalid grammar trailer");
+            Tables tables = new Tables(text, textOffsets, keyIndices, weighted, symbolOffsets, symbols);
+            return new CompiledTextGrammar(tables, ruleOffsets, weights, rootId, capacity);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Serialized grammar is truncated or corrupt", e);
+        }
+    }
+
+    /**
+     * count reads a count of elements, each of the given size, and checks that they could fit in the buffer.
+     */
+    private static int count(ByteBuffer in, int elementSize) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || (long) count * elementSize > in.remaining()) throw new IOException("Invalid count " + count);
+        return count;
+    }
+
+    /**
+     * bytes returns a view of the next length bytes of the buffer, and moves past them.
+     */
+    private static ByteBuffer bytes(ByteBuffer in, long length) throws IOException {
+        if (length < 0 || length > in.remaining()) throw new IOException("Invalid length " + length);
+        ByteBuffer result = in.duplicate();
+        result.limit(in.position() + (int) length);
+        in.position(in.position() + (int) length);
+        return result.slice();
+    }
+
+    private static IntBuffer ints(ByteBuffer in, int count) throws IOException {
+        return bytes(in, (long) count * Integer.BYTES).asIntBuffer();
+    }
+
+    private static void checkOffsets(IntBuffer offsets) throws IOException {
+        if (offsets.get(0) != 0) throw new IOException("Invalid offset " + offsets.get(0));
+        for (int i = 1; i < offsets.limit(); ++i) {
+            if (offsets.get(i) < offsets.get(i - 1)) throw new IOException("Invalid offset " + offsets.get(i));
+        }
+    }
+
+    /**
+     * Tables are views of the tables of a serialized grammar which are decoded lazily. Offsets and symbols are checked
+     * as they are decoded, and an IllegalStateException is thrown if they turn out to be corrupt.
+     */
+    static final class Tables {
+        private final ByteBuffer text;
+        // String i is held in the bytes of text from textOffsets.get(i) up to textOffsets.get(i+1).
+        private final IntBuffer textOffsets;
+        private final IntBuffer keyIndices;
+        private final ByteBuffer weighted;
+        private final IntBuffer symbolOffsets;
+        private final IntBuffer symbols;
+        // The Literals decoded so far, by string index, so that each distinct text is shared by a single Literal.
+        private final Map<Integer, TextGrammar.Literal> literals = new HashMap<>();
+        private final TextGrammar owner = new TextGrammar();
+
+        private Tables(ByteBuffer text, IntBuffer textOffsets, IntBuffer keyIndices, ByteBuffer weighted,
+                       IntBuffer symbolOffsets, IntBuffer symbols) {
+            this.text = text;
+            this.textOffsets = textOffsets;
+            this.keyIndices = keyIndices;
+            this.weighted = weighted;
+            this.symbolOffsets = symbolOffsets;
+            this.symbols = symbols;
+        }
+
+        /**
+         * @return String the key of the rule with the given id. May be called from any thread.
+         */
+        String key(int id) {
+            return string(keyIndices.get(id));
+        }
+
+        /**
+         * @return boolean true if the alternatives of the rule with the given id are weighted.
+         */
+        boolean isWeighted(int id) {
+            return weighted.get(id) != 0;
+        }
+
+        /**
+         * alternative decodes the tokens of an alternative. Callers must hold the lock of these tables.
+         *
+         * @param a int the index of the alternative.
+         * @param rules Rule[] the rules of the grammar, indexed by rule id.
+         * @return CFToken[] the tokens of the alternative.
+         */
+        CFToken<StringBuilder>[] alternative(int a, CompiledTextGrammar.Rule[] rules) {
+            int start = symbolOffsets.get(a);
+            int end = symbolOffsets.get(a + 1);
+            if (end < start || end > symbols.limit()) throw corrupt("Invalid offset " + end);
+            if (start == end) return CFToken.empty();
+            CFToken<StringBuilder>[] tokens = CFToken.newArray(end - start);
+            for (int i = start; i < end; ++i) {
+                int symbol = symbols.get(i);
+                if (symbol >= rules.length || ~symbol >= textOffsets.limit() - 1) {
+                    throw corrupt("Invalid symbol " + symbol);
+                }
+                tokens[i - start] = symbol >= 0 ? rules[symbol] : literal(~symbol);
+            }
+            return tokens;
+        }
+
+        private TextGrammar.Literal literal(int index) {
+            TextGrammar.Literal result = literals.get(index);
+            if (result == null) {
+                result = owner.new Literal(string(index));
+                literals.put(index, result);
+            }
+            return result;
+        }
+
+        private String string(int index) {
+            int start = textOffsets.get(index);
+            int end = textOffsets.get(index + 1);
+            if (start < 0 || end < start || end > text.limit()) throw corrupt("Invalid offset " + end);
+            ByteBuffer bytes = text.duplicate();
+            bytes.limit(end).position(start);
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+
+        private static IllegalStateException corrupt(String reason) {
+            return new IllegalStateException("Serialized grammar is corrupt: " + reason);
+        }
+    }
+}
@@ -0,0 +1,642 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.AliasTable;
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * CompiledTextGrammar is an immutable form of a TextGrammar, produced by TextGrammar::compile. Each rule key is
+ * resolved to an int id, and the alternatives of every rule are stored together in one array, so that expanding a rule
+ * costs a pair of array reads and a single call to the random number generator. Rules with weighted alternatives keep
+ * the AliasTable of the source grammar, so weighted choices also take constant time.
+ *
+ * A flattened grammar, produced by TextGrammar::compile(true), also inlines every rule which has a single alternative,
+ * and merges runs of adjacent Literals into a single Literal whose length is known in advance.
+ *
+ * A CompiledTextGrammar can be written to a compact binary form using writeTo, and loaded again using read or load.
+ * A loaded grammar keeps its tables in the buffer it was read from, and decodes the alternatives of a rule, along with
+ * the Literals they contain, the first time the rule is needed.
+ *
+ * Since it is immutable, a CompiledTextGrammar may be shared by any number of runners and threads.
+ */
+public final class CompiledTextGrammar implements StochasticGrammar<StringBuilder> {
+
+    // Rule keys, indexed by rule id. The keys of a loaded grammar are decoded the first time they are needed.
+    private final String[] keys;
+    // The alternatives of rule r are numbered ruleOffsets.get(r) through ruleOffsets.get(r+1) - 1.
+    private final IntBuffer ruleOffsets;
+    // The weight of each alternative, indexed in the same way.
+    private final DoubleBuffer weights;
+    // Tokens which expand each rule, indexed by rule id.
+    private final Rule[] rules;
+    // The tables of a loaded grammar, from which its rules are decoded. Null if the grammar was compiled.
+    private final BinaryGrammarFormat.Tables tables;
+
+    // Rule ids, by key. Built the first time a key is looked up if the grammar was loaded.
+    private volatile Map<String, Integer> ids;
+    private final CFToken<StringBuilder> root;
+    // The initial capacity of each StringBuilder returned by blankEntity().
+    private final int capacity;
+
+    // The initial capacity of a StringBuilder, as chosen by its no-argument constructor.
+    static final int DEFAULT_CAPACITY = 16;
+    // States of a rule while single alternatives are being inlined.
+    private static final byte INLINING = 1;
+    private static final byte INLINED = 2;
+
+    CompiledTextGrammar(TextGrammar source, Map<String, TextGrammar.Alternatives> replaceMap, boolean flatten) {
+        // Assign ids to defined rules first, followed by any keys which are referenced but never defined.
+        Map<String, Integer> ids = new HashMap<>();
+        ArrayList<String> keyList = new ArrayList<>();
+        int nAlternatives = 0;
+        for (Map.Entry<String, TextGrammar.Alternatives> entry : replaceMap.entrySet()) {
+            ids.put(entry.getKey(), keyList.size());
+            keyList.add(entry.getKey());
+            nAlternatives += entry.getValue().size();
+        }
+        for (TextGrammar.Alternatives alternatives : replaceMap.values()) {
+            for (CFToken<StringBuilder>[] tokens : alternatives.tokens) {
+                for (CFToken<StringBuilder> token : tokens) {
+                    if (isRuleOf(source, token) && !ids.containsKey(((TextGrammar.ProductionRule) token).key)) {
+                        String key = ((TextGrammar.ProductionRule) token).key;
+                        ids.put(key, keyList.size());
+                        keyList.add(key);
+                    }
+                }
+            }
+        }
+
+        keys = keyList.toArray(new String[0]);
+        rules = new Rule[keys.length];
+        for (int id = 0; id < keys.length; ++id) {
+            rules[id] = new Rule(id);
+        }
+        root = replaceMap.containsKey(TextGrammar.ROOT_KEY) ? rules[ids.get(TextGrammar.ROOT_KEY)] : new EmptyRoot();
+        tables = null;
+
+        int[] offsets = new int[keys.length + 1];
+        CFToken<StringBuilder>[][] alternatives = newAlternatives(nAlternatives);
+        double[] weights = new double[nAlternatives];
+        AliasTable[] aliasTables = new AliasTable[keys.length];
+        int a = 0;
+        for (int id = 0; id < keys.length; ++id) {
+            offsets[id] = a;
+            TextGrammar.Alternatives rhs = replaceMap.get(keys[id]);
+            if (rhs == null) continue;
+            for (int k = 0; k < rhs.size(); ++k) {
+                weights[a] = rhs.weight(k);
+                alternatives[a++] = resolve(source, ids, rhs.tokens.get(k));
+            }
+            if (!rhs.isUniform() && rhs.isChoosable()) aliasTables[id] = rhs.aliasTable();
+        }
+        offsets[keys.length] = a;
+        ruleOffsets = IntBuffer.wrap(offsets);
+        this.weights = DoubleBuffer.wrap(weights);
+
+        if (flatten) flatten(source, alternatives);
+        for (int id = 0; id < keys.length; ++id) {
+            rules[id].choices = choices(Arrays.copyOfRange(alternatives, offsets[id], offsets[id + 1]),
+                                        aliasTables[id], offsets[id]);
+        }
+        this.ids = ids;
+        capacity = DEFAULT_CAPACITY;
+    }
+
+    /**
+     * Assembles a grammar from tables in the layout of a serialized grammar. Each symbol is either the id of a rule, or
+     * the bitwise complement of the index of the text of a Literal.
+     */
+    CompiledTextGrammar(String[] keys, int[] ruleOffsets, double[] weights, boolean[] weighted,
+                        int[] symbolOffsets, int[] symbols, String[] strings, int rootId, int capacity) {
+        this.keys = keys;
+        this.ruleOffsets = IntBuffer.wrap(ruleOffsets);
+        this.weights = DoubleBuffer.wrap(weights);
+        this.capacity = capacity;
+        tables = null;
+        Map<String, Integer> ids = new HashMap<>();
+        rules = new Rule[keys.length];
+        for (int id = 0; id < keys.length; ++id) {
+            ids.put(keys[id], id);
+            rules[id] = new Rule(id);
+        }
+        root = rootId >= 0 ? rules[rootId] : new EmptyRoot();
+
+        // Each distinct text is shared by a single Literal.
+        TextGrammar owner = new TextGrammar();
+        TextGrammar.Literal[] literals = new TextGrammar.Literal[strings.length];
+        for (int id = 0; id < keys.length; ++id) {
+            int start = ruleOffsets[id];
+            CFToken<StringBuilder>[][] alternatives = newAlternatives(ruleOffsets[id + 1] - start);
+            for (int k = 0; k < alternatives.length; ++k) {
+                int a = start + k;
+                CFToken<StringBuilder>[] tokens = CFToken.newArray(symbolOffsets[a + 1] - symbolOffsets[a]);
+                for (int i = 0; i < tokens.length; ++i) {
+                    int symbol = symbols[symbolOffsets[a] + i];
+                    if (symbol >= 0) {
+                        tokens[i] = rules[symbol];
+                    } else {
+                        if (literals[~symbol] == null) literals[~symbol] = owner.new Literal(strings[~symbol]);
+                        tokens[i] = literals[~symbol];
+                    }
+                }
+                alternatives[k] = tokens.length == 0 ? CFToken.empty() : tokens;
+            }
+            AliasTable table = null;
+            if (weighted[id]) table = new AliasTable(Arrays.copyOfRange(weights, start, ruleOffsets[id + 1]));
+            rules[id].choices = choices(alternatives, table, start);
+        }
+        this.ids = ids;
+    }
+
+    /**
+     * Assembles a grammar from views of the tables of a serialized grammar. Only the Rule of each id is created here;
+     * everything else is decoded from the tables when it is first needed.
+     */
+    CompiledTextGrammar(BinaryGrammarFormat.Tables tables, IntBuffer ruleOffsets, DoubleBuffer weights, int rootId,
+                        int capacity) {
+        this.tables = tables;
+        this.ruleOffsets = ruleOffsets;
+        this.weights = weights;
+        this.capacity = capacity;
+        keys = new String[ruleOffsets.limit() - 1];
+        rules = new Rule[keys.length];
+        for (int id = 0; id < keys.length; ++id) {
+            rules[id] = new Rule(id);
+        }
+        root = rootId >= 0 ? rules[rootId] : new EmptyRoot();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CFToken<StringBuilder>[][] newAlternatives(int length) {
+        return (CFToken<StringBuilder>[][]) new CFToken<?>[length][];
+    }
+
+    /**
+     * choices gathers what is needed to choose among the alternatives of a rule, starting at the given offset. Rules
+     * without an AliasTable are chosen uniformly, unless every alternative has weight 0, in which case none of them can
+     * be chosen.
+     */
+    private Choices choices(CFToken<StringBuilder>[][] alternatives, AliasTable table, int start) {
+        double[] probabilities = new double[alternatives.length];
+        double total = 0;
+        for (int k = 0; k < alternatives.length; ++k) {
+            total += weights.get(start + k);
+        }
+        for (int k = 0; k < alternatives.length; ++k) {
+            if (total == 0) continue;
+            probabilities[k] = table == null ? 1.0 / alternatives.length : weights.get(start + k) / total;
+        }
+        return new Choices(alternatives, table, probabilities);
+    }
+
+    /**
+     * decode decodes the alternatives of a rule of a loaded grammar, unless another thread has already done so.
+     */
+    private Choices decode(Rule rule) {
+        synchronized (tables) {
+            if (rule.choices == null) {
+                int start = ruleOffsets.get(rule.id);
+                int end = ruleOffsets.get(rule.id + 1);
+                CFToken<StringBuilder>[][] alternatives = newAlternatives(end - start);
+                for (int a = start; a < end; ++a) {
+                    alternatives[a - start] = tables.alternative(a, rules);
+                }
+                AliasTable table = null;
+                if (tables.isWeighted(rule.id)) {
+                    try {
+                        double[] ruleWeights = new double[end - start];
+                        weights.duplicate().position(start).get(ruleWeights);
+                        table = new AliasTable(ruleWeights);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalStateException("Serialized grammar is corrupt", e);
+                    }
+                }
+                rule.choices = choices(alternatives, table, start);
+            }
+            return rule.choices;
+        }
+    }
+
+    private CompiledTextGrammar(CompiledTextGrammar other, int capacity) {
+        keys = other.keys;
+        ruleOffsets = other.ruleOffsets;
+        weights = other.weights;
+        rules = other.rules;
+        tables = other.tables;
+        ids = other.ids;
+        root = other.root;
+        this.capacity = capacity;
+    }
+
+    /**
+     * withCapacity returns a grammar which shares the rules of this one, but whose blankEntity() returns StringBuilders
+     * with the given initial capacity. A capacity close to the length of the text usually generated avoids repeatedly
+     * growing each StringBuilder; see TextGrammarAnalysis::suggestedCapacity.
+     *
+     * @param capacity int the initial capacity of each StringBuilder.
+     * @return CompiledTextGrammar a grammar which generates the same text as this one.
+     */
+    public CompiledTextGrammar withCapacity(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("capacity must be non-negative, was " + capacity);
+        return new CompiledTextGrammar(this, capacity);
+    }
+
+    /**
+     * flatten rewrites every alternative, inlining the rules which have a single alternative, and merging adjacent
+     * plain Literals.
+     */
+    private void flatten(TextGrammar source, CFToken<StringBuilder>[][] alternatives) {
+        byte[] states = new byte[keys.length];
+        for (int id = 0; id < keys.length; ++id) {
+            if (isSingle(id)) {
+                inline(source, alternatives, id, states);
+            } else {
+                for (int a = ruleOffsets.get(id); a < ruleOffsets.get(id + 1); ++a) {
+                    alternatives[a] = expand(source, alternatives, alternatives[a], states);
+                }
+            }
+        }
+    }
+
+    /**
+     * inline returns the flattened alternative of a rule which has a single alternative, flattening it first if need be.
+     */
+    private CFToken<StringBuilder>[] inline(TextGrammar source, CFToken<StringBuilder>[][] alternatives, int id,
+                                            byte[] states) {
+        int a = ruleOffsets.get(id);
+        if (states[id] == 0) {
+            states[id] = INLINING;
+            alternatives[a] = expand(source, alternatives, alternatives[a], states);
+            states[id] = INLINED;
+        }
+        return alternatives[a];
+    }
+
+    /**
+     * expand replaces each Rule with a single alternative by that alternative, unless the Rule is already being
+     * inlined, and then merges adjacent plain Literals.
+     */
+    private CFToken<StringBuilder>[] expand(TextGrammar source, CFToken<StringBuilder>[][] alternatives,
+                                            CFToken<StringBuilder>[] tokens, byte[] states) {
+        ArrayList<CFToken<StringBuilder>> result = new ArrayList<>(tokens.length);
+        for (CFToken<StringBuilder> token : tokens) {
+            int id = ruleIdOf(token);
+            if (id >= 0 && isSingle(id) && states[id] != INLINING) {
+                result.addAll(Arrays.asList(inline(source, alternatives, id, states)));
+            } else {
+                result.add(token);
+            }
+        }
+
+        ArrayList<CFToken<StringBuilder>> merged = new ArrayList<>(result.size());
+        for (int i = 0; i < result.size(); ) {
+            CFToken<StringBuilder> token = result.get(i++);
+            if (!isPlainLiteral(token) || i == result.size() || !isPlainLiteral(result.get(i))) {
+                merged.add(token);
+                continue;
+            }
+            StringBuilder text = new StringBuilder(((TextGrammar.Literal) token).text);
+            while (i < result.size() && isPlainLiteral(result.get(i))) {
+                text.append(((TextGrammar.Literal) result.get(i++)).text);
+            }
+            merged.add(source.new Literal(text.toString()));
+        }
+        return merged.toArray(CFToken.empty());
+    }
+
+    private boolean isSingle(int id) {
+        return alternativeCount(id) == 1;
+    }
+
+    private static boolean isPlainLiteral(CFToken<StringBuilder> token) {
+        return token instanceof TextGrammar.Literal && ((TextGrammar.Literal) token).isPlain();
+    }
+
+    /**
+     * resolve copies an array of tokens, replacing each ProductionRule of the source grammar with the Rule that has
+     * the same key.
+     */
+    private CFToken<StringBuilder>[] resolve(TextGrammar source, Map<String, Integer> ids,
+                                             CFToken<StringBuilder>[] tokens) {
+        CFToken<StringBuilder>[] result = CFToken.newArray(tokens.length);
+        for (int i = 0; i < tokens.length; ++i) {
+            if (isRuleOf(source, tokens[i])) {
+                result[i] = rules[ids.get(((TextGrammar.ProductionRule) tokens[i]).key)];
+            } else if (tokens[i] == source) {
+                result[i] = root;
+            } else {
+                result[i] = tokens[i];
+            }
+        }
+        return result;
+    }
+
+    private static boolean isRuleOf(TextGrammar source, CFToken<StringBuilder> token) {
+        return token instanceof TextGrammar.ProductionRule && ((TextGrammar.ProductionRule) token).grammar() == source;
+    }
+
+    /**
+     * @return int the number of distinct rule keys in this grammar, including keys which are referenced but have no
+     *             alternatives.
+     */
+    public int ruleCount() {
+        return keys.length;
+    }
+
+    /**
+     * @param key String the key of a rule.
+     * @return int the id of the rule, or -1 if this grammar does not contain the key.
+     */
+    public int ruleId(String key) {
+        Map<String, Integer> ids = this.ids;
+        if (ids == null) {
+            ids = new HashMap<>();
+            for (int id = 0; id < keys.length; ++id) {
+                ids.put(key(id), id);
+            }
+            this.ids = ids;
+        }
+        Integer id = ids.get(key);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @return String the key of the rule.
+     */
+    public String key(int id) {
+        String key = keys[id];
+        if (key == null) {
+            // Strings are immutable, so a key decoded by another thread is safe to use even if it is seen here.
+            key = tables.key(id);
+            keys[id] = key;
+        }
+        return key;
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @return CFToken a token which is replaced according to the rule.
+     */
+    public CFToken<StringBuilder> rule(int id) {
+        return rules[id];
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @return int the number of alternatives of the rule.
+     */
+    int alternativeCount(int id) {
+        return ruleOffsets.get(id + 1) - ruleOffsets.get(id);
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @param k int the index of one of the alternatives of the rule.
+     * @return CFToken[] the tokens of the alternative, which must not be modified.
+     */
+    CFToken<StringBuilder>[] alternative(int id, int k) {
+        return rules[id].choices().alternatives[k];
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @param k int the index of one of the alternatives of the rule.
+     * @return double the probability that the alternative is chosen when the rule is replaced.
+     */
+    double probability(int id, int k) {
+        return rules[id].choices().probabilities[k];
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @param k int the index of one of the alternatives of the rule.
+     * @return double the weight of the alternative.
+     */
+    double weight(int id, int k) {
+        return weights.get(ruleOffsets.get(id) + k);
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @return boolean true if the alternatives of the rule are chosen according to their weights, rather than
+     *                 uniformly.
+     */
+    boolean isWeighted(int id) {
+        return rules[id].choices().table != null;
+    }
+
+    /**
+     * choose picks one of the alternatives of a rule at random, according to their weights.
+     *
+     * @param id int the id of a rule.
+     * @param rand RandomSource source of random numbers to use.
+     * @return int the index of the chosen alternative.
+     * @throws TextGrammar.ReplaceException if the rule has no alternatives, or every one has weight 0.
+     */
+    int choose(int id, RandomSource rand) {
+        Choices choices = rules[id].choices();
+        AliasTable table = choices.table;
+        return table == null ? rand.choose(choosableCount(id, choices)) : rand.choose(table);
+    }
+
+    /**
+     * @param id int the id of a rule.
+     * @param rand Random random number generator to use.
+     * @return int the index of the chosen alternative.
+     * @throws TextGrammar.ReplaceException if the rule has no alternatives, or every one has weight 0.
+     */
+    int choose(int id, Random rand) {
+        Choices choices = rules[id].choices();
+        AliasTable table = choices.table;
+        return table == null ? rand.nextInt(choosableCount(id, choices)) : table.sample(rand);
+    }
+
+    /**
+     * @return int the number of alternatives of a rule without an AliasTable, which are chosen uniformly.
+     */
+    private int choosableCount(int id, Choices choices) {
+        int count = choices.alternatives.length;
+        if (count == 0) throw new TextGrammar.ReplaceException("Grammar does not contain key " + key(id));
+        if (choices.probabilities[0] == 0) {
+            throw new TextGrammar.ReplaceException("Every alternative of key " + key(id) + " has weight 0");
+        }
+        return count;
+    }
+
+    /**
+     * @return int the initial capacity of each StringBuilder returned by blankEntity().
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @param token CFToken any token.
+     * @return int the id of the rule expanded by the token, or -1 if the token is not one of the rules of this grammar.
+     */
+    int ruleIdOf(CFToken<StringBuilder> token) {
+        if (!(token instanceof Rule)) return -1;
+        int id = ((Rule) token).id;
+        return (id < rules.length && rules[id] == token) ? id : -1;
+    }
+
+    @Override
+    public CFToken<StringBuilder> generateRootToken() {
+        return root;
+    }
+
+    @Override
+    public StringBuilder blankEntity() {
+        return new StringBuilder(capacity);
+    }
+
+    /**
+     * Rule is replaced by one of the alternatives of the rule with the given id, chosen at random according to their
+     * weights.
+     */
+    public final class Rule extends CFToken<StringBuilder> {
+        private final int id;
+        // Set when the grammar is compiled, or the first time the rule is needed if the grammar was loaded. Choices
+        // are immutable, so those decoded by another thread are safe to use even if they are seen here.
+        private Choices choices;
+
+        private Rule(int id) {
+            this.id = id;
+        }
+
+        /**
+         * @return int the id of the rule this token expands.
+         */
+        public int id() {
+            return id;
+        }
+
+        private Choices choices() {
+            Choices result = choices;
+            return result != null ? result : decode(this);
+        }
+
+        /**
+         * @param rand Random random number generator to use.
+         * @return an array of grammar tokens to append to the list being grown.
+         * @throws TextGrammar.ReplaceException if the rule has no alternatives.
+         */
+        @Override
+        public CFToken<StringBuilder>[] replace(Random rand) {
+            Choices choices = choices();
+            AliasTable table = choices.table;
+            return choices.alternatives[table == null ? rand.nextInt(choosableCount(id, choices)) : table.sample(rand)];
+        }
+
+        /**
+         * @param rand RandomSource source of random numbers to use.
+         * @return an array of grammar tokens to append to the list being grown.
+         * @throws TextGrammar.ReplaceException if the rule has no alternatives.
+         */
+        @Override
+        public CFToken<StringBuilder>[] replace(RandomSource rand) {
+            Choices choices = choices();
+            AliasTable table = choices.table;
+            return choices.alternatives[table == null ? rand.choose(choosableCount(id, choices)) : rand.choose(table)];
+        }
+    }
+
+    /**
+     * Choices holds the alternatives of a rule, and what is needed to choose between them.
+     */
+    private static final class Choices {
+        final CFToken<StringBuilder>[][] alternatives;
+        // The table for sampling the alternatives, or null if they are chosen uniformly.
+        final AliasTable table;
+        final double[] probabilities;
+
+        Choices(CFToken<StringBuilder>[][] alternatives, AliasTable table, double[] probabilities) {
+            this.alternatives = alternatives;
+            this.table = table;
+            this.probabilities = probabilities;
+        }
+    }
+
+    /**
+     * writeTo serializes this grammar into a compact binary form, which can be read back using read or load. Every
+     * token of the grammar must be one of its rules, or a Literal whose action has not been changed.
+     *
+     * @param out OutputStream to write to. It is not closed.
+     * @throws IOException if out throws an IOException.
+     * @throws IllegalArgumentException if the grammar contains any other kind of token.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        BinaryGrammarFormat.write(this, out);
+    }
+
+    /**
+     * read deserializes a grammar written by writeTo, starting at the position of the buffer. The grammar keeps views
+     * of the buffer instead of copying its tables, so the contents of the buffer must not be changed afterwards. Only
+     * the layout of the tables is checked here; the alternatives of each rule are checked when they are decoded, the
+     * first time the rule is needed.
+     *
+     * @param buffer ByteBuffer containing a serialized grammar.
+     * @return CompiledTextGrammar a grammar which generates the same text as the one which was written, seed for seed.
+     * @throws IOException if the buffer does not contain a serialized grammar.
+     */
+    public static CompiledTextGrammar read(ByteBuffer buffer) throws IOException {
+        return BinaryGrammarFormat.read(buffer);
+    }
+
+    /**
+     * load maps a file written by writeTo into memory, and deserializes the grammar it contains. The grammar reads its
+     * tables straight from the mapped pages, which are shared through the page cache by every process on the host which
+     * loads the same file. Loading takes time in proportion to the number of rules, and each process only decodes the
+     * alternatives and Literals of the rules it uses.
+     *
+     * @param path Path of the file to load.
+     * @return CompiledTextGrammar a grammar which generates the same text as the one which was written, seed for seed.
+     * @throws IOException if the file cannot be read, or does not contain a serialized grammar.
+     */
+    public static CompiledTextGrammar load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * EmptyRoot is the root token of a grammar without a root rule, which generates the empty string.
+     */
+    private static final class EmptyRoot extends GroundToken<StringBuilder> {
+    }
+}
@@ -0,0 +1,405 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Predicate;
+
+/**
+ * ConstrainedSampler generates text from a CompiledTextGrammar which satisfies constraints on its Literals, without
+ * generating and discarding text which does not.
+ *
+ * Four constraints may be set, each as a predicate on the text of a Literal:
+ * <ul>
+ *     <li>first: the first non-empty Literal generated must match,</li>
+ *     <li>last: the last non-empty Literal generated must match,</li>
+ *     <li>required: at least one Literal generated must match,</li>
+ *     <li>forbidden: no Literal generated may match.</li>
+ * </ul>
+ * A ground token which is not a Literal matches none of them. A plain Literal with empty text generates nothing, and
+ * so is neither first nor last. Literals are matched as they appear in the compiled grammar, so in a flattened grammar
+ * the predicates see the text of merged Literals.
+ *
+ * Before sampling, ConstrainedSampler computes which rules can be expanded to satisfy each combination of the first,
+ * last and required constraints, using only Literals which are not forbidden; these are the FIRST, LAST and contains
+ * sets of the rules, restricted to the constraints. While sampling, each rule then chooses only among the alternatives
+ * which can still satisfy the constraints, in proportion to their weights, and each alternative assigns the
+ * constraints to tokens which can satisfy them. Every sample satisfies the constraints, and none is ever rejected.
+ *
+ * The samples are not distributed exactly as the grammar would generate them conditioned on the constraints; the
+ * probability of an alternative is not adjusted by the probability that it goes on to satisfy them. Where one of
+ * several tokens of an alternative could satisfy a constraint, one of them is chosen uniformly.
+ *
+ * A ConstrainedSampler is not thread-safe. Its tables are computed again by the first sample after a constraint is
+ * changed.
+ */
+public class ConstrainedSampler {
+
+    // Constraint states. A token in state FIRST | LAST must generate a first and last Literal which match, a token in
+    // state REQUIRED must generate a Literal which matches, and so on. A token in state EMPTY must generate nothing.
+    private static final int FIRST = 1;
+    private static final int LAST = 2;
+    private static final int REQUIRED = 4;
+    private static final int EMPTY = 8;
+    // The states satisfied by an empty sequence of tokens.
+    private static final int EMPTY_MASK = (1 << 0) | (1 << EMPTY);
+
+    private final CompiledTextGrammar grammar;
+    private final int rootId;
+    private Predicate<String> first;
+    private Predicate<String> last;
+    private Predicate<String> required;
+    private Predicate<String> forbidden;
+
+    // Computed by analyze. Masks have bit s set when state s can be satisfied.
+    private boolean analyzed;
+    private int[] ruleOffsets;
+    // The most alternatives of any rule.
+    private int maxAlternatives;
+    private CFToken<StringBuilder>[][] tokens;
+    // The states in which each token of each alternative can be expanded, and in which each suffix of each alternative
+    // can be. suffixMasks[a][tokens[a].length] is always EMPTY_MASK.
+    private int[][] tokenMasks;
+    private int[][] suffixMasks;
+    private int[] ruleMasks;
+
+    /**
+     * @param grammar CompiledTextGrammar to sample.
+     */
+    public ConstrainedSampler(CompiledTextGrammar grammar) {
+        this.grammar = grammar;
+        this.rootId = grammar.ruleIdOf(grammar.generateRootToken());
+    }
+
+    /**
+     * @param first Predicate the predicate the first non-empty Literal must match, or null if any may be first.
+     */
+    public void setFirst(Predicate<String> first) {
+        this.first = first;
+        analyzed = false;
+    }
+
+    /**
+     * setPrefix requires the first non-empty Literal to start with the given prefix.
+     *
+     * @param prefix String the prefix with which the text must start.
+     */
+    public void setPrefix(String prefix) {
+        setFirst((text) -> text.startsWith(prefix));
+    }
+
+    /**
+     * @param last Predicate the predicate the last non-empty Literal must match, or null if any may be last.
+     */
+    public void setLast(Predicate<String> last) {
+        this.last = last;
+        analyzed = false;
+    }
+
+    /**
+     * setSuffix requires the last non-empty Literal to end with the given suffix.
+     *
+     * @param suffix String the suffix with which the text must end.
+     */
+    public void setSuffix(String suffix) {
+        setLast((text) -> text.endsWith(suffix));
+    }
+
+    /**
+     * @param required Predicate a predicate which at least one Literal must match, or null if none is required.
+     */
+    public void setRequired(Predicate<String> required) {
+        this.required = required;
+        analyzed = false;
+    }
+
+    /**
+     * @param forbidden Predicate a predicate which no Literal may match, or null if none is forbidden.
+     */
+    public void setForbidden(Predicate<String> forbidden) {
+        this.forbidden = forbidden;
+        analyzed = false;
+    }
+
+    /**
+     * setForbidden forbids every Literal whose text is one of those given.
+     *
+     * @param texts String[] the texts of the forbidden Literals.
+     */
+    public void setForbidden(String... texts) {
+        String[] sorted = texts.clone();
+        Arrays.sort(sorted);
+        setForbidden((text) -> Arrays.binarySearch(sorted, text) >= 0);
+    }
+
+    /**
+     * @return boolean true if the grammar can generate text which satisfies the constraints.
+     */
+    public boolean isSatisfiable() {
+        analyze();
+        return rootId < 0 ? initialState() == 0 : (ruleMasks[rootId] & (1 << initialState())) != 0;
+    }
+
+    /**
+     * @param rand Random the random number generator to use.
+     * @return StringBuilder the generated text.
+     */
+    public StringBuilder sample(Random rand) {
+        return sample(RandomSource.of(rand));
+    }
+
+    /**
+     * @param rand RandomSource the source of random numbers to use.
+     * @return StringBuilder the generated text.
+     * @throws UnsatisfiableException if the grammar cannot generate text which satisfies the constraints.
+     */
+    public StringBuilder sample(RandomSource rand) {
+        if (!isSatisfiable()) throw new UnsatisfiableException();
+        StringBuilder result = grammar.blankEntity();
+        if (rootId < 0) return grammar.generateRootToken().act(result);
+
+        CFToken<StringBuilder>[] stack = CFToken.newArray(16);
+        int[] states = new int[16];
+        int top = 0;
+        stack[top] = grammar.rule(rootId);
+        states[top++] = initialState();
+        int[] assigned = new int[16];
+        // Scratch space for the weights of the alternatives of a rule, and for the options of assign.
+        double[] weights = new double[maxAlternatives];
+        int[] options = new int[8];
+        while (top > 0) {
+            CFToken<StringBuilder> token = stack[--top];
+            int state = states[top];
+            int r = grammar.ruleIdOf(token);
+            if (r < 0) {
+                result = token.act(result);
+                continue;
+            }
+            int a = chooseAlternative(r, state, weights, rand);
+            int length = tokens[a].length;
+            if (assigned.length < length) assigned = new int[length];
+            assign(a, state, assigned, options, rand);
+            if (top + length > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + length));
+                states = Arrays.copyOf(states, stack.length);
+            }
+            // Push in reverse, so that the leftmost token is expanded first.
+            for (int i = length - 1; i >= 0; --i) {
+                stack[top] = tokens[a][i];
+                states[top++] = assigned[i];
+            }
+        }
+        return result;
+    }
+
+    private int initialState() {
+        return (first != null ? FIRST : 0) | (last != null ? LAST : 0) | (required != null ? REQUIRED : 0);
+    }
+
+    /**
+     * chooseAlternative chooses among the alternatives of rule r which can be expanded in the given state, in
+     * proportion to their probabilities.
+     */
+    private int chooseAlternative(int r, int state, double[] weights, RandomSource rand) {
+        int bit = 1 << state;
+        int count = ruleOffsets[r + 1] - ruleOffsets[r];
+        boolean pruned = false;
+        for (int k = 0; k < count; ++k) {
+            if ((suffixMasks[ruleOffsets[r] + k][0] & bit) != 0) {
+                weights[k] = grammar.probability(r, k);
+            } else {
+                weights[k] = 0;
+                pruned = true;
+            }
+        }
+        if (!pruned) return ruleOffsets[r] + grammar.choose(r, rand);
+        return ruleOffsets[r] + rand.choose(weights, count);
+    }
+
+    /**
+     * assign chooses a state for each token of alternative a, such that together they satisfy the given state.
+     */
+    private void assign(int a, int state, int[] assigned, int[] options, RandomSource rand) {
+        for (int i = 0; i < tokens[a].length; ++i) {
+            if (state == 0 || state == EMPTY) {
+                assigned[i] = state;
+                continue;
+            }
+            int count = options(a, i, state, options);
+            int option = count == 1 ? 0 : rand.choose(count);
+            assigned[i] = options[2 * option];
+            state = options[2 * option + 1];
+        }
+    }
+
+    /**
+     * options lists the feasible ways of satisfying state with the tokens of alternative a from i onwards, as pairs of
+     * the state of token i and the state of the tokens after it, and returns the number of pairs.
+     */
+    private int options(int a, int i, int state, int[] options) {
+        int count = 0;
+        int token = tokenMasks[a][i];
+        int rest = suffixMasks[a][i + 1];
+        if ((state & FIRST) != 0 && feasible(token, EMPTY) && feasible(rest, state)) {
+            options[2 * count] = EMPTY;
+            options[2 * count++ + 1] = state;
+        }
+        if ((state & LAST) != 0 && feasible(token, state) && feasible(rest, EMPTY)) {
+            options[2 * count] = state;
+            options[2 * count++ + 1] = EMPTY;
+        }
+        for (int take = 0; take <= (state & REQUIRED); take += REQUIRED) {
+            int here = (state & FIRST) | take;
+            int after = (state & LAST) | ((state & REQUIRED) ^ take);
+            if (feasible(token, here) && feasible(rest, after)) {
+                options[2 * count] = here;
+                options[2 * count++ + 1] = after;
+            }
+        }
+        return count;
+    }
+
+    private static boolean feasible(int mask, int state) {
+        return (mask & (1 << state)) != 0;
+    }
+
+    /**
+     * suffixMask computes the states in which the tokens of alternative a from i onwards can be expanded, from the
+     * masks of token i and of the tokens after it.
+     */
+    private static int suffixMask(int token, int rest) {
+        int mask = 0;
+        if (feasible(token, EMPTY) && feasible(rest, EMPTY)) mask |= 1 << EMPTY;
+        for (int state = 0; state < EMPTY; ++state) {
+            boolean ok = (state & FIRST) != 0 && feasible(token, EMPTY) && feasible(rest, state);
+            ok |= (state & LAST) != 0 && feasible(token, state) && feasible(rest, EMPTY);
+            for (int take = 0; !ok && take <= (state & REQUIRED); take += REQUIRED) {
+                int after = (state & LAST) | ((state & REQUIRED) ^ take);
+                ok = feasible(token, (state & FIRST) | take) && feasible(rest, after);
+            }
+            if (ok) mask |= 1 << state;
+        }
+        return mask;
+    }
+
+    /**
+     * analyze computes the states in which each rule can be expanded. The masks only grow as more rules are found to be
+     * expandable, so they are computed by iterating from nothing until they no longer change.
+     */
+    private void analyze() {
+        if (analyzed) return;
+        int nRules = grammar.ruleCount();
+        ruleOffsets = new int[nRules + 1];
+        maxAlternatives = 0;
+        for (int id = 0; id < nRules; ++id) {
+            ruleOffsets[id + 1] = ruleOffsets[id] + grammar.alternativeCount(id);
+            maxAlternatives = Math.max(maxAlternatives, grammar.alternativeCount(id));
+        }
+        int nAlternatives = ruleOffsets[nRules];
+        tokens = newAlternatives(nAlternatives);
+        tokenMasks = new int[nAlternatives][];
+        suffixMasks = new int[nAlternatives][];
+        ruleMasks = new int[nRules];
+        for (int id = 0; id < nRules; ++id) {
+            for (int k = 0; k < grammar.alternativeCount(id); ++k) {
+                int a = ruleOffsets[id] + k;
+                tokens[a] = grammar.alternative(id, k);
+                tokenMasks[a] = new int[tokens[a].length];
+                suffixMasks[a] = new int[tokens[a].length + 1];
+                suffixMasks[a][tokens[a].length] = EMPTY_MASK;
+                for (int i = 0; i < tokens[a].length; ++i) {
+                    tokenMasks[a][i] = groundMask(tokens[a][i]);
+                }
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int id = 0; id < nRules; ++id) {
+                int mask = 0;
+                for (int a = ruleOffsets[id]; a < ruleOffsets[id + 1]; ++a) {
+                    if (grammar.probability(id, a - ruleOffsets[id]) == 0) {
+                        suffixMasks[a][0] = 0; // Never chosen, even if it is empty.
+                        continue;
+                    }
+                    for (int i = tokens[a].length - 1; i >= 0; --i) {
+                        int ruleId = grammar.ruleIdOf(tokens[a][i]);
+                        if (ruleId >= 0) tokenMasks[a][i] = ruleMasks[ruleId];
+                        suffixMasks[a][i] = suffixMask(tokenMasks[a][i], suffixMasks[a][i + 1]);
+                    }
+                    mask |= suffixMasks[a][0];
+                }
+                if (mask != ruleMasks[id]) {
+                    ruleMasks[id] = mask;
+                    changed = true;
+                }
+            }
+        }
+        analyzed = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CFToken<StringBuilder>[][] newAlternatives(int length) {
+        return (CFToken<StringBuilder>[][]) new CFToken<?>[length][];
+    }
+
+    /**
+     * groundMask returns the states in which a token which is not a rule can be expanded.
+     */
+    private int groundMask(CFToken<StringBuilder> token) {
+        if (grammar.ruleIdOf(token) >= 0) return 0;
+        if (!(token instanceof GroundToken)) {
+            throw new IllegalArgumentException("Cannot constrain token of type " + token.getClass().getName());
+        }
+        if (!(token instanceof TextGrammar.Literal)) return 1 << 0;
+        TextGrammar.Literal literal = (TextGrammar.Literal) token;
+        String text = literal.text;
+        if (forbidden != null && forbidden.test(text)) return 0;
+        if (text.isEmpty() && literal.isPlain()) return EMPTY_MASK;
+        int mask = 0;
+        for (int state = 0; state < EMPTY; ++state) {
+            boolean ok = ((state & FIRST) == 0 || matches(first, text))
+                    && ((state & LAST) == 0 || matches(last, text))
+                    && ((state & REQUIRED) == 0 || matches(required, text));
+            if (ok) mask |= 1 << state;
+        }
+        return mask;
+    }
+
+    private static boolean matches(Predicate<String> predicate, String text) {
+        return predicate == null || predicate.test(text);
+    }
+
+    /**
+     * UnsatisfiableException is thrown when the grammar cannot generate any text which satisfies the constraints.
+     */
+    public static class UnsatisfiableException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public UnsatisfiableException() {
+            super("The grammar cannot generate text which satisfies the constraints");
+        }
+    }
+}
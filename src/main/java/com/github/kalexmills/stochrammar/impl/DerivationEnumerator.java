@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * DerivationEnumerator lazily enumerates the derivations of a CompiledTextGrammar in order of decreasing probability,
+ * so that the most likely outputs of a grammar can be found without sampling it.
+ *
+ * The probability of a derivation is the product of the probabilities of the alternatives chosen for each rule it
+ * expands. Partial derivations are kept in a priority queue, and the most probable is always expanded next, by trying
+ * each alternative of its leftmost unexpanded rule. Since expanding a derivation never makes it more probable, each
+ * complete derivation is reached only after every more probable one, so the first k derivations returned are the k
+ * most probable. Ties are broken in the order in which the derivations were found.
+ *
+ * Derivations, rather than distinct texts, are enumerated: if a grammar can derive the same text in more than one way,
+ * that text is returned once for each derivation. Alternatives with probability zero are never chosen, and
+ * derivations which reach a rule without alternatives are dropped.
+ *
+ * Partial derivations share their tokens with one another, so each costs only a few objects, but the queue grows with
+ * every derivation explored, and enumerating far down the list of a large or recursive grammar can take a great deal of
+ * memory.
+ */
+public final class DerivationEnumerator implements Iterator<DerivationEnumerator.Derivation> {
+
+    private final CompiledTextGrammar grammar;
+    private final PriorityQueue<Partial> queue = new PriorityQueue<>((a, b) -> {
+        int result = Double.compare(b.probability, a.probability);
+        return result != 0 ? result : Long.compare(a.order, b.order);
+    });
+    private long found;
+
+    /**
+     * @param grammar CompiledTextGrammar whose derivations are enumerated.
+     * @throws IllegalArgumentException if the grammar contains a token which is neither one of its rules, nor a
+     *                                  GroundToken.
+     */
+    public DerivationEnumerator(CompiledTextGrammar grammar) {
+        this.grammar = grammar;
+        offer(1.0, null, new Node(grammar.generateRootToken(), null));
+    }
+
+    /**
+     * top returns the k most probable derivations of a grammar.
+     *
+     * @param grammar CompiledTextGrammar whose derivations are enumerated.
+     * @param k int the number of derivations to return.
+     * @return List the k most probable derivations, in order of decreasing probability, or all of them if there are
+     *              fewer than k.
+     */
+    public static List<Derivation> top(CompiledTextGrammar grammar, int k) {
+        if (k < 0) throw new IllegalArgumentException("k must be non-negative, was " + k);
+        DerivationEnumerator enumerator = new DerivationEnumerator(grammar);
+        List<Derivation> result = new ArrayList<>();
+        while (result.size() < k && enumerator.hasNext()) {
+            result.add(enumerator.next());
+        }
+        return result;
+    }
+
+    /**
+     * @return boolean true if there is another derivation, which may take some time to find.
+     */
+    @Override
+    public boolean hasNext() {
+        while (!queue.isEmpty()) {
+            Partial partial = queue.peek();
+            if (partial.pending == null) return true;
+            queue.poll();
+            expand(partial);
+        }
+        return false;
+    }
+
+    /**
+     * @return Derivation the most probable derivation not yet returned.
+     */
+    @Override
+    public Derivation next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Partial partial = queue.poll();
+        return new Derivation(grammar, partial.probability, partial.output);
+    }
+
+    /**
+     * @return int the number of partial derivations waiting to be expanded.
+     */
+    public int queued() {
+        return queue.size();
+    }
+
+    /**
+     * expand adds a partial derivation for each alternative of the leftmost unexpanded rule of partial.
+     */
+    private void expand(Partial partial) {
+        int id = grammar.ruleIdOf(partial.pending.token);
+        Node rest = partial.pending.next;
+        for (int k = 0; k < grammar.alternativeCount(id); ++k) {
+            double p = grammar.probability(id, k);
+            if (p == 0) continue;
+            Node pending = rest;
+            CFToken<StringBuilder>[] tokens = grammar.alternative(id, k);
+            for (int i = tokens.length - 1; i >= 0; --i) {
+                pending = new Node(tokens[i], pending);
+            }
+            offer(partial.probability * p, partial.output, pending);
+        }
+    }
+
+    /**
+     * offer moves any ground tokens at the front of pending to the output, and queues the result.
+     */
+    private void offer(double probability, Node output, Node pending) {
+        while (pending != null && grammar.ruleIdOf(pending.token) < 0) {
+            if (!(pending.token instanceof GroundToken)) {
+                String type = pending.token.getClass().getName();
+                throw new IllegalArgumentException("Cannot enumerate token of type " + type);
+            }
+            output = new Node(pending.token, output);
+            pending = pending.next;
+        }
+        queue.add(new Partial(probability, found++, output, pending));
+    }
+
+    /**
+     * Node is an immutable linked list of tokens, whose tails are shared between partial derivations.
+     */
+    private static final class Node {
+        final CFToken<StringBuilder> token;
+        final Node next;
+
+        Node(CFToken<StringBuilder> token, Node next) {
+            this.token = token;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Partial is a partial derivation. Its output holds the ground tokens produced so far, with the last one first, and
+     * pending holds the tokens yet to be expanded, starting with a rule.
+     */
+    private static final class Partial {
+        final double probability;
+        final long order;
+        final Node output;
+        final Node pending;
+
+        Partial(double probability, long order, Node output, Node pending) {
+            this.probability = probability;
+            this.order = order;
+            this.output = output;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * Derivation is a complete derivation of a grammar, and the probability with which it is generated.
+     */
+    public static final class Derivation {
+        private final CompiledTextGrammar grammar;
+        private final double probability;
+        private final List<CFToken<StringBuilder>> tokens;
+
+        private Derivation(CompiledTextGrammar grammar, double probability, Node output) {
+            this.grammar = grammar;
+            this.probability = probability;
+            ArrayList<CFToken<StringBuilder>> list = new ArrayList<>();
+            for (Node node = output; node != null; node = node.next) {
+                list.add(node.token);
+            }
+            Collections.reverse(list);
+            this.tokens = Collections.unmodifiableList(list);
+        }
+
+        /**
+         * @return double the probability that a run of the grammar makes the choices of this derivation.
+         */
+        public double probability() {
+            return probability;
+        }
+
+        /**
+         * @return List the ground tokens of this derivation, in order.
+         */
+        public List<CFToken<StringBuilder>> tokens() {
+            return tokens;
+        }
+
+        /**
+         * @return StringBuilder a new entity, acted upon by each ground token of this derivation in order.
+         */
+        public StringBuilder generate() {
+            StringBuilder result = grammar.blankEntity();
+            for (CFToken<StringBuilder> token : tokens) {
+                result = token.act(result);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return generate() + " (" + probability + ")";
+        }
+    }
+}
@@ -0,0 +1,636 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * SizedSampler generates text from a CompiledTextGrammar whose derivation has exactly, or at most, a given number of
+ * ground tokens, without generating and discarding derivations of other sizes.
+ *
+ * When it is created, a SizedSampler counts, for every rule and every size up to maxSize, the derivations of the rule
+ * which have that many ground tokens. In UNIFORM mode each derivation counts as one, so that every derivation of a
+ * given size is equally likely to be sampled. In WEIGHTED mode each derivation counts as its probability, so that the
+ * derivations of a given size are sampled as the grammar would generate them, conditioned on their size. In both
+ * modes, alternatives which the grammar can never choose are ignored.
+ *
+ * Sampling then takes a single pass: each rule chooses an alternative in proportion to the number of its derivations
+ * of the required size, and divides that size between the tokens of the alternative in proportion to the number of
+ * ways each division can be derived.
+ *
+ * Counts are kept as doubles, so those of very large grammars are approximate, and counting fails if they overflow.
+ * Building the tables takes time proportional to maxSize squared, multiplied by the total length of the alternatives,
+ * and they take memory proportional to maxSize multiplied by the total length of the alternatives. Rules which can
+ * derive one another without producing a ground token form unit cycles. In UNIFORM mode, a unit cycle which derives
+ * any ground tokens has infinitely many derivations, and is rejected. In WEIGHTED mode, each unit cycle is solved
+ * directly, which takes additional time cubic in the number of its rules, and their square for every size.
+ *
+ * A SizedSampler is immutable once created, and may be shared between threads.
+ */
+public final class SizedSampler {
+
+    /**
+     * Mode enumerates the distributions a SizedSampler can sample from.
+     */
+    public enum Mode {
+        /**
+         * Every derivation of the requested size is equally likely.
+         */
+        UNIFORM,
+        /**
+         * Derivations of the requested size are chosen with probability proportional to their probability under the
+         * grammar.
+         */
+        WEIGHTED
+    }
+
+    // Symbol used for each ground token in the tables.
+    private static final int GROUND = -1;
+    // Iterations allowed for counts of empty derivations to converge, and the relative change at which they are
+    // considered to have.
+    private static final int MAX_ITERATIONS = 100000;
+    private static final double TOLERANCE = 1e-13;
+    // Pivots smaller than this are treated as zero when solving unit cycles.
+    private static final double EPSILON = 1e-12;
+
+    private final CompiledTextGrammar grammar;
+    private final int maxSize;
+    private final int rootId;
+    // The alternatives of rule r are alternatives ruleOffsets[r] through ruleOffsets[r+1] - 1.
+    private final int[] ruleOffsets;
+    // The most weights of any single choice made while sampling.
+    private final int maxChoices;
+    // The tokens, symbols and weight of each alternative.
+    private final CFToken<StringBuilder>[][] tokens;
+    private final int[][] symbols;
+    private final double[] weights;
+    // counts[r][n] counts the derivations of rule r with n ground tokens.
+    private final double[][] counts;
+    // suffixes[a][i][n] counts the derivations of tokens i onwards of alternative a with n ground tokens.
+    private final double[][][] suffixes;
+
+    /**
+     * @param grammar CompiledTextGrammar to sample.
+     * @param maxSize int the largest size which may be sampled.
+     * @param mode Mode the distribution to sample from.
+     * @throws IllegalArgumentException if a rule has infinitely many derivations of some size, or the grammar contains
+     *                                  a token which is neither one of its rules nor a GroundToken.
+     * @throws IllegalStateException if a count overflows.
+     */
+    public SizedSampler(CompiledTextGrammar grammar, int maxSize, Mode mode) {
+        if (maxSize < 0) throw new IllegalArgumentException("maxSize must be non-negative, was " + maxSize);
+        this.grammar = grammar;
+        this.maxSize = maxSize;
+        rootId = grammar.ruleIdOf(grammar.generateRootToken());
+
+        int nRules = grammar.ruleCount();
+        ruleOffsets = new int[nRules + 1];
+        int choices = maxSize + 1;
+        for (int id = 0; id < nRules; ++id) {
+            ruleOffsets[id + 1] = ruleOffsets[id] + grammar.alternativeCount(id);
+            choices = Math.max(choices, grammar.alternativeCount(id));
+        }
+        maxChoices = choices;
+        int nAlternatives = ruleOffsets[nRules];
+        tokens = newAlternatives(nAlternatives);
+        symbols = new int[nAlternatives][];
+        weights = new double[nAlternatives];
+        suffixes = new double[nAlternatives][][];
+        for (int id = 0; id < nRules; ++id) {
+            for (int k = 0; k < grammar.alternativeCount(id); ++k) {
+                int a = ruleOffsets[id] + k;
+                tokens[a] = grammar.alternative(id, k);
+                symbols[a] = new int[tokens[a].length];
+                for (int i = 0; i < tokens[a].length; ++i) {
+                    symbols[a][i] = symbol(tokens[a][i]);
+                }
+                double p = grammar.probability(id, k);
+                weights[a] = (mode == Mode.WEIGHTED || p == 0) ? p : 1;
+                suffixes[a] = new double[tokens[a].length + 1][maxSize + 1];
+                suffixes[a][tokens[a].length][0] = 1;
+            }
+        }
+        counts = new double[nRules][maxSize + 1];
+
+        countEmpty();
+        Units units = new Units(mode);
+        for (int n = 1; n <= maxSize; ++n) {
+            count(n, units);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CFToken<StringBuilder>[][] newAlternatives(int length) {
+        return (CFToken<StringBuilder>[][]) new CFToken<?>[length][];
+    }
+
+    private int symbol(CFToken<StringBuilder> token) {
+        int id = grammar.ruleIdOf(token);
+        if (id >= 0) return id;
+        if (!(token instanceof GroundToken)) {
+            throw new IllegalArgumentException("Cannot count token of type " + token.getClass().getName());
+        }
+        return GROUND;
+    }
+
+    /**
+     * countEmpty counts the derivations with no ground tokens. The counts are the least solution of a system of
+     * polynomial equations, which is found by iterating from zero.
+     */
+    private void countEmpty() {
+        for (int iteration = 0; ; ++iteration) {
+            double change = 0;
+            for (int r = 0; r < counts.length; ++r) {
+                double total = 0;
+                for (int a = ruleOffsets[r]; a < ruleOffsets[r + 1]; ++a) {
+                    suffixColumn(a, 0);
+                    total += weights[a] * suffixes[a][0][0];
+                }
+                change = Math.max(change, relativeChange(counts[r][0], total));
+                counts[r][0] = total;
+            }
+            if (change <= TOLERANCE) return;
+            checkConvergence(iteration, 0);
+        }
+    }
+
+    /**
+     * units returns, for each alternative a, pairs of a rule and a coefficient, such that the number of derivations of
+     * a with size n in which a single rule produces every ground token is the sum over the pairs of the coefficient
+     * multiplied by the count of the rule for size n.
+     */
+    private double[][] units() {
+        double[][] units = new double[symbols.length][];
+        for (int a = 0; a < symbols.length; ++a) {
+            int[] s = symbols[a];
+            double[] pairs = new double[2 * s.length];
+            int nPairs = 0;
+            double prefix = 1; // The number of empty derivations of the tokens before token i.
+            for (int i = 0; i < s.length; ++i) {
+                if (s[i] == GROUND) break;
+                double coefficient = prefix * suffixes[a][i + 1][0];
+                if (coefficient != 0) {
+                    pairs[nPairs++] = s[i];
+                    pairs[nPairs++] = coefficient;
+                }
+                prefix *= counts[s[i]][0];
+            }
+            units[a] = Arrays.copyOf(pairs, nPairs);
+        }
+        return units;
+    }
+
+    /**
+     * count counts the derivations with n ground tokens. Those in which a single rule produces every ground token
+     * depend linearly on the counts being computed, and are found by solving the unit system.
+     */
+    private void count(int n, Units units) {
+        // First count the derivations in which no single rule produces all n ground tokens.
+        double[] known = new double[counts.length];
+        for (int r = 0; r < counts.length; ++r) {
+            for (int a = ruleOffsets[r]; a < ruleOffsets[r + 1]; ++a) {
+                suffixColumn(a, n);
+                known[r] += weights[a] * suffixes[a][0][n];
+            }
+        }
+        units.solve(n, known);
+        for (int a = 0; a < symbols.length; ++a) {
+            suffixColumn(a, n);
+        }
+    }
+
+    /**
+     * suffixColumn computes the counts of each suffix of alternative a for size n, from the counts of every rule for
+     * sizes up to n.
+     */
+    private void suffixColumn(int a, int n) {
+        int[] s = symbols[a];
+        double[][] suffix = suffixes[a];
+        for (int i = s.length - 1; i >= 0; --i) {
+            double total = 0;
+            if (s[i] == GROUND) {
+                if (n > 0) total = suffix[i + 1][n - 1];
+            } else {
+                double[] c = counts[s[i]];
+                for (int b = 0; b <= n; ++b) {
+                    total += c[b] * suffix[i + 1][n - b];
+                }
+            }
+            suffix[i][n] = total;
+        }
+    }
+
+    private static double relativeChange(double previous, double next) {
+        if (Double.isInfinite(next) || Double.isNaN(next)) {
+            throw new IllegalStateException("Derivation counts are too large to represent");
+        }
+        return next == previous ? 0 : Math.abs(next - previous) / Math.max(Math.abs(next), Double.MIN_NORMAL);
+    }
+
+    private static void checkFinite(double count) {
+        if (Double.isInfinite(count) || Double.isNaN(count)) {
+            throw new IllegalStateException("Derivation counts are too large to represent");
+        }
+    }
+
+    private static void checkConvergence(int iteration, int n) {
+        if (iteration >= MAX_ITERATIONS) {
+            throw new IllegalArgumentException("The grammar has infinitely many derivations of size " + n);
+        }
+    }
+
+    /**
+     * @return int the largest size which may be sampled.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param size int a number of ground tokens, no greater than maxSize.
+     * @return double the number of derivations of the grammar with the given size in UNIFORM mode, or the probability
+     *                that the grammar generates a derivation of the given size in WEIGHTED mode.
+     */
+    public double count(int size) {
+        checkSize(size);
+        if (rootId < 0) return size == 0 ? 1 : 0;
+        return counts[rootId][size];
+    }
+
+    /**
+     * @param size int the number of ground tokens to generate.
+     * @param rand Random the random number generator to use.
+     * @return StringBuilder the generated text.
+     */
+    public StringBuilder sample(int size, Random rand) {
+        return sample(size, RandomSource.of(rand));
+    }
+
+    /**
+     * @param size int the number of ground tokens to generate.
+     * @param rand RandomSource the source of random numbers to use.
+     * @return StringBuilder the generated text.
+     * @throws IllegalArgumentException if the grammar has no derivations of the given size.
+     */
+    public StringBuilder sample(int size, RandomSource rand) {
+        if (count(size) == 0) throw new IllegalArgumentException("The grammar has no derivations of size " + size);
+        return generate(size, rand);
+    }
+
+    /**
+     * sample generates text whose size lies within a range. Each size is chosen in proportion to its count, so that
+     * in UNIFORM mode every derivation in the range is equally likely.
+     *
+     * @param minSize int the smallest number of ground tokens to generate.
+     * @param maxSize int the largest number of ground tokens to generate.
+     * @param rand RandomSource the source of random numbers to use.
+     * @return StringBuilder the generated text.
+     * @throws IllegalArgumentException if the grammar has no derivations in the range.
+     */
+    public StringBuilder sample(int minSize, int maxSize, RandomSource rand) {
+        checkSize(minSize);
+        checkSize(maxSize);
+        if (minSize > maxSize) {
+            throw new IllegalArgumentException("minSize must not exceed maxSize, was " + minSize + " > " + maxSize);
+        }
+        double[] weights = new double[maxSize - minSize + 1];
+        double total = 0;
+        for (int n = minSize; n <= maxSize; ++n) {
+            weights[n - minSize] = count(n);
+            total += count(n);
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("The grammar has no derivations of sizes " + minSize + " to " + maxSize);
+        }
+        return generate(minSize + rand.choose(weights, weights.length), rand);
+    }
+
+    private void checkSize(int size) {
+        if (size < 0 || size > maxSize) {
+            throw new IllegalArgumentException("size must be between 0 and " + maxSize + ", was " + size);
+        }
+    }
+
+    /**
+     * generate expands the root with the given size, which must have a non-zero count, leftmost token first.
+     */
+    private StringBuilder generate(int size, RandomSource rand) {
+        StringBuilder result = grammar.blankEntity();
+        if (rootId < 0) return grammar.generateRootToken().act(result);
+
+        CFToken<StringBuilder>[] stack = CFToken.newArray(16);
+        int[] sizes = new int[16];
+        int top = 0;
+        stack[top] = grammar.rule(rootId);
+        sizes[top++] = size;
+        int[] split = new int[16];
+        // Scratch space for the weights of each choice.
+        double[] weights = new double[maxChoices];
+        while (top > 0) {
+            CFToken<StringBuilder> token = stack[--top];
+            int n = sizes[top];
+            int r = grammar.ruleIdOf(token);
+            if (r < 0) {
+                result = token.act(result);
+                continue;
+            }
+            int a = chooseAlternative(r, n, weights, rand);
+            int[] s = symbols[a];
+            if (split.length < s.length) split = new int[s.length];
+            divide(a, n, split, weights, rand);
+            if (top + s.length > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + s.length));
+                sizes = Arrays.copyOf(sizes, stack.length);
+            }
+            // Push in reverse, so that the leftmost token is expanded first.
+            for (int i = s.length - 1; i >= 0; --i) {
+                stack[top] = tokens[a][i];
+                sizes[top++] = split[i];
+            }
+        }
+        return result;
+    }
+
+    private int chooseAlternative(int r, int n, double[] weights, RandomSource rand) {
+        int count = ruleOffsets[r + 1] - ruleOffsets[r];
+        for (int k = 0; k < count; ++k) {
+            int a = ruleOffsets[r] + k;
+            weights[k] = this.weights[a] * suffixes[a][0][n];
+        }
+        return ruleOffsets[r] + rand.choose(weights, count);
+    }
+
+    /**
+     * divide splits n ground tokens between the tokens of alternative a, choosing each division in proportion to the
+     * number of its derivations.
+     */
+    private void divide(int a, int n, int[] split, double[] weights, RandomSource rand) {
+        int[] s = symbols[a];
+        double[][] suffix = suffixes[a];
+        for (int i = 0; i < s.length; ++i) {
+            if (s[i] == GROUND) {
+                split[i] = 1;
+                n -= 1;
+                continue;
+            }
+            double[] c = counts[s[i]];
+            for (int b = 0; b <= n; ++b) {
+                weights[b] = c[b] * suffix[i + 1][n - b];
+            }
+            split[i] = rand.choose(weights, n + 1);
+            n -= split[i];
+        }
+    }
+
+    /**
+     * Units is the linear system satisfied by the counts of each size n greater than zero: the count of rule r is
+     * known[r], the number of derivations in which no single rule produces every ground token, plus the count of each
+     * rule r' multiplied by the unit coefficient of r' in r. The rules are split into the strongly connected components
+     * of the graph of their unit coefficients, which are solved one at a time, each after every component it refers to.
+     */
+    private final class Units {
+        // The rules with a unit coefficient in each rule, and the coefficients.
+        private final int[][] children;
+        private final double[][] coefficients;
+        // The components, each after every component it refers to, and the component of each rule and its position
+        // within it.
+        private final List<int[]> components = new ArrayList<>();
+        private final int[] componentOf;
+        private final int[] position;
+        // For each component, null if its rules do not refer to each other, or else the LU decomposition of I - U
+        // within it, with the row swapped into each position, or an empty array if its counts are infinite.
+        private final List<double[][]> factors = new ArrayList<>();
+        private final List<int[]> pivots = new ArrayList<>();
+
+        Units(Mode mode) {
+            double[][] units = units();
+            int nRules = counts.length;
+            children = new int[nRules][];
+            coefficients = new double[nRules][];
+            for (int r = 0; r < nRules; ++r) {
+                int size = 0;
+                for (int a = ruleOffsets[r]; a < ruleOffsets[r + 1]; ++a) {
+                    size += units[a].length / 2;
+                }
+                children[r] = new int[size];
+                coefficients[r] = new double[size];
+                int k = 0;
+                for (int a = ruleOffsets[r]; a < ruleOffsets[r + 1]; ++a) {
+                    for (int p = 0; p < units[a].length; p += 2) {
+                        children[r][k] = (int) units[a][p];
+                        coefficients[r][k++] = weights[a] * units[a][p + 1];
+                    }
+                }
+            }
+            componentOf = new int[nRules];
+            position = new int[nRules];
+            connect();
+            for (int[] component : components) {
+                double[][] lu = null;
+                int[] pivot = null;
+                if (isCycle(component)) {
+                    lu = new double[0][];
+                    if (mode == Mode.WEIGHTED) {
+                        pivot = new int[component.length];
+                        lu = decompose(component, pivot);
+                    }
+                }
+                factors.add(lu);
+                pivots.add(pivot);
+            }
+        }
+
+        /**
+         * connect finds the strongly connected components using Tarjan's algorithm, which finds each component only
+         * after every component it refers to. The rules being visited are kept on an explicit stack, so that long
+         * chains of rules do not overflow the stack of the thread.
+         */
+        private void connect() {
+            int nRules = children.length;
+            int[] index = new int[nRules];
+            int[] lowLink = new int[nRules];
+            int[] nextChild = new int[nRules];
+            boolean[] onStack = new boolean[nRules];
+            int[] stack = new int[nRules];
+            int[] callStack = new int[nRules];
+            Arrays.fill(index, -1);
+            int nextIndex = 0;
+            int stackTop = 0;
+            for (int root = 0; root < nRules; ++root) {
+                if (index[root] >= 0) continue;
+                int depth = 0;
+                callStack[0] = root;
+                index[root] = lowLink[root] = nextIndex++;
+                stack[stackTop++] = root;
+                onStack[root] = true;
+                while (depth >= 0) {
+                    int v = callStack[depth];
+                    if (nextChild[v] < children[v].length) {
+                        int w = children[v][nextChild[v]++];
+                        if (index[w] < 0) {
+                            index[w] = lowLink[w] = nextIndex++;
+                            stack[stackTop++] = w;
+                            onStack[w] = true;
+                            callStack[++depth] = w;
+                        } else if (onStack[w]) {
+                            lowLink[v] = Math.min(lowLink[v], index[w]);
+                        }
+                        continue;
+                    }
+                    // Every child of v has been visited.
+                    if (lowLink[v] == index[v]) {
+                        int start = stackTop;
+                        do {
+                            onStack[stack[--start]] = false;
+                            componentOf[stack[start]] = components.size();
+                        } while (stack[start] != v);
+                        for (int k = start; k < stackTop; ++k) {
+                            position[stack[k]] = k - start;
+                        }
+                        components.add(Arrays.copyOfRange(stack, start, stackTop));
+                        stackTop = start;
+                    }
+                    if (--depth >= 0) {
+                        int parent = callStack[depth];
+                        lowLink[parent] = Math.min(lowLink[parent], lowLink[v]);
+                    }
+                }
+            }
+        }
+
+        private boolean isCycle(int[] component) {
+            if (component.length > 1) return true;
+            int r = component[0];
+            for (int child : children[r]) {
+                if (child == r) return true;
+            }
+            return false;
+        }
+
+        /**
+         * decompose computes the LU decomposition of I - U within a component, with partial pivoting.
+         *
+         * @return double[][] the decomposition, or an empty array if I - U is singular, so that the spectral radius of
+         *                    U is one and the counts of the component are infinite.
+         */
+        private double[][] decompose(int[] component, int[] pivot) {
+            int s = component.length;
+            double[][] a = new double[s][s];
+            for (int i = 0; i < s; ++i) {
+                int r = component[i];
+                a[i][i] = 1;
+                pivot[i] = i;
+                for (int j = 0; j < children[r].length; ++j) {
+                    int child = children[r][j];
+                    if (componentOf[child] != componentOf[r]) continue;
+                    a[i][position[child]] -= coefficients[r][j];
+                }
+            }
+            for (int k = 0; k < s; ++k) {
+                int best = k;
+                for (int i = k + 1; i < s; ++i) {
+                    if (Math.abs(a[i][k]) > Math.abs(a[best][k])) best = i;
+                }
+                if (Math.abs(a[best][k]) < EPSILON) return new double[0][];
+                double[] row = a[k];
+                a[k] = a[best];
+                a[best] = row;
+                int p = pivot[k];
+                pivot[k] = pivot[best];
+                pivot[best] = p;
+                for (int i = k + 1; i < s; ++i) {
+                    double factor = a[i][k] / a[k][k];
+                    a[i][k] = factor;
+                    for (int j = k + 1; j < s; ++j) {
+                        a[i][j] -= factor * a[k][j];
+                    }
+                }
+            }
+            return a;
+        }
+
+        /**
+         * solve computes the counts of every rule with n ground tokens.
+         *
+         * @param known double[] the number of derivations of each rule in which no single rule produces every ground
+         *                       token.
+         * @throws IllegalArgumentException if a unit cycle has infinitely many derivations of size n.
+         */
+        void solve(int n, double[] known) {
+            for (int c = 0; c < components.size(); ++c) {
+                int[] component = components.get(c);
+                int s = component.length;
+                double[] b = new double[s];
+                boolean derivable = false;
+                for (int i = 0; i < s; ++i) {
+                    int r = component[i];
+                    double total = known[r];
+                    for (int j = 0; j < children[r].length; ++j) {
+                        int child = children[r][j];
+                        if (componentOf[child] != c) total += coefficients[r][j] * counts[child][n];
+                    }
+                    checkFinite(total);
+                    b[i] = total;
+                    derivable |= total != 0;
+                }
+                double[][] lu = factors.get(c);
+                if (lu == null) {
+                    counts[component[0]][n] = b[0];
+                    continue;
+                }
+                if (!derivable) continue;
+                if (lu.length == 0) {
+                    throw new IllegalArgumentException("The grammar has infinitely many derivations of size " + n);
+                }
+                // Solve L y = P b, then U x = y.
+                int[] pivot = pivots.get(c);
+                double[] x = new double[s];
+                for (int i = 0; i < s; ++i) {
+                    double total = b[pivot[i]];
+                    for (int j = 0; j < i; ++j) {
+                        total -= lu[i][j] * x[j];
+                    }
+                    x[i] = total;
+                }
+                for (int i = s - 1; i >= 0; --i) {
+                    double total = x[i];
+                    for (int j = i + 1; j < s; ++j) {
+                        total -= lu[i][j] * x[j];
+                    }
+                    x[i] = total / lu[i][i];
+                }
+                for (int i = 0; i < s; ++i) {
+                    checkFinite(x[i]);
+                    // A negative solution means the spectral radius of U is greater than one.
+                    if (x[i] < 0) {
+                        throw new IllegalArgumentException("The grammar has infinitely many derivations of size " + n);
+                    }
+                    counts[component[i]][n] = x[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * SymbolSequenceRunner expands a CompiledTextGrammar into a sequence of int symbols, one for each ground token, without
+ * creating a StringBuilder or any other object along the way. It is meant for consumers which only need to know which
+ * tokens were generated, such as tokenizers and encoders, and would otherwise throw the generated text away.
+ *
+ * Each distinct ground token of the grammar is assigned a symbol when the runner is created. Literals which have the
+ * same text and no custom action share a symbol, so symbols can be compared to find repeated text. The token behind a
+ * symbol can be recovered using terminal, and a sequence of symbols can be turned back into text using decode.
+ *
+ * Rules are expanded leftmost-first, and the random choices are made exactly as in a GroundSequenceRunner in LEFTMOST
+ * mode, so that decoding the symbols generated from a seed yields the text that runner generates from the same seed.
+ *
+ * A SymbolSequenceRunner reuses its buffers between runs, and is not thread-safe. Use fork to create a runner for
+ * another thread, which shares the encoded grammar of this one.
+ */
+public final class SymbolSequenceRunner {
+
+    private final CompiledTextGrammar grammar;
+    // The symbols of alternative a are symbols[symbolOffsets[a]] through symbols[symbolOffsets[a+1] - 1], where
+    // alternatives are indexed as in the grammar. Each symbol is either a rule id, or the complement of a symbol.
+    private final int[] ruleOffsets;
+    private final int[] symbolOffsets;
+    private final int[] symbols;
+    // The ground tokens of the grammar, indexed by symbol.
+    private final CFToken<StringBuilder>[] terminals;
+    // The id of the root rule, or -1 if the grammar always generates nothing.
+    private final int rootId;
+
+    private int[] stack = new int[16];
+    private int[] output = new int[64];
+    private int length;
+
+    /**
+     * @param grammar CompiledTextGrammar to expand.
+     * @throws IllegalArgumentException if the grammar contains a token which is neither one of its rules, nor a
+     *                                  GroundToken.
+     */
+    public SymbolSequenceRunner(CompiledTextGrammar grammar) {
+        this.grammar = grammar;
+        int n = grammar.ruleCount();
+        ruleOffsets = new int[n + 1];
+        for (int id = 0; id < n; ++id) {
+            ruleOffsets[id + 1] = ruleOffsets[id] + grammar.alternativeCount(id);
+        }
+
+        Map<String, Integer> texts = new HashMap<>();
+        Map<CFToken<StringBuilder>, Integer> tokens = new IdentityHashMap<>();
+        ArrayList<CFToken<StringBuilder>> terminalList = new ArrayList<>();
+        symbolOffsets = new int[ruleOffsets[n] + 1];
+        int[] symbols = new int[ruleOffsets[n]];
+        int s = 0;
+        for (int id = 0; id < n; ++id) {
+            for (int k = 0; k < grammar.alternativeCount(id); ++k) {
+                CFToken<StringBuilder>[] alternative = grammar.alternative(id, k);
+                if (s + alternative.length > symbols.length) {
+                    symbols = Arrays.copyOf(symbols, Math.max(symbols.length * 2, s + alternative.length));
+                }
+                for (CFToken<StringBuilder> token : alternative) {
+                    symbols[s++] = encode(token, texts, tokens, terminalList);
+                }
+                symbolOffsets[ruleOffsets[id] + k + 1] = s;
+            }
+        }
+        this.symbols = symbols;
+        terminals = terminalList.toArray(CFToken.empty());
+        rootId = grammar.ruleIdOf(grammar.generateRootToken());
+    }
+
+    private SymbolSequenceRunner(SymbolSequenceRunner other) {
+        grammar = other.grammar;
+        ruleOffsets = other.ruleOffsets;
+        symbolOffsets = other.symbolOffsets;
+        symbols = other.symbols;
+        terminals = other.terminals;
+        rootId = other.rootId;
+    }
+
+    private int encode(CFToken<StringBuilder> token, Map<String, Integer> texts,
+                       Map<CFToken<StringBuilder>, Integer> tokens, ArrayList<CFToken<StringBuilder>> terminalList) {
+        int id = grammar.ruleIdOf(token);
+        if (id >= 0) return id;
+        if (!(token instanceof GroundToken)) {
+            throw new IllegalArgumentException("Cannot encode token of type " + token.getClass().getName());
+        }
+        boolean plain = token instanceof TextGrammar.Literal && ((TextGrammar.Literal) token).isPlain();
+        Integer symbol = plain ? texts.get(((TextGrammar.Literal) token).text) : tokens.get(token);
+        if (symbol == null) {
+            symbol = terminalList.size();
+            terminalList.add(token);
+            if (plain) {
+                texts.put(((TextGrammar.Literal) token).text, symbol);
+            } else {
+                tokens.put(token, symbol);
+            }
+        }
+        return ~symbol;
+    }
+
+    /**
+     * fork creates a runner which shares the encoded grammar of this one, but has its own buffers.
+     *
+     * @return SymbolSequenceRunner a runner which may be used by another thread.
+     */
+    public SymbolSequenceRunner fork() {
+        return new SymbolSequenceRunner(this);
+    }
+
+    /**
+     * @return CompiledTextGrammar the grammar this runner expands.
+     */
+    public CompiledTextGrammar getGrammar() {
+        return grammar;
+    }
+
+    /**
+     * @return int the number of distinct symbols, which are numbered from 0.
+     */
+    public int symbolCount() {
+        return terminals.length;
+    }
+
+    /**
+     * @param symbol int a symbol generated by this runner.
+     * @return CFToken the ground token of the grammar which the symbol stands for.
+     */
+    public CFToken<StringBuilder> terminal(int symbol) {
+        return terminals[symbol];
+    }
+
+    /**
+     * run() generates a sequence of symbols using the ThreadLocalRandom of the current thread.
+     *
+     * @return int the number of symbols generated.
+     */
+    public int run() {
+        return run(RandomSource.threadLocal());
+    }
+
+    /**
+     * @param rand Random the RNG to use during the run.
+     * @return int the number of symbols generated.
+     */
+    public int run(Random rand) {
+        return run(RandomSource.of(rand));
+    }
+
+    /**
+     * run generates a sequence of symbols, which can be read from symbols() until the next run.
+     *
+     * @param rand RandomSource the source of random numbers to use during the run.
+     * @return int the number of symbols generated.
+     * @throws TextGrammar.ReplaceException if a rule without alternatives is reached.
+     */
+    public int run(RandomSource rand) {
+        int[] stack = this.stack;
+        int[] output = this.output;
+        int j = 0;
+        int top = 0;
+        if (rootId >= 0) stack[top++] = rootId;
+
+        while (top > 0) {
+            int symbol = stack[--top];
+            if (symbol < 0) {
+                if (j == output.length) output = this.output = Arrays.copyOf(output, j * 2);
+                output[j++] = ~symbol;
+                continue;
+            }
+            int a = ruleOffsets[symbol] + grammar.choose(symbol, rand);
+            int start = symbolOffsets[a];
+            int end = symbolOffsets[a + 1];
+            if (top + end - start > stack.length) {
+                stack = this.stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + end - start));
+            }
+            // Push in reverse, so that the leftmost symbol is expanded first.
+            for (int s = end - 1; s >= start; --s) {
+                stack[top++] = symbols[s];
+            }
+        }
+        length = j;
+        return j;
+    }
+
+    /**
+     * run generates a sequence of symbols and puts it into a buffer.
+     *
+     * @param rand RandomSource the source of random numbers to use during the run.
+     * @param out IntBuffer to put the symbols into, starting at its position.
+     * @return int the number of symbols generated.
+     * @throws java.nio.BufferOverflowException if the buffer does not have room for every symbol, in which case none
+     *                                          are put into it.
+     */
+    public int run(RandomSource rand, IntBuffer out) {
+        int n = run(rand);
+        out.put(output, 0, n);
+        return n;
+    }
+
+    /**
+     * @return int[] the symbols generated by the last run, in its first length() elements. The array is reused by the
+     *               next run, and must not be modified.
+     */
+    public int[] symbols() {
+        return output;
+    }
+
+    /**
+     * @return int the number of symbols generated by the last run.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * decode acts on an entity with the ground token of each of a sequence of symbols, in order.
+     *
+     * @param symbols int[] containing the symbols to decode.
+     * @param from int the index of the first symbol to decode.
+     * @param to int the index after the last symbol to decode.
+     * @param entity StringBuilder to act on.
+     * @return StringBuilder the entity after every token has acted on it.
+     */
+    public StringBuilder decode(int[] symbols, int from, int to, StringBuilder entity) {
+        for (int i = from; i < to; ++i) {
+            entity = terminals[symbols[i]].act(entity);
+        }
+        return entity;
+    }
+}
@@ -18,28 +18,41 @@
  */
 package com.github.kalexmills.stochrammar.impl;
 
+import com.github.kalexmills.stochrammar.AliasTable;
 import com.github.kalexmills.stochrammar.CFToken;
 import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.RandomSource;
 import com.github.kalexmills.stochrammar.StochasticGrammar;
+import com.github.kalexmills.stochrammar.TokenAction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Random;
 
 /**
  * A generic grammar which returns plaintext in the form of StringBuilders. Clients can add ProductionRules, each of
  * which is associated with a unique string key. The key "ROOT" is reserved for the root production rule.
  *
+ * When a key has more than one ProductionRule, one of them is chosen at random each time the key is replaced. The
+ * choice is uniform unless the rules were added with different weights, in which case it is made in constant time
+ * using an AliasTable.
+ *
+ * Once all rules have been added, a TextGrammar can be compiled into an immutable CompiledTextGrammar, which expands
+ * rules using array indexing instead of key lookups. Grammars can also be read from text files by a TextGrammarParser.
+ *
  * TODO: provide convenient Builder class.
  */
 public class TextGrammar extends CFToken<StringBuilder> implements StochasticGrammar<StringBuilder> {
 
     public static final String ROOT_KEY = "ROOT";
 
-    private HashMap<String, ArrayList<CFToken<StringBuilder>[]>> replaceMap;
+    private HashMap<String, Alternatives> replaceMap;
 
     public TextGrammar() {
-        replaceMap = new HashMap<>();
+        // Insertion order determines the ids assigned to rules by compile().
+        replaceMap = new LinkedHashMap<>();
     }
 
     /**
@@ -49,15 +62,76 @@ public class TextGrammar extends CFToken<StringBuilder> implements StochasticGra
      * @param tokens BaseToken... list of BaseTokens associated with the RHS of the ProductionRule added.
      */
     public void addRule(String key, CFToken<StringBuilder>... tokens) {
-        if(!replaceMap.containsKey(key)) replaceMap.put(key, new ArrayList<>());
-        replaceMap.get(key).add(tokens);
+        addRule(key, 1.0, tokens);
+    }
+
+    /**
+     * addRule adds a weighted ProductionRule to this TextGrammar. Whenever the key is replaced, each of its
+     * ProductionRules is chosen with probability proportional to its weight. ProductionRules added without a weight
+     * have a weight of 1. A ProductionRule with a weight of 0 is never chosen, and replacing a key whose
+     * ProductionRules all have a weight of 0 throws a ReplaceException.
+     *
+     * @param key String key associated with the LHS of the ProductionRule added
+     * @param weight double non-negative relative weight of the ProductionRule added.
+     * @param tokens BaseToken... list of BaseTokens associated with the RHS of the ProductionRule added.
+     * @throws IllegalArgumentException if weight is negative or not finite.
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final void addRule(String key, double weight, CFToken<StringBuilder>... tokens) {
+        if (!(weight >= 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Weights must be finite and non-negative, was " + weight);
+        }
+        Alternatives alternatives = replaceMap.get(key);
+        if (alternatives == null) {
+            alternatives = new Alternatives();
+            replaceMap.put(key, alternatives);
+        }
+        alternatives.add(weight, tokens);
+    }
+
+    /**
+     * compile freezes the rules currently in this TextGrammar into a CompiledTextGrammar. Rules added to this
+     * TextGrammar afterwards do not affect the result.
+     *
+     * @return CompiledTextGrammar an immutable grammar which generates the same text as this one.
+     */
+    public CompiledTextGrammar compile() {
+        return compile(false);
+    }
+
+    /**
+     * compile freezes the rules currently in this TextGrammar into a CompiledTextGrammar, optionally flattening them.
+     * A flattened grammar inlines every rule which has a single alternative into the rules which refer to it, and
+     * merges each run of adjacent Literals into a single Literal, so that fewer tokens are replaced and appended when it
+     * is run. Rules which refer to themselves through a chain of single alternatives are inlined only once. A flattened
+     * grammar generates the same language as this one, but it draws fewer random numbers, so a seed generally produces
+     * different text than it does with this grammar. Literals whose action has been changed are never merged.
+     *
+     * @param flatten boolean true to inline single alternatives and merge adjacent Literals.
+     * @return CompiledTextGrammar an immutable grammar which generates the same language as this one.
+     */
+    public CompiledTextGrammar compile(boolean flatten) {
+        return new CompiledTextGrammar(this, replaceMap, flatten);
     }
 
     @Override
     public CFToken<StringBuilder>[] replace(Random rand) {
-        if(!replaceMap.containsKey(ROOT_KEY)) return CFToken.EMPTY;
-        ArrayList<CFToken<StringBuilder>[]> roots = replaceMap.get(ROOT_KEY);
-        return roots.get(rand.nextInt(roots.size()));
+        Alternatives roots = replaceMap.get(ROOT_KEY);
+        if (roots == null) return CFToken.empty();
+        return choosable(roots, ROOT_KEY).choose(rand);
+    }
+
+    @Override
+    public CFToken<StringBuilder>[] replace(RandomSource rand) {
+        Alternatives roots = replaceMap.get(ROOT_KEY);
+        if (roots == null) return CFToken.empty();
+        return choosable(roots, ROOT_KEY).choose(rand);
+    }
+
+    private static Alternatives choosable(Alternatives alternatives, String key) {
+        if (!alternatives.isChoosable()) throw new ReplaceException("Every alternative of key " + key + " has weight 0");
+        return alternatives;
     }
 
     @Override
@@ -75,10 +149,33 @@ public class TextGrammar extends CFToken<StringBuilder> implements StochasticGra
      */
     public class Literal extends GroundToken<StringBuilder> {
         String text;
+        // False once the action which appends the text has been replaced.
+        private boolean plain = true;
 
         public Literal(String text) {
             this.text = text;
-            this.setAction((StringBuilder str) -> str.append(text));
+            super.setAction((StringBuilder str) -> str.append(text));
+        }
+
+        @Override
+        public void setAction(TokenAction<StringBuilder> action) {
+            super.setAction(action);
+            plain = false;
+        }
+
+        /**
+         * @return int the length of the text of this Literal.
+         */
+        public int length() {
+            return text.length();
+        }
+
+        /**
+         * @return boolean true if acting with this Literal does nothing but append its text, so that it may be merged
+         *                 with the Literals next to it.
+         */
+        boolean isPlain() {
+            return plain && getClass() == Literal.class;
         }
     }
 
@@ -96,6 +193,13 @@ public class TextGrammar extends CFToken<StringBuilder> implements StochasticGra
             this.key = key;
         }
 
+        /**
+         * @return TextGrammar the grammar whose rules this ProductionRule refers to.
+         */
+        TextGrammar grammar() {
+            return TextGrammar.this;
+        }
+
         /**
          * @param rand Random random number generator to use.
          * @return an array of grammar tokens to append to the list being grown.
@@ -103,11 +207,88 @@ public class TextGrammar extends CFToken<StringBuilder> implements StochasticGra
          */
         @Override
         public CFToken<StringBuilder>[] replace(Random rand) {
+            return alternatives().choose(rand);
+        }
+
+        /**
+         * @param rand RandomSource source of random numbers to use.
+         * @return an array of grammar tokens to append to the list being grown.
+         * @throws ReplaceException if the grammar does not contain the key by the time it is needed.
+         */
+        @Override
+        public CFToken<StringBuilder>[] replace(RandomSource rand) {
+            return alternatives().choose(rand);
+        }
+
+        private Alternatives alternatives() {
             if (replaceMap == null) throw new IllegalStateException();
-            if (!replaceMap.containsKey(key)) throw new ReplaceException("Grammar does not contain key " + key);
+            Alternatives alternatives = replaceMap.get(key);
+            if (alternatives == null) throw new ReplaceException("Grammar does not contain key " + key);
+            return choosable(alternatives, key);
+        }
+    }
+
+    /**
+     * Alternatives holds the RHS of each ProductionRule added under a single key, along with its weight.
+     */
+    static class Alternatives {
+        final ArrayList<CFToken<StringBuilder>[]> tokens = new ArrayList<>();
+        private double[] weights = new double[4];
+        // True as long as every weight added is the same and positive, in which case no AliasTable is needed.
+        private boolean uniform = true;
+        // True once a positive weight has been added.
+        private boolean choosable;
+        private AliasTable table;
+
+        void add(double weight, CFToken<StringBuilder>[] rhs) {
+            int n = tokens.size();
+            if (n == weights.length) weights = Arrays.copyOf(weights, n * 2);
+            weights[n] = weight;
+            uniform = uniform && weight > 0 && (n == 0 || weights[0] == weight);
+            choosable = choosable || weight > 0;
+            tokens.add(rhs);
+            table = null;
+        }
+
+        int size() {
+            return tokens.size();
+        }
+
+        double weight(int i) {
+            return weights[i];
+        }
+
+        boolean isUniform() {
+            return uniform;
+        }
+
+        /**
+         * @return boolean true if at least one alternative has a positive weight, so that one can be chosen.
+         */
+        boolean isChoosable() {
+            return choosable;
+        }
+
+        /**
+         * @return AliasTable a table for sampling alternatives according to their weights.
+         */
+        AliasTable aliasTable() {
+            AliasTable result = table;
+            if (result == null) {
+                result = new AliasTable(Arrays.copyOf(weights, tokens.size()));
+                table = result;
+            }
+            return result;
+        }
+
+        CFToken<StringBuilder>[] choose(Random rand) {
+            if (uniform) return tokens.get(rand.nextInt(tokens.size()));
+            return tokens.get(aliasTable().sample(rand));
+        }
 
-            ArrayList<CFToken<StringBuilder>[]> tokens = replaceMap.get(key);
-            return tokens.get(rand.nextInt(tokens.size()));
+        CFToken<StringBuilder>[] choose(RandomSource rand) {
+            if (uniform) return tokens.get(rand.choose(tokens.size()));
+            return tokens.get(rand.choose(aliasTable()));
         }
     }
 
@@ -0,0 +1,484 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TextGrammarAnalysis computes the expected size of the text generated by each rule of a TextGrammar, without running
+ * it. The grammar is treated as a multi-type branching process: expanding a rule produces a random number of copies of
+ * each other rule, whose expected values form a matrix M, and the expected sizes x of every rule satisfy x = c + Mx,
+ * where c is the expected size contributed directly by the alternatives of each rule.
+ *
+ * The system is solved separately for each strongly connected component of rules, starting with the components which
+ * refer to no others. Components of up to DENSE_LIMIT rules are solved exactly, by Gaussian elimination, which takes
+ * time cubic in their size. Larger components are solved by Gauss-Seidel iteration, each sweep of which takes time
+ * proportional to the number of references between their rules. Once the increments of successive sweeps shrink by a
+ * steady ratio, the rest of the series is extrapolated from it, so the results for large components are approximate,
+ * and a component which has not settled after MAX_SWEEPS sweeps is solved from its latest ratio. Within a component,
+ * the system has a positive solution exactly when the spectral radius of M is less than one. Otherwise, the expected
+ * size of the component is infinite, along with that of every rule which may expand into it. This includes
+ * supercritical grammars, which never terminate with positive probability, and critical grammars, which terminate
+ * almost surely but whose expected size is nonetheless infinite.
+ *
+ * Three sizes are computed for each rule: the expected number of rules expanded, the expected number of GroundTokens
+ * generated, and the expected length of the generated text. Tokens other than the rules of the grammar are assumed to be
+ * GroundTokens, and only Literals contribute to the length of the text. Rules which have no alternatives are counted as
+ * a single expansion which generates nothing.
+ */
+public final class TextGrammarAnalysis {
+    // Pivots smaller than this are treated as zero, which means the component is critical.
+    private static final double EPSILON = 1e-12;
+    // The largest component solved by Gaussian elimination.
+    static final int DENSE_LIMIT = 200;
+    // Sweeps made over larger components before the ratio of their increments may be trusted, the number of sweeps
+    // for which it must then be steady, and the most sweeps made at all.
+    private static final int MIN_SWEEPS = 20;
+    private static final int STEADY_SWEEPS = 10;
+    private static final int MAX_SWEEPS = 10000;
+    // The change in the ratio of successive increments below which it is considered steady.
+    private static final double RATIO_TOLERANCE = 1e-9;
+
+    private final CompiledTextGrammar grammar;
+    private final int rootId;
+    private final double[] expansions;
+    private final double[] groundTokens;
+    private final double[] lengths;
+
+    // Coefficients of M, stored sparsely: rule r expands into children[r][i], coefficients[r][i] times on average.
+    private final int[][] children;
+    private final double[][] coefficients;
+
+    // State used by Tarjan's algorithm. The rules being visited are kept on callStack, along with the index of the next
+    // child of each to visit, so that long chains of rules do not overflow the stack of the thread.
+    private final int[] index;
+    private final int[] lowLink;
+    private final boolean[] onStack;
+    private final int[] callStack;
+    private final int[] nextChild;
+    // The position of each rule within the component being solved, or -1 if it is not part of it.
+    private final int[] position;
+    private final int[] stack;
+    private int stackTop;
+    private int nextIndex;
+
+    private TextGrammarAnalysis(CompiledTextGrammar grammar) {
+        this.grammar = grammar;
+        int n = grammar.ruleCount();
+        rootId = grammar.ruleIdOf(grammar.generateRootToken());
+        expansions = new double[n];
+        groundTokens = new double[n];
+        lengths = new double[n];
+        children = new int[n][];
+        coefficients = new double[n][];
+
+        double[] accumulated = new double[n];
+        int[] touched = new int[n];
+        for (int r = 0; r < n; ++r) {
+            int count = 0;
+            for (int k = 0; k < grammar.alternativeCount(r); ++k) {
+                double p = grammar.probability(r, k);
+                for (CFToken<StringBuilder> token : grammar.alternative(r, k)) {
+                    int child = grammar.ruleIdOf(token);
+                    if (child >= 0) {
+                        if (accumulated[child] == 0) touched[count++] = child;
+                        accumulated[child] += p;
+                    } else {
+                        groundTokens[r] += p;
+                        if (token instanceof TextGrammar.Literal) lengths[r] += p * ((TextGrammar.Literal) token).length();
+                    }
+                }
+            }
+            children[r] = Arrays.copyOf(touched, count);
+            coefficients[r] = new double[count];
+            for (int i = 0; i < count; ++i) {
+                coefficients[r][i] = accumulated[touched[i]];
+                accumulated[touched[i]] = 0;
+            }
+            expansions[r] = 1;
+        }
+
+        index = new int[n];
+        lowLink = new int[n];
+        onStack = new boolean[n];
+        callStack = new int[n];
+        nextChild = new int[n];
+        stack = new int[n];
+        position = new int[n];
+        Arrays.fill(index, -1);
+        Arrays.fill(position, -1);
+        for (int r = 0; r < n; ++r) {
+            if (index[r] < 0) strongConnect(r);
+        }
+    }
+
+    /**
+     * @param grammar TextGrammar the grammar to analyze, as it is now.
+     * @return TextGrammarAnalysis the expected sizes of the rules of the grammar.
+     */
+    public static TextGrammarAnalysis of(TextGrammar grammar) {
+        return of(grammar.compile());
+    }
+
+    /**
+     * @param grammar CompiledTextGrammar the grammar to analyze.
+     * @return TextGrammarAnalysis the expected sizes of the rules of the grammar.
+     */
+    public static TextGrammarAnalysis of(CompiledTextGrammar grammar) {
+        return new TextGrammarAnalysis(grammar);
+    }
+
+    /**
+     * strongConnect visits the rules reachable from rule root using Tarjan's algorithm, and solves each strongly
+     * connected component as it is found. Tarjan's algorithm finds each component only after every component it refers
+     * to.
+     */
+    private void strongConnect(int root) {
+        int depth = 0;
+        callStack[0] = root;
+        visit(root);
+        while (depth >= 0) {
+            int v = callStack[depth];
+            if (nextChild[v] < children[v].length) {
+                int w = children[v][nextChild[v]++];
+                if (index[w] < 0) {
+                    visit(w);
+                    callStack[++depth] = w;
+                } else if (onStack[w]) {
+                    lowLink[v] = Math.min(lowLink[v], index[w]);
+                }
+                continue;
+            }
+            // Every child of v has been visited.
+            if (lowLink[v] == index[v]) {
+                int start = stackTop;
+                do {
+                    onStack[stack[--start]] = false;
+                } while (stack[start] != v);
+                solve(Arrays.copyOfRange(stack, start, stackTop));
+                stackTop = start;
+            }
+            if (--depth >= 0) {
+                int parent = callStack[depth];
+                lowLink[parent] = Math.min(lowLink[parent], lowLink[v]);
+            }
+        }
+    }
+
+    private void visit(int v) {
+        index[v] = lowLink[v] = nextIndex++;
+        nextChild[v] = 0;
+        stack[stackTop++] = v;
+        onStack[v] = true;
+    }
+
+    /**
+     * solve computes the expected sizes of the rules in one strongly connected component, given the expected sizes of
+     * every rule outside it. Before the call, the sizes of each rule hold their constant terms.
+     */
+    private void solve(int[] component) {
+        int s = component.length;
+        for (int i = 0; i < s; ++i) {
+            position[component[i]] = i;
+        }
+
+        // For a small component, the augmented matrix [I - M | c], with one column of constants for each size. For a
+        // large one, only the constants c.
+        boolean dense = s <= DENSE_LIMIT;
+        int c = dense ? s : 0;
+        double[][] a = new double[s][c + 3];
+        boolean divergent = false;
+        for (int i = 0; i < s; ++i) {
+            int r = component[i];
+            if (dense) a[i][i] = 1;
+            a[i][c] = expansions[r];
+            a[i][c + 1] = groundTokens[r];
+            a[i][c + 2] = lengths[r];
+            for (int j = 0; j < children[r].length; ++j) {
+                int child = children[r][j];
+                double m = coefficients[r][j];
+                if (position[child] >= 0) {
+                    if (dense) a[i][position[child]] -= m;
+                } else if (m > 0) {
+                    a[i][c] += m * expansions[child];
+                    a[i][c + 1] += m * groundTokens[child];
+                    a[i][c + 2] += m * lengths[child];
+                    divergent |= Double.isInfinite(expansions[child]);
+                }
+            }
+        }
+
+        if (!divergent) divergent = dense ? !eliminate(a) : !iterate(component, a);
+        for (int i = 0; i < s; ++i) {
+            int r = component[i];
+            // A positive solution exists only when the spectral radius of M is less than one.
+            if (divergent || !(a[i][c] > 0) || Double.isInfinite(a[i][c])) {
+                divergent = true;
+                break;
+            }
+            expansions[r] = a[i][c];
+            groundTokens[r] = Math.max(0, a[i][c + 1]);
+            lengths[r] = Math.max(0, a[i][c + 2]);
+        }
+        for (int r : component) {
+            position[r] = -1;
+            if (divergent) expansions[r] = groundTokens[r] = lengths[r] = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * iterate solves the system for a large component by Gauss-Seidel iteration from x = c, replacing the constants c
+     * in each row of a with the solution. Since M and c are non-negative, x only grows, and its increments come to
+     * shrink by a steady ratio, the spectral radius of the iteration, which is less than one exactly when that of M is.
+     * The increments which remain then sum to ratio / (1 - ratio) times the last of them.
+     *
+     * @return boolean false if the increments do not shrink, so that the spectral radius of M is at least one.
+     */
+    private boolean iterate(int[] component, double[][] a) {
+        int s = component.length;
+        double[][] x = new double[3][s];
+        double[][] increments = new double[3][s];
+        for (int i = 0; i < s; ++i) {
+            for (int t = 0; t < 3; ++t) {
+                x[t][i] = a[i][t];
+            }
+        }
+        double previousIncrement = Double.NaN;
+        double previousRatio = Double.NaN;
+        double ratio = Double.NaN;
+        int steady = 0;
+        for (int sweep = 1; sweep <= MAX_SWEEPS; ++sweep) {
+            double increment = 0;
+            double largest = 0;
+            // The component lists its rules in the order they were visited, so sweeping it backwards mostly updates
+            // the rules each one references before the rule itself.
+            for (int i = s - 1; i >= 0; --i) {
+                int r = component[i];
+                for (int t = 0; t < 3; ++t) {
+                    double next = a[i][t];
+                    for (int j = 0; j < children[r].length; ++j) {
+                        int p = position[children[r][j]];
+                        if (p >= 0) next += coefficients[r][j] * x[t][p];
+                    }
+                    increments[t][i] = next - x[t][i];
+                    x[t][i] = next;
+                }
+                increment = Math.max(increment, increments[0][i]);
+                largest = Math.max(largest, x[0][i]);
+            }
+            if (Double.isInfinite(largest)) return false;
+            if (increment <= EPSILON * largest) {
+                ratio = 0;
+                break;
+            }
+            ratio = increment / previousIncrement;
+            steady = Math.abs(ratio - previousRatio) < RATIO_TOLERANCE ? steady + 1 : 0;
+            if (sweep >= MIN_SWEEPS && steady >= STEADY_SWEEPS) break;
+            previousIncrement = increment;
+            previousRatio = ratio;
+        }
+        if (!(ratio < 1 - EPSILON)) return false;
+        double scale = ratio / (1 - ratio);
+        for (int i = 0; i < s; ++i) {
+            for (int t = 0; t < 3; ++t) {
+                a[i][t] = x[t][i] + scale * increments[t][i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * eliminate solves the augmented system in place by Gauss-Jordan elimination with partial pivoting, leaving the
+     * solution in the columns to the right of the square matrix.
+     *
+     * @return boolean false if the matrix is singular.
+     */
+    private static boolean eliminate(double[][] a) {
+        int s = a.length;
+        for (int col = 0; col < s; ++col) {
+            int pivot = col;
+            for (int row = col + 1; row < s; ++row) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) pivot = row;
+            }
+            if (Math.abs(a[pivot][col]) < EPSILON) return false;
+            double[] temp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = temp;
+
+            double scale = 1 / a[col][col];
+            for (int j = col; j < a[col].length; ++j) {
+                a[col][j] *= scale;
+            }
+            for (int row = 0; row < s; ++row) {
+                double factor = a[row][col];
+                if (row == col || factor == 0) continue;
+                for (int j = col; j < a[row].length; ++j) {
+                    a[row][j] -= factor * a[col][j];
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return CompiledTextGrammar the grammar which was analyzed.
+     */
+    public CompiledTextGrammar grammar() {
+        return grammar;
+    }
+
+    /**
+     * @return boolean true if the expected size of the text generated from the root of the grammar is finite.
+     */
+    public boolean isFinite() {
+        return rootId < 0 || !Double.isInfinite(expansions[rootId]);
+    }
+
+    /**
+     * @param key String the key of a rule.
+     * @return boolean true if the expected size of the text generated by the rule is finite.
+     */
+    public boolean isFinite(String key) {
+        return !Double.isInfinite(expansions[id(key)]);
+    }
+
+    /**
+     * @return List the keys of every rule whose expected size is infinite, in the order of their ids.
+     */
+    public List<String> divergentRules() {
+        List<String> result = new ArrayList<>();
+        for (int r = 0; r < expansions.length; ++r) {
+            if (Double.isInfinite(expansions[r])) result.add(grammar.key(r));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * requireFinite rejects grammars whose root may generate text of infinite expected size.
+     *
+     * @return TextGrammarAnalysis this analysis.
+     * @throws DivergentGrammarException if the expected size of the text generated from the root is infinite.
+     */
+    public TextGrammarAnalysis requireFinite() {
+        if (!isFinite()) throw new DivergentGrammarException(divergentRules());
+        return this;
+    }
+
+    /**
+     * @return double the expected number of rules expanded to generate a text, including the root.
+     */
+    public double expectedExpansions() {
+        return rootId < 0 ? 0 : expansions[rootId];
+    }
+
+    /**
+     * @return double the expected number of GroundTokens in a generated text.
+     */
+    public double expectedGroundTokens() {
+        return rootId < 0 ? 0 : groundTokens[rootId];
+    }
+
+    /**
+     * @return double the expected length of a generated text.
+     */
+    public double expectedLength() {
+        return rootId < 0 ? 0 : lengths[rootId];
+    }
+
+    /**
+     * @param key String the key of a rule.
+     * @return double the expected number of rules expanded when the rule is replaced, including the rule itself.
+     */
+    public double expectedExpansions(String key) {
+        return expansions[id(key)];
+    }
+
+    /**
+     * @param key String the key of a rule.
+     * @return double the expected number of GroundTokens generated by the rule.
+     */
+    public double expectedGroundTokens(String key) {
+        return groundTokens[id(key)];
+    }
+
+    /**
+     * @param key String the key of a rule.
+     * @return double the expected length of the text generated by the rule.
+     */
+    public double expectedLength(String key) {
+        return lengths[id(key)];
+    }
+
+    /**
+     * @return int a buffer size for GroundSequenceRunner which holds the sequence of GroundTokens generated on average.
+     * @throws DivergentGrammarException if the expected size of the text generated from the root is infinite.
+     */
+    public int suggestedBufferSize() {
+        requireFinite();
+        // One extra slot is needed for the null which terminates the sequence.
+        return (int) Math.min(Integer.MAX_VALUE / 2, Math.max(2, roundUp(expectedGroundTokens()) + 1));
+    }
+
+    /**
+     * @return int a StringBuilder capacity which holds the text generated on average.
+     * @throws DivergentGrammarException if the expected size of the text generated from the root is infinite.
+     */
+    public int suggestedCapacity() {
+        requireFinite();
+        return (int) Math.min(Integer.MAX_VALUE / 2, roundUp(expectedLength()));
+    }
+
+    private static double roundUp(double expected) {
+        // Rounding errors should not add an extra slot to a size which is exact.
+        return Math.ceil(expected - EPSILON * Math.max(1, expected));
+    }
+
+    private int id(String key) {
+        int id = grammar.ruleId(key);
+        if (id < 0) throw new IllegalArgumentException("Grammar does not contain key " + key);
+        return id;
+    }
+
+    /**
+     * DivergentGrammarException is thrown when a grammar is required to generate text of finite expected size, but
+     * does not.
+     */
+    public static class DivergentGrammarException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> keys;
+
+        public DivergentGrammarException(List<String> keys) {
+            super("Expected size of grammar is infinite, due to rules " + keys);
+            this.keys = keys;
+        }
+
+        /**
+         * @return List the keys of the rules whose expected size is infinite.
+         */
+        public List<String> keys() {
+            return keys;
+        }
+    }
+}
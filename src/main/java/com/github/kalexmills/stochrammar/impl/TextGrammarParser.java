@@ -0,0 +1,496 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TextGrammarParser reads a TextGrammar from a text file written in the following BNF-style format.
+ *
+ * <pre>
+ * # Comments run from a hash to the end of the line.
+ * ROOT     := GREETING ", " NAME "!" | "Hello!" (0.5)
+ * GREETING := "Hello" | "Hi"
+ *           | "Howdy" ;
+ * NAME     := "world"
+ * </pre>
+ *
+ * Each rule is a key, followed by :=, followed by one or more alternatives separated by |. An alternative is a
+ * sequence of keys, each of which becomes a ProductionRule, and double-quoted strings, each of which becomes a Literal.
+ * An alternative may end with a non-negative weight in parentheses; alternatives without one have a weight of 1. A rule
+ * ends at a semicolon, or at the end of its line unless the next line begins with |. A key may be defined by more than
+ * one rule, in which case the alternatives of every rule are combined. Keys are made of letters, digits, and the
+ * characters _, - and . while strings may contain the escapes \", \\, \n, \r, \t and \\uXXXX.
+ *
+ * The parser makes a single pass over its input using a small, fixed-size buffer, so only the grammar itself is kept in
+ * memory, no matter how large the file is. Keys and strings are interned as they are read, and references to keys are
+ * resolved to ids immediately, so that each distinct key and string is held once, and is shared by a single token.
+ */
+public final class TextGrammarParser {
+    private static final int BUFFER_SIZE = 8192;
+
+    // Kinds of lexical token.
+    private static final int EOF = 0;
+    private static final int NEWLINE = 1;
+    private static final int KEY = 2;
+    private static final int STRING = 3;
+    private static final int WEIGHT = 4;
+    private static final int DEFINE = 5;
+    private static final int BAR = 6;
+    private static final int SEMICOLON = 7;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    // The position of the next character to be read.
+    private int line = 1;
+    private int column = 1;
+
+    // The current lexical token, and where it began.
+    private int kind;
+    private String text;
+    private double weight;
+    private int tokenLine;
+    private int tokenColumn;
+    private final StringBuilder scratch = new StringBuilder();
+
+    // Interned keys and strings, indexed by the order in which they first appear.
+    private final Map<String, Integer> keyIds = new HashMap<>();
+    private final ArrayList<String> keys = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final ArrayList<String> strings = new ArrayList<>();
+    // Keys in the order in which they are first defined.
+    private final ArrayList<Integer> definitions = new ArrayList<>();
+    private boolean[] defined = new boolean[64];
+
+    // Alternatives, in the order in which they are read. Symbols are encoded as in BinaryGrammarFormat.
+    private int nAlternatives;
+    private int[] alternativeRules = new int[64];
+    private double[] alternativeWeights = new double[64];
+    private int[] symbolOffsets = new int[65];
+    private int nSymbols;
+    private int[] symbols = new int[256];
+
+    private TextGrammarParser(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @param in Reader from which to read the grammar. It is not closed.
+     * @return TextGrammar containing every rule read.
+     * @throws IOException if in throws an IOException.
+     * @throws SyntaxException if the grammar is not well-formed.
+     */
+    public static TextGrammar parse(Reader in) throws IOException {
+        return new TextGrammarParser(in).parseGrammar().toTextGrammar();
+    }
+
+    /**
+     * @param path Path of a UTF-8 encoded file from which to read the grammar.
+     * @return TextGrammar containing every rule read.
+     * @throws IOException if the file cannot be read.
+     * @throws SyntaxException if the grammar is not well-formed.
+     */
+    public static TextGrammar parse(Path path) throws IOException {
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * parseCompiled reads a grammar straight into a CompiledTextGrammar, without building a TextGrammar first. The
+     * result is the same as compiling the grammar returned by parse.
+     *
+     * @param in Reader from which to read the grammar. It is not closed.
+     * @return CompiledTextGrammar containing every rule read.
+     * @throws IOException if in throws an IOException.
+     * @throws SyntaxException if the grammar is not well-formed.
+     */
+    public static CompiledTextGrammar parseCompiled(Reader in) throws IOException {
+        return new TextGrammarParser(in).parseGrammar().toCompiledTextGrammar();
+    }
+
+    /**
+     * @param path Path of a UTF-8 encoded file from which to read the grammar.
+     * @return CompiledTextGrammar containing every rule read.
+     * @throws IOException if the file cannot be read.
+     * @throws SyntaxException if the grammar is not well-formed.
+     */
+    public static CompiledTextGrammar parseCompiled(Path path) throws IOException {
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return parseCompiled(in);
+        }
+    }
+
+    private TextGrammarParser parseGrammar() throws IOException {
+        next();
+        while (kind != EOF) {
+            if (kind == NEWLINE || kind == SEMICOLON) {
+                next();
+                continue;
+            }
+            if (kind != KEY) throw error("Expected the key of a rule");
+            int rule = keyId(text);
+            if (!defined[rule]) {
+                defined[rule] = true;
+                definitions.add(rule);
+            }
+            next();
+            if (kind != DEFINE) throw error("Expected :=");
+            next();
+            parseAlternative(rule);
+            while (kind != EOF) {
+                if (kind == BAR) {
+                    next();
+                    parseAlternative(rule);
+                } else if (kind == SEMICOLON) {
+                    next();
+                    break;
+                } else if (kind == NEWLINE) {
+                    while (kind == NEWLINE) next();
+                    // The rule continues only if the next line begins with |.
+                    if (kind != BAR) break;
+                } else {
+                    throw error("Expected |, ; or the end of the line");
+                }
+            }
+        }
+        return this;
+    }
+
+    private void parseAlternative(int rule) throws IOException {
+        while (kind == KEY || kind == STRING) {
+            if (nSymbols == symbols.length) symbols = Arrays.copyOf(symbols, nSymbols * 2);
+            symbols[nSymbols++] = (kind == KEY) ? keyId(text) : ~stringId(text);
+            next();
+        }
+        double w = 1;
+        if (kind == WEIGHT) {
+            w = weight;
+            next();
+        }
+        if (nAlternatives == alternativeRules.length) {
+            alternativeRules = Arrays.copyOf(alternativeRules, nAlternatives * 2);
+            alternativeWeights = Arrays.copyOf(alternativeWeights, nAlternatives * 2);
+            symbolOffsets = Arrays.copyOf(symbolOffsets, nAlternatives * 2 + 1);
+        }
+        alternativeRules[nAlternatives] = rule;
+        alternativeWeights[nAlternatives] = w;
+        symbolOffsets[++nAlternatives] = nSymbols;
+    }
+
+    private int keyId(String key) {
+        Integer id = keyIds.get(key);
+        if (id == null) {
+            id = keys.size();
+            keyIds.put(key, id);
+            keys.add(key);
+            if (id == defined.length) defined = Arrays.copyOf(defined, id * 2);
+        }
+        return id;
+    }
+
+    private int stringId(String string) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(string, id);
+            strings.add(string);
+        }
+        return id;
+    }
+
+    /**
+     * next reads the next lexical token.
+     */
+    private void next() throws IOException {
+        int c = peek();
+        // Skip blanks and comments, but not the newlines which end them.
+        while (c == ' ' || c == '\t' || c == '\r' || c == '#') {
+            if (c == '#') {
+                while (c >= 0 && c != '\n') {
+                    read();
+                    c = peek();
+                }
+            } else {
+                read();
+                c = peek();
+            }
+        }
+        tokenLine = line;
+        tokenColumn = column;
+        if (c < 0) {
+            kind = EOF;
+            return;
+        }
+        read();
+        switch (c) {
+            case '\n':
+                kind = NEWLINE;
+                return;
+            case '|':
+                kind = BAR;
+                return;
+            case ';':
+                kind = SEMICOLON;
+                return;
+            case ':':
+                if (read() != '=') throw error("Expected :=");
+                kind = DEFINE;
+                return;
+            case '"':
+                readString();
+                return;
+            case '(':
+                readWeight();
+                return;
+            default:
+                if (!isKeyChar(c)) throw error("Unexpected character '" + (char) c + "'");
+                scratch.setLength(0);
+                scratch.append((char) c);
+                while (isKeyChar(peek())) {
+                    scratch.append((char) read());
+                }
+                kind = KEY;
+                text = scratch.toString();
+        }
+    }
+
+    private void readString() throws IOException {
+        scratch.setLength(0);
+        while (true) {
+            int c = read();
+            if (c < 0 || c == '\n') throw error("Unterminated string");
+            if (c == '"') break;
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case '"':  case '\\': break;
+                    case 'n':  c = '\n'; break;
+                    case 'r':  c = '\r'; break;
+                    case 't':  c = '\t'; break;
+                    case 'u':
+                        c = 0;
+                        for (int i = 0; i < 4; ++i) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) throw error("Invalid unicode escape");
+                            c = c * 16 + digit;
+                        }
+                        break;
+                    default:
+                        throw error("Invalid escape");
+                }
+            }
+            scratch.append((char) c);
+        }
+        kind = STRING;
+        text = scratch.toString();
+    }
+
+    private void readWeight() throws IOException {
+        scratch.setLength(0);
+        int c;
+        while ((c = read()) != ')') {
+            if (c < 0 || c == '\n') throw error("Unterminated weight");
+            if (c != ' ' && c != '\t') scratch.append((char) c);
+        }
+        try {
+            weight = Double.parseDouble(scratch.toString());
+        } catch (NumberFormatException e) {
+            throw error("Invalid weight " + scratch);
+        }
+        if (!(weight >= 0) || Double.isInfinite(weight)) throw error("Weights must be finite and non-negative");
+        kind = WEIGHT;
+    }
+
+    private static boolean isKeyChar(int c) {
+        return c >= 0 && (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.');
+    }
+
+    private int peek() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c < 0) return c;
+        position++;
+        if (c == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    private SyntaxException error(String message) {
+        return new SyntaxException(message, tokenLine, tokenColumn);
+    }
+
+    /**
+     * ids computes the final id of every key. As in TextGrammar::compile, defined keys come first, in the order in
+     * which they were first defined, followed by undefined keys in the order in which the alternatives of the defined
+     * keys refer to them.
+     */
+    private int[] ids(int[] order) {
+        int[] ids = new int[keys.size()];
+        Arrays.fill(ids, -1);
+        int next = 0;
+        for (int key : definitions) {
+            ids[key] = next++;
+        }
+        for (int a : order) {
+            for (int s = symbolOffsets[a]; s < symbolOffsets[a + 1]; ++s) {
+                if (symbols[s] >= 0 && ids[symbols[s]] < 0) ids[symbols[s]] = next++;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * order sorts the alternatives by the order in which their keys were first defined, keeping the alternatives of
+     * each key in the order in which they were read.
+     */
+    private int[] order() {
+        int[] rank = new int[keys.size()];
+        for (int i = 0; i < definitions.size(); ++i) {
+            rank[definitions.get(i)] = i;
+        }
+        int[] starts = new int[definitions.size() + 1];
+        for (int a = 0; a < nAlternatives; ++a) {
+            starts[rank[alternativeRules[a]] + 1]++;
+        }
+        for (int i = 0; i < definitions.size(); ++i) {
+            starts[i + 1] += starts[i];
+        }
+        int[] order = new int[nAlternatives];
+        for (int a = 0; a < nAlternatives; ++a) {
+            order[starts[rank[alternativeRules[a]]]++] = a;
+        }
+        return order;
+    }
+
+    private CompiledTextGrammar toCompiledTextGrammar() {
+        int[] order = order();
+        int[] ids = ids(order);
+        int n = keys.size();
+
+        String[] keyArray = new String[n];
+        for (int key = 0; key < n; ++key) {
+            keyArray[ids[key]] = keys.get(key);
+        }
+        int[] ruleOffsets = new int[n + 1];
+        double[] weights = new double[nAlternatives];
+        int[] offsets = new int[nAlternatives + 1];
+        int[] resolved = new int[nSymbols];
+        for (int i = 0; i < nAlternatives; ++i) {
+            int a = order[i];
+            ruleOffsets[ids[alternativeRules[a]] + 1]++;
+            weights[i] = alternativeWeights[a];
+            int s = offsets[i];
+            for (int j = symbolOffsets[a]; j < symbolOffsets[a + 1]; ++j) {
+                resolved[s++] = symbols[j] >= 0 ? ids[symbols[j]] : symbols[j];
+            }
+            offsets[i + 1] = s;
+        }
+        boolean[] weighted = new boolean[n];
+        for (int id = 0; id < n; ++id) {
+            ruleOffsets[id + 1] += ruleOffsets[id];
+            for (int a = ruleOffsets[id] + 1; a < ruleOffsets[id + 1]; ++a) {
+                weighted[id] |= weights[a] != weights[ruleOffsets[id]];
+            }
+        }
+
+        Integer root = keyIds.get(TextGrammar.ROOT_KEY);
+        int rootId = (root != null && defined[root]) ? ids[root] : -1;
+        return new CompiledTextGrammar(keyArray, ruleOffsets, weights, weighted, offsets, resolved,
+                                       strings.toArray(new String[0]), rootId, CompiledTextGrammar.DEFAULT_CAPACITY);
+    }
+
+    private TextGrammar toTextGrammar() {
+        TextGrammar g = new TextGrammar();
+        TextGrammar.ProductionRule[] rules = new TextGrammar.ProductionRule[keys.size()];
+        for (int key = 0; key < rules.length; ++key) {
+            rules[key] = g.new ProductionRule(keys.get(key));
+        }
+        TextGrammar.Literal[] literals = new TextGrammar.Literal[strings.size()];
+        for (int i = 0; i < literals.length; ++i) {
+            literals[i] = g.new Literal(strings.get(i));
+        }
+        for (int a = 0; a < nAlternatives; ++a) {
+            CFToken<StringBuilder>[] tokens = CFToken.newArray(symbolOffsets[a + 1] - symbolOffsets[a]);
+            for (int i = 0; i < tokens.length; ++i) {
+                int symbol = symbols[symbolOffsets[a] + i];
+                tokens[i] = symbol >= 0 ? rules[symbol] : literals[~symbol];
+            }
+            g.addRule(keys.get(alternativeRules[a]), alternativeWeights[a], tokens);
+        }
+        return g;
+    }
+
+    /**
+     * SyntaxException is thrown when a grammar file is not well-formed.
+     */
+    public static class SyntaxException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        private final int line;
+        private final int column;
+
+        public SyntaxException(String reason, int line, int column) {
+            super(reason + " at line " + line + ", column " + column);
+            this.line = line;
+            this.column = column;
+        }
+
+        /**
+         * @return int the line at which the error was found, starting from 1.
+         */
+        public int line() {
+            return line;
+        }
+
+        /**
+         * @return int the column at which the error was found, starting from 1.
+         */
+        public int column() {
+            return column;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+import com.github.kalexmills.stochrammar.runner.StreamingRunner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+/**
+ * TextStreamer writes the text generated by a TextGrammar (or a CompiledTextGrammar) directly to an Appendable, such
+ * as a Writer, a CharBuffer, or a StringBuilder, instead of collecting all of it in memory first. Text is written in
+ * order as soon as each GroundToken is generated, so only the unexpanded part of the derivation is ever held in
+ * memory. Bytes can be streamed by wrapping an OutputStream in an OutputStreamWriter, or a WritableByteChannel with
+ * Channels.newWriter.
+ *
+ * Literals are appended to the output as they are. Any other GroundToken acts on an empty StringBuilder, and whatever
+ * it appends is copied to the output, so actions which inspect the text generated before them will not work here.
+ *
+ * Like the runners, a TextStreamer must not be shared between threads.
+ */
+public class TextStreamer {
+
+    private final StreamingRunner<StringBuilder> runner;
+    // Used by GroundTokens which are not Literals.
+    private final StringBuilder scratch = new StringBuilder();
+
+    public TextStreamer(StochasticGrammar<StringBuilder> grammar) {
+        runner = new StreamingRunner<>(grammar);
+    }
+
+    /**
+     * Generates a new text and writes it to out.
+     *
+     * @param out Appendable to write the text to.
+     * @throws IOException if out throws an IOException.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        writeTo(out, RandomSource.threadLocal());
+    }
+
+    /**
+     * Generates a new text using the Random instance passed, and writes it to out.
+     *
+     * @param out Appendable to write the text to.
+     * @param rand Random a pre-seeded random number generator to be used for the generation.
+     * @throws IOException if out throws an IOException.
+     */
+    public void writeTo(Appendable out, Random rand) throws IOException {
+        writeTo(out, RandomSource.of(rand));
+    }
+
+    /**
+     * Generates a new text using the RandomSource passed, and writes it to out.
+     *
+     * @param out Appendable to write the text to.
+     * @param rand RandomSource a pre-seeded source of random numbers to be used for the generation.
+     * @throws IOException if out throws an IOException.
+     */
+    public void writeTo(Appendable out, RandomSource rand) throws IOException {
+        try {
+            runner.generate(rand, (token) -> append(out, token));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void append(Appendable out, CFToken<StringBuilder> token) {
+        try {
+            if (token instanceof TextGrammar.Literal && ((TextGrammar.Literal) token).isPlain()) {
+                out.append(((TextGrammar.Literal) token).text);
+            } else {
+                scratch.setLength(0);
+                out.append(token.act(scratch));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
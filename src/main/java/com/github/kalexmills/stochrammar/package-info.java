@@ -1,8 +1,8 @@
 /**
  * The Stochrammar package defines a generic stochastic context-free grammar, along with a default replacement algorithm
- * based on java.util.Random. The resulting classes are generic enough to implement stochastic context-free grammars
- * which can output any artifact.
+ * based on java.util.Random, or on any other RandomSource. The resulting classes are generic enough to implement
+ * stochastic context-free grammars which can output any artifact.
  *
  * @author K. Alex Mills
  */
-package com.github.kalexmills.stochrammar;
\ No newline at end of file
+package com.github.kalexmills.stochrammar;
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+
+/**
+ * ConcurrentGroundSequenceRunner is a GroundSequenceRunner which may be shared by any number of threads. Each thread
+ * which calls run() is given its own pair of buffers the first time it does so, and reuses them on every subsequent
+ * call. A shared runner therefore allocates no more than one pair of buffers per running thread, and reaches the same
+ * allocation-free steady state as a GroundSequenceRunner which is confined to a single thread.
+ *
+ * The StochasticGrammar passed in must itself be safe to use from multiple threads.
+ */
+public class ConcurrentGroundSequenceRunner<T> extends GroundSequenceRunner<T> {
+
+    private final ThreadLocal<Buffers<T>> threadBuffers;
+
+    public ConcurrentGroundSequenceRunner(StochasticGrammar<T> grammar) {
+        this(grammar, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param grammar StochasticGrammar the grammar to run.
+     * @param bufferSize int the initial size of the buffers given to each thread.
+     */
+    public ConcurrentGroundSequenceRunner(StochasticGrammar<T> grammar, int bufferSize) {
+        super(grammar, checkBufferSize(bufferSize), null);
+        threadBuffers = ThreadLocal.withInitial(() -> new Buffers<>(bufferSize));
+    }
+
+    @Override
+    Buffers<T> buffers() {
+        return threadBuffers.get();
+    }
+
+    @Override
+    protected GrammarRunner<T> fork() {
+        return this;
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.AliasTable;
+import com.github.kalexmills.stochrammar.RandomSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * DistinctSampler generates entities which are all different from one another, by running a GrammarRunner repeatedly
+ * and discarding any entity it has already produced.
+ *
+ * Entities are not kept in order to recognize repeats. Instead, each one is reduced to a 64-bit fingerprint, and only
+ * the fingerprints are kept, in an open-addressing table of longs which takes between 12 and 24 bytes per distinct
+ * entity. For very large samples, a Bloom filter can be used instead, which takes a little over a byte per entity at a
+ * false positive rate of 1%. A false positive causes an entity to be discarded even though it is new, so a Bloom
+ * filter never lets a repeat through, but may skip a few distinct entities.
+ *
+ * By default, an entity's fingerprint is a hash of its text. Under Fingerprint.CHOICES, it is instead a hash of the
+ * choices made while it was generated, which costs nothing to compute, but only recognizes repeats which were derived
+ * in the same way. For a grammar in which the same text can be derived in more than one way, the CHOICES fingerprint
+ * may therefore produce the same text more than once.
+ *
+ * A grammar may be unable to produce as many distinct entities as are requested. Sampling stops early once so many
+ * consecutive repeats have been generated that, if even one more distinct entity could be produced with the probability
+ * of an average one, it would almost certainly have been found. After each call to sample, estimatedLanguageSize
+ * estimates how many distinct entities the grammar can produce.
+ *
+ * A DistinctSampler is not thread-safe, and keeps the fingerprints seen by a call to sample only until the next call.
+ */
+public class DistinctSampler<T> {
+
+    /**
+     * Fingerprint enumerates the ways of recognizing repeated entities.
+     */
+    public enum Fingerprint {
+        /**
+         * Entities are compared by a hash of their text, given by toString(), or their characters if they are a
+         * CharSequence.
+         */
+        OUTPUT,
+        /**
+         * Entities are compared by a hash of the choices made through RandomSource::choose while generating them.
+         */
+        CHOICES
+    }
+
+    // The probability of missing an entity as likely as the average one, at which point sampling stops early.
+    private static final double MISS_PROBABILITY = 1e-6;
+    // The initial value of every hash.
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+
+    private final GrammarRunner<T> runner;
+    private Fingerprint fingerprint = Fingerprint.OUTPUT;
+    private double falsePositiveRate;
+    private long maxAttempts = Long.MAX_VALUE;
+
+    private long attempts;
+    private long distinct;
+
+    /**
+     * @param runner GrammarRunner used to generate entities.
+     */
+    public DistinctSampler(GrammarRunner<T> runner) {
+        this.runner = Objects.requireNonNull(runner);
+    }
+
+    /**
+     * @param fingerprint Fingerprint the way of recognizing repeated entities. Defaults to OUTPUT.
+     */
+    public void setFingerprint(Fingerprint fingerprint) {
+        this.fingerprint = Objects.requireNonNull(fingerprint);
+    }
+
+    /**
+     * setBloomFilter chooses whether fingerprints are kept in a Bloom filter, sized for the number of entities
+     * requested, or in an exact table.
+     *
+     * @param falsePositiveRate double the rate at which new entities may be mistaken for repeats, or 0 to keep
+     *                          fingerprints in an exact table, which is the default.
+     */
+    public void setBloomFilter(double falsePositiveRate) {
+        if (!(falsePositiveRate >= 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("falsePositiveRate must be in [0, 1), was " + falsePositiveRate);
+        }
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * @param maxAttempts long the maximum number of entities to generate during a single call to sample, including
+     *                    repeats. Defaults to Long.MAX_VALUE.
+     */
+    public void setMaxAttempts(long maxAttempts) {
+        if (maxAttempts < 0) throw new IllegalArgumentException("maxAttempts must be non-negative, was " + maxAttempts);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param n int the number of distinct entities to generate.
+     * @param rand RandomSource the source of random numbers to use.
+     * @return List the distinct entities generated, in the order they were generated. It holds fewer than n entities
+     *              if the grammar appears unable to produce n.
+     */
+    public List<T> sample(int n, RandomSource rand) {
+        List<T> result = new ArrayList<>();
+        sample(n, rand, result::add);
+        return result;
+    }
+
+    /**
+     * sample passes each new entity to a sink as soon as it is generated, so that the entities need not be kept in
+     * memory.
+     *
+     * @param n long the number of distinct entities to generate.
+     * @param rand RandomSource the source of random numbers to use.
+     * @param sink Consumer which receives each distinct entity.
+     * @return long the number of entities passed to the sink, which is less than n if the grammar appears unable to
+     *              produce n, or maxAttempts was reached.
+     */
+    public long sample(long n, RandomSource rand, Consumer<? super T> sink) {
+        if (n < 0) throw new IllegalArgumentException("n must be non-negative, was " + n);
+        FingerprintSet seen = falsePositiveRate > 0 ? new BloomFilter(n, falsePositiveRate) : new LongHashSet();
+        ChoiceHasher hasher = fingerprint == Fingerprint.CHOICES ? new ChoiceHasher(rand) : null;
+        RandomSource source = hasher != null ? hasher : rand;
+
+        attempts = 0;
+        distinct = 0;
+        long repeats = 0;
+        while (distinct < n && attempts < maxAttempts) {
+            if (hasher != null) hasher.hash = SEED;
+            T entity = runner.run(source);
+            attempts++;
+            long hash = hasher != null ? mix(hasher.hash) : hash(entity);
+            if (seen.add(hash)) {
+                distinct++;
+                repeats = 0;
+                sink.accept(entity);
+            } else if (++repeats >= -Math.log(MISS_PROBABILITY) * (distinct + 1)) {
+                break;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * @return long the number of entities generated by the last call to sample, including repeats.
+     */
+    public long attempts() {
+        return attempts;
+    }
+
+    /**
+     * estimatedLanguageSize estimates the number of distinct entities the grammar can produce, from the number of
+     * distinct entities found by the last call to sample and the number of attempts it took. The estimate assumes that
+     * each entity is equally likely, so it is low for grammars whose entities are not: rare entities go unseen.
+     *
+     * @return double the estimated number of distinct entities, or positive infinity if no repeats were generated.
+     */
+    public double estimatedLanguageSize() {
+        if (distinct == attempts) return Double.POSITIVE_INFINITY;
+        // Solve distinct = L * (1 - exp(-attempts / L)) for L by bisection; the right side increases with L.
+        double lo = distinct;
+        double hi = distinct;
+        while (hi * -Math.expm1(-attempts / hi) < distinct) {
+            hi *= 2;
+        }
+        for (int i = 0; i < 100 && hi - lo > 1e-6 * hi; ++i) {
+            double mid = (lo + hi) / 2;
+            if (mid * -Math.expm1(-attempts / mid) < distinct) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return hi;
+    }
+
+    /**
+     * mix is the finalizer of SplittableRandom, which spreads every bit of its input across its output.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long hash(Object entity) {
+        CharSequence text = entity instanceof CharSequence ? (CharSequence) entity : String.valueOf(entity);
+        long h = SEED;
+        int length = text.length();
+        for (int i = 0; i < length; ++i) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h ^ length);
+    }
+
+    /**
+     * ChoiceHasher hashes the choices made through it, and draws every number from another RandomSource.
+     */
+    private static final class ChoiceHasher extends RandomSource {
+        private final RandomSource source;
+        long hash;
+
+        ChoiceHasher(RandomSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public long nextLong() {
+            return source.nextLong();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return source.nextInt(bound);
+        }
+
+        @Override
+        public double nextDouble() {
+            return source.nextDouble();
+        }
+
+        @Override
+        public float nextFloat() {
+            return source.nextFloat();
+        }
+
+        @Override
+        public int choose(int count) {
+            return record(source.choose(count), count);
+        }
+
+        @Override
+        public int choose(AliasTable table) {
+            return record(source.choose(table), table.size());
+        }
+
+        @Override
+        public int choose(double[] weights, int count) {
+            return record(source.choose(weights, count), count);
+        }
+
+        private int record(int choice, int count) {
+            hash = (hash ^ (((long) count << 32) | choice)) * 0x100000001b3L;
+            hash = Long.rotateLeft(hash, 27);
+            return choice;
+        }
+    }
+
+    /**
+     * FingerprintSet is a set of 64-bit fingerprints.
+     */
+    private interface FingerprintSet {
+        /**
+         * @return boolean true if the fingerprint was added, or false if it was already present.
+         */
+        boolean add(long fingerprint);
+    }
+
+    /**
+     * LongHashSet is an open-addressing hash set of longs, which uses linear probing and is kept at most two-thirds
+     * full. Zero marks an empty slot, so a fingerprint of zero is stored separately.
+     */
+    private static final class LongHashSet implements FingerprintSet {
+        private long[] slots = new long[64];
+        private int size;
+        private boolean hasZero;
+
+        @Override
+        public boolean add(long fingerprint) {
+            if (fingerprint == 0) {
+                boolean added = !hasZero;
+                hasZero = true;
+                return added;
+            }
+            if (insert(slots, fingerprint)) {
+                if (++size * 3L > slots.length * 2L) grow();
+                return true;
+            }
+            return false;
+        }
+
+        private static boolean insert(long[] slots, long fingerprint) {
+            int mask = slots.length - 1;
+            // Fingerprints are already well mixed, so their low bits can index the table directly.
+            for (int i = (int) fingerprint & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == fingerprint) return false;
+                if (slots[i] == 0) {
+                    slots[i] = fingerprint;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            if (slots.length == 1 << 30) throw new IllegalStateException("Too many fingerprints for an exact table");
+            long[] grown = new long[slots.length * 2];
+            for (long fingerprint : slots) {
+                if (fingerprint != 0) insert(grown, fingerprint);
+            }
+            slots = grown;
+        }
+    }
+
+    /**
+     * BloomFilter is a Bloom filter sized for a given number of fingerprints and false positive rate. Each fingerprint
+     * sets k bits, whose positions are derived from two halves of its hash by double hashing.
+     */
+    private static final class BloomFilter implements FingerprintSet {
+        private final long[] bits;
+        private final long nBits;
+        private final int k;
+
+        BloomFilter(long expected, double falsePositiveRate) {
+            double ln2 = Math.log(2);
+            long m = (long) Math.ceil(-Math.max(expected, 1) * Math.log(falsePositiveRate) / (ln2 * ln2));
+            m = Math.max(64, Math.min(m, (long) Integer.MAX_VALUE * 64));
+            bits = new long[(int) ((m + 63) >>> 6)];
+            nBits = (long) bits.length * 64;
+            k = Math.max(1, (int) Math.round((double) nBits / Math.max(expected, 1) * ln2));
+        }
+
+        @Override
+        public boolean add(long fingerprint) {
+            long h1 = fingerprint;
+            long h2 = mix(fingerprint) | 1;
+            boolean added = false;
+            for (int i = 0; i < k; ++i) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, nBits);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                if ((bits[word] & mask) == 0) {
+                    bits[word] |= mask;
+                    added = true;
+                }
+            }
+            return added;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.CFToken;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * GenerationBudget limits the work a GrammarRunner may do in a single run. Four limits are available:
+ *
+ * <ul>
+ *     <li>TOKENS limits the number of tokens which act on the entity. For most runners, these are the GroundTokens
+ *     of the generated sequence. TreeRunner counts every token, since every token acts.</li>
+ *     <li>DEPTH limits the depth of the derivation tree. The root token has depth 0.</li>
+ *     <li>PASSES limits the number of passes made over the sequence by runners which expand it in passes, such as
+ *     GroundSequenceRunner. Other runners ignore it.</li>
+ *     <li>TIME limits the wall-clock time spent by a run.</li>
+ * </ul>
+ *
+ * Each limit has its own Policy, which determines what happens when a run reaches the limit while some tokens remain
+ * unexpanded. FAIL throws an ExceededException. TRUNCATE stops expanding, and discards the unexpanded tokens. FALLBACK
+ * stops expanding, and replaces each unexpanded token with the fallback tokens of the budget, which should be
+ * GroundTokens, and are never expanded themselves. When TOKENS is reached, the sequence is also cut short. Runners
+ * which expand the leftmost token first, such as TreeRunner, StreamingRunner, ResumableRun and GroundSequenceRunner in
+ * LEFTMOST mode, have no unexpanded tokens before the cut, so TRUNCATE and FALLBACK behave the same way. In PASSES
+ * mode, the tokens kept before the cut may still include unexpanded tokens, which TRUNCATE discards and FALLBACK
+ * replaces. Runs which never reach a limit are unaffected by the budget.
+ *
+ * GenerationBudgets are immutable. Each with method returns a new budget.
+ *
+ * @param <T> the type of object produced by the runners this budget applies to.
+ */
+public final class GenerationBudget<T> {
+
+    public enum Policy {
+        FAIL,
+        TRUNCATE,
+        FALLBACK
+    }
+
+    public enum Limit {
+        TOKENS,
+        DEPTH,
+        PASSES,
+        TIME
+    }
+
+    // Runners check the clock once every CLOCK_CHECK_MASK + 1 tokens.
+    static final int CLOCK_CHECK_MASK = 0xff;
+    // Depth recorded for tokens produced by a cutoff, which are never expanded.
+    static final int CUT_OFF = -1;
+
+    private static final GenerationBudget<?> UNLIMITED = new GenerationBudget<>(
+            Integer.MAX_VALUE, Policy.FAIL, Integer.MAX_VALUE, Policy.FAIL, Integer.MAX_VALUE, Policy.FAIL,
+            Long.MAX_VALUE, Policy.FAIL, (token) -> CFToken.empty());
+
+    final int maxTokens;
+    final Policy tokenPolicy;
+    final int maxDepth;
+    final Policy depthPolicy;
+    final int maxPasses;
+    final Policy passPolicy;
+    final long timeoutNanos;
+    final Policy timePolicy;
+    private final Function<? super CFToken<T>, CFToken<T>[]> fallback;
+
+    private GenerationBudget(int maxTokens, Policy tokenPolicy, int maxDepth, Policy depthPolicy,
+                             int maxPasses, Policy passPolicy, long timeoutNanos, Policy timePolicy,
+                             Function<? super CFToken<T>, CFToken<T>[]> fallback) {
+        this.maxTokens = maxTokens;
+        this.tokenPolicy = tokenPolicy;
+        this.maxDepth = maxDepth;
+        this.depthPolicy = depthPolicy;
+        this.maxPasses = maxPasses;
+        this.passPolicy = passPolicy;
+        this.timeoutNanos = timeoutNanos;
+        this.timePolicy = timePolicy;
+        this.fallback = fallback;
+    }
+
+    /**
+     * @return GenerationBudget a budget without any limits, which discards unexpanded tokens under the FALLBACK
+     *                          policy.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> GenerationBudget<T> unlimited() {
+        return (GenerationBudget<T>) UNLIMITED;
+    }
+
+    /**
+     * @param max int the maximum number of GroundTokens a run may generate.
+     * @param policy Policy to apply when the limit is reached.
+     * @return GenerationBudget a copy of this budget with the given limit.
+     */
+    public GenerationBudget<T> withMaxTokens(int max, Policy policy) {
+        if (max < 0) throw new IllegalArgumentException("max must be non-negative, was " + max);
+        return new GenerationBudget<>(max, policy, maxDepth, depthPolicy, maxPasses, passPolicy,
+                                      timeoutNanos, timePolicy, fallback);
+    }
+
+    /**
+     * @param max int the maximum depth of a derivation tree.
+     * @param policy Policy to apply when the limit is reached.
+     * @return GenerationBudget a copy of this budget with the given limit.
+     */
+    public GenerationBudget<T> withMaxDepth(int max, Policy policy) {
+        if (max < 0) throw new IllegalArgumentException("max must be non-negative, was " + max);
+        return new GenerationBudget<>(maxTokens, tokenPolicy, max, policy, maxPasses, passPolicy,
+                                      timeoutNanos, timePolicy, fallback);
+    }
+
+    /**
+     * @param max int the maximum number of expansion passes a run may make.
+     * @param policy Policy to apply when the limit is reached.
+     * @return GenerationBudget a copy of this budget with the given limit.
+     */
+    public GenerationBudget<T> withMaxPasses(int max, Policy policy) {
+        if (max < 0) throw new IllegalArgumentException("max must be non-negative, was " + max);
+        return new GenerationBudget<>(maxTokens, tokenPolicy, maxDepth, depthPolicy, max, policy,
+                                      timeoutNanos, timePolicy, fallback);
+    }
+
+    /**
+     * @param timeout long the maximum wall-clock time a run may take.
+     * @param unit TimeUnit the unit of timeout.
+     * @param policy Policy to apply when the limit is reached.
+     * @return GenerationBudget a copy of this budget with the given limit.
+     */
+    public GenerationBudget<T> withTimeout(long timeout, TimeUnit unit, Policy policy) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must be non-negative, was " + timeout);
+        return new GenerationBudget<>(maxTokens, tokenPolicy, maxDepth, depthPolicy, maxPasses, passPolicy,
+                                      unit.toNanos(timeout), policy, fallback);
+    }
+
+    /**
+     * @param fallback Function which returns the tokens that replace an unexpanded token under the FALLBACK policy.
+     * @return GenerationBudget a copy of this budget with the given fallback.
+     */
+    public GenerationBudget<T> withFallback(Function<? super CFToken<T>, CFToken<T>[]> fallback) {
+        return new GenerationBudget<>(maxTokens, tokenPolicy, maxDepth, depthPolicy, maxPasses, passPolicy,
+                                      timeoutNanos, timePolicy, fallback);
+    }
+
+    /**
+     * @return boolean true if this budget limits the wall-clock time of a run.
+     */
+    boolean isTimed() {
+        return timeoutNanos != Long.MAX_VALUE;
+    }
+
+    /**
+     * cutoff returns the tokens which replace an unexpanded token when a limit is reached.
+     *
+     * @throws ExceededException if the policy is FAIL.
+     */
+    CFToken<T>[] cutoff(CFToken<T> token, Limit limit, Policy policy) {
+        switch (policy) {
+            case TRUNCATE:
+                return CFToken.empty();
+            case FALLBACK:
+                return fallback.apply(token);
+            default:
+                throw new ExceededException(limit);
+        }
+    }
+
+    /**
+     * ExceededException is thrown when a run reaches a limit whose policy is FAIL.
+     */
+    public static class ExceededException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        private final Limit limit;
+
+        public ExceededException(Limit limit) {
+            super("Generation budget exceeded: " + limit);
+            this.limit = limit;
+        }
+
+        /**
+         * @return Limit the limit which was reached.
+         */
+        public Limit limit() {
+            return limit;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.RandomSource;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * GrammarPublisher is a Flow.Publisher which generates an unbounded sequence of entities using a GrammarRunner, as fast
+ * as its subscribers request them.
+ *
+ * Each subscriber is served by its own subscription. Nothing is generated until the subscriber first requests an
+ * entity. From then on, up to parallelism runs take place at once on the executor, each using a fork of the runner, and
+ * up to prefetch entities are generated ahead of the subscriber's demand, so that an entity is usually ready as soon as
+ * it is requested. Generated entities are delivered in the order in which their runs finish. A runner which cannot be
+ * forked generates one entity at a time, whatever the parallelism.
+ *
+ * A subscription never completes. Cancelling it stops any further runs from being started, and discards the entities
+ * which have been generated but not delivered. If a run throws, the subscriber's onError is called with the exception
+ * and the subscription is cancelled.
+ *
+ * The configuration of a GrammarPublisher is read when a subscriber subscribes, so changing it does not affect
+ * existing subscriptions.
+ */
+public class GrammarPublisher<T> implements Flow.Publisher<T> {
+
+    private final GrammarRunner<T> runner;
+    private Executor executor = ForkJoinPool.commonPool();
+    private int parallelism = 1;
+    private int prefetch = Flow.defaultBufferSize();
+
+    /**
+     * @param runner GrammarRunner used to generate entities. It is forked once for each concurrent run, and is not used
+     *               directly.
+     */
+    public GrammarPublisher(GrammarRunner<T> runner) {
+        this.runner = Objects.requireNonNull(runner);
+    }
+
+    /**
+     * @param executor Executor on which runs take place, and from which subscribers are called. Defaults to the common
+     *                 ForkJoinPool.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * @return Executor on which runs take place.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param parallelism int the maximum number of runs which take place at once for each subscriber. Defaults to 1.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive, was " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return int the maximum number of runs which take place at once for each subscriber.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param prefetch int the maximum number of entities which are generated for a subscriber before it requests them,
+     *                 including those still being generated. Defaults to Flow.defaultBufferSize().
+     */
+    public void setPrefetch(int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("prefetch must be positive, was " + prefetch);
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @return int the maximum number of entities which are generated for a subscriber before it requests them.
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        GeneratingSubscription<T> subscription =
+                new GeneratingSubscription<>(runner, subscriber, executor, parallelism, prefetch);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * GeneratingSubscription runs forks of a runner on an executor, and delivers the entities they generate to a single
+     * subscriber. Calls to the subscriber are serialized by the drain loop, which only one thread may enter at a time.
+     */
+    private static final class GeneratingSubscription<T> implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Executor executor;
+        private final int prefetch;
+
+        // Forks of the runner which are not currently running.
+        private final Queue<GrammarRunner<T>> idle;
+        // Entities which have been generated but not yet delivered.
+        private final Queue<T> ready = new ConcurrentLinkedQueue<>();
+        // The number of entities which are ready or being generated.
+        private final AtomicInteger pending = new AtomicInteger();
+        // The number of entities which have been requested but not yet delivered.
+        private final AtomicLong requested = new AtomicLong();
+        // The number of threads which have asked to drain, used to serialize calls to the subscriber.
+        private final AtomicInteger drains = new AtomicInteger();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile boolean cancelled;
+
+        GeneratingSubscription(GrammarRunner<T> runner, Flow.Subscriber<? super T> subscriber, Executor executor,
+                               int parallelism, int prefetch) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.prefetch = prefetch;
+            idle = new ArrayBlockingQueue<>(parallelism);
+            for (int i = 0; i < parallelism; ++i) {
+                idle.add(runner.concurrentFork());
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Requests must be positive, was " + n));
+            } else {
+                long current;
+                do {
+                    current = requested.get();
+                    if (current == Long.MAX_VALUE) break;
+                } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void fail(Throwable e) {
+            error.compareAndSet(null, e);
+        }
+
+        /**
+         * schedule starts as many runs as there are idle runners, without letting the number of pending entities
+         * exceed the prefetch.
+         */
+        private void schedule() {
+            while (!cancelled) {
+                int p = pending.get();
+                if (p >= prefetch) return;
+                if (!pending.compareAndSet(p, p + 1)) continue;
+                GrammarRunner<T> runner = idle.poll();
+                if (runner == null) {
+                    pending.decrementAndGet();
+                    return;
+                }
+                try {
+                    executor.execute(() -> generate(runner));
+                } catch (RuntimeException e) {
+                    idle.add(runner);
+                    pending.decrementAndGet();
+                    fail(e);
+                    return;
+                }
+            }
+        }
+
+        private void generate(GrammarRunner<T> runner) {
+            try {
+                if (cancelled) {
+                    pending.decrementAndGet();
+                } else {
+                    ready.add(runner.run(RandomSource.threadLocal()));
+                }
+            } catch (Throwable e) {
+                pending.decrementAndGet();
+                fail(e);
+            } finally {
+                idle.add(runner);
+            }
+            drain();
+        }
+
+        /**
+         * drain delivers ready entities while there is demand for them, reports any error, and then schedules more
+         * runs. Only one thread drains at a time; a thread which finds another draining leaves it to drain once more.
+         */
+        private void drain() {
+            if (drains.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                long r = requested.get();
+                long delivered = 0;
+                while (!cancelled) {
+                    Throwable failure = error.get();
+                    if (failure != null) {
+                        cancelled = true;
+                        subscriber.onError(failure);
+                        break;
+                    }
+                    if (delivered == r) break;
+                    T entity = ready.poll();
+                    if (entity == null) break;
+                    pending.decrementAndGet();
+                    try {
+                        subscriber.onNext(entity);
+                    } catch (RuntimeException e) {
+                        // The subscriber broke the protocol, so treat the subscription as cancelled.
+                        cancelled = true;
+                        break;
+                    }
+                    delivered++;
+                }
+                if (cancelled) {
+                    ready.clear();
+                } else {
+                    if (delivered > 0 && r != Long.MAX_VALUE) requested.addAndGet(-delivered);
+                    schedule();
+                }
+                missed = drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -18,27 +18,85 @@
  */
 package com.github.kalexmills.stochrammar.runner;
 
+import com.github.kalexmills.stochrammar.RandomSource;
 import com.github.kalexmills.stochrammar.StochasticGrammar;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 /**
  * GrammmarRunner provides an algorithm for running a StochasticGrammar to generate objects of type T.
  *
+ * Besides generating one object at a time, a GrammarRunner can generate a batch of objects in parallel. Each object in
+ * a batch is generated using a RandomSource derived only from the seed of the batch and the index of the object,
+ * so the result of a batch does not depend on the number of threads used to generate it. The grammar is shared by
+ * every thread, so it must be safe to use from multiple threads. Each thread uses its own fork of the runner; a runner
+ * which cannot be forked is run by one thread at a time.
+ *
  * @param <T> type of object this GrammarRunner builds.
  */
 public abstract class GrammarRunner<T> {
+    // Multiplier used to spread the indices of a batch across the space of seeds.
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    // The number of tasks a batch is split into for each thread that may run them.
+    private static final int TASKS_PER_THREAD = 4;
+
     protected StochasticGrammar<T> grammar;
+    protected GenerationBudget<T> budget = GenerationBudget.unlimited();
+    protected RunObserver observer;
 
     public GrammarRunner(StochasticGrammar<T> grammar) {
         this.grammar = grammar;
     }
+
+    /**
+     * setBudget limits the work done by each subsequent run. The runners in this package all honor the budget.
+     *
+     * @param budget GenerationBudget the limits to apply to each run.
+     */
+    public void setBudget(GenerationBudget<T> budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return GenerationBudget the limits applied to each run.
+     */
+    public GenerationBudget<T> getBudget() {
+        return budget;
+    }
+
+    /**
+     * setObserver registers an observer which is notified at the end of every run, or removes the observer if null
+     * is passed. Runs are timed only while an observer is set.
+     *
+     * @param observer RunObserver to notify, or null.
+     */
+    public void setObserver(RunObserver observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * @return RunObserver the observer notified at the end of every run, or null if there is none.
+     */
+    public RunObserver getObserver() {
+        return observer;
+    }
+
     /**
-     * run() generates a new object of type T. The
+     * run() generates a new object of type T using the ThreadLocalRandom of the current thread.
      * @return
      */
     public T run() {
-        return run(new Random());
+        return run(RandomSource.threadLocal());
     }
 
     /**
@@ -50,4 +108,166 @@ public abstract class GrammarRunner<T> {
      * @return T a generated object
      */
     public abstract T run(Random rand);
+
+    /**
+     * run(RandomSource) generates a new object of type T using the RandomSource passed in, in the same way as
+     * run(Random). The default implementation calls run(rand.asRandom()). The runners in this package override it, and
+     * draw from the RandomSource directly.
+     *
+     * @param rand RandomSource the source of random numbers to use during the run.
+     * @return T a generated object
+     */
+    public T run(RandomSource rand) {
+        return run(rand.asRandom());
+    }
+
+    /**
+     * runBatch generates count objects in parallel using the common ForkJoinPool. Object i of the batch is the same
+     * object which run(randomFor(seed, i)) would generate.
+     *
+     * @param count int the number of objects to generate.
+     * @param seed long the seed of the batch.
+     * @return List an unmodifiable list of the generated objects, in order of their index.
+     */
+    public List<T> runBatch(int count, long seed) {
+        return runBatch(count, seed, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * runBatch generates count objects in parallel using the Executor passed in. Object i of the batch is the same
+     * object which run(randomFor(seed, i)) would generate.
+     *
+     * @param count int the number of objects to generate.
+     * @param seed long the seed of the batch.
+     * @param executor Executor used to run the tasks which generate the batch.
+     * @return List an unmodifiable list of the generated objects, in order of their index.
+     */
+    public List<T> runBatch(int count, long seed, Executor executor) {
+        if (count < 0) throw new IllegalArgumentException("count must be non-negative, was " + count);
+
+        int threads = (executor instanceof ForkJoinPool) ? ((ForkJoinPool) executor).getParallelism()
+                                                         : Runtime.getRuntime().availableProcessors();
+        int nTasks = (int) Math.min(count, (long) threads * TASKS_PER_THREAD);
+
+        // Each index is set by a single task, and joining the tasks publishes every result to this thread.
+        ArrayList<T> results = new ArrayList<>(Collections.<T>nCopies(count, null));
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[nTasks];
+        for (int t = 0; t < nTasks; ++t) {
+            int from = (int) ((long) count * t / nTasks);
+            int to = (int) ((long) count * (t + 1) / nTasks);
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                GrammarRunner<T> runner = concurrentFork();
+                for (int i = from; i < to; ++i) {
+                    results.set(i, runner.run(randomFor(seed, i)));
+                }
+            }, executor);
+        }
+        try {
+            CompletableFuture.allOf(tasks).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * streamBatch returns a lazy Stream of count objects. Object i of the stream is the same object which
+     * run(randomFor(seed, i)) would generate, whether or not the stream is parallel.
+     *
+     * @param count long the number of objects in the stream.
+     * @param seed long the seed of the batch.
+     * @return Stream a sequential stream of the generated objects, in order of their index.
+     */
+    public Stream<T> streamBatch(long count, long seed) {
+        ThreadLocal<GrammarRunner<T>> runners = ThreadLocal.withInitial(this::concurrentFork);
+        return LongStream.range(0, count).mapToObj((i) -> runners.get().run(randomFor(seed, i)));
+    }
+
+    /**
+     * fork returns a GrammarRunner for the same grammar and configuration as this one, including its budget and
+     * observer, which may be used by another thread while this one is in use. Runners which keep state between calls
+     * to run() override this method to return a new instance, and runners which are safe to use from several threads
+     * at once may return this runner. The default implementation returns null, meaning that this runner cannot be
+     * forked, so that batches, GrammarPublisher and GrammarService run it from one thread at a time.
+     *
+     * @return GrammarRunner a runner which can be used concurrently with this one, or null if there is none.
+     */
+    protected GrammarRunner<T> fork() {
+        return null;
+    }
+
+    /**
+     * concurrentFork returns fork(), or if this runner cannot be forked, a runner which runs this one while holding its
+     * lock. Each runner returned may be used by another thread, and has its own budget.
+     *
+     * @return GrammarRunner a runner which can be used concurrently with this one.
+     */
+    GrammarRunner<T> concurrentFork() {
+        GrammarRunner<T> fork = fork();
+        return fork != null ? fork : new SerializedRunner<>(this);
+    }
+
+    /**
+     * randomFor returns the RandomSource used to generate object index of the batch with the seed given.
+     *
+     * @param seed long the seed of the batch.
+     * @param index long the index of an object in the batch.
+     * @return RandomSource a newly constructed RandomSource, backed by a SplittableRandom.
+     */
+    public static RandomSource randomFor(long seed, long index) {
+        // Mix the seed and index with the finalizer of SplittableRandom, so that neighbouring indices are unrelated.
+        long z = seed + (index + 1) * GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return RandomSource.of(new SplittableRandom(z ^ (z >>> 31)));
+    }
+
+    /**
+     * SerializedRunner runs a runner which cannot be forked, one run at a time. For the length of each run, the budget
+     * of the SerializedRunner replaces that of the runner it wraps, which notifies its own observer.
+     */
+    private static final class SerializedRunner<T> extends GrammarRunner<T> {
+        private final GrammarRunner<T> target;
+
+        SerializedRunner(GrammarRunner<T> target) {
+            super(target.grammar);
+            this.target = target;
+            this.budget = target.budget;
+        }
+
+        @Override
+        public T run(Random rand) {
+            synchronized (target) {
+                GenerationBudget<T> saved = target.budget;
+                target.budget = budget;
+                try {
+                    return target.run(rand);
+                } finally {
+                    target.budget = saved;
+                }
+            }
+        }
+
+        @Override
+        public T run(RandomSource rand) {
+            synchronized (target) {
+                GenerationBudget<T> saved = target.budget;
+                target.budget = budget;
+                try {
+                    return target.run(rand);
+                } finally {
+                    target.budget = saved;
+                }
+            }
+        }
+
+        @Override
+        protected GrammarRunner<T> fork() {
+            SerializedRunner<T> fork = new SerializedRunner<>(target);
+            fork.budget = budget;
+            return fork;
+        }
+    }
 }
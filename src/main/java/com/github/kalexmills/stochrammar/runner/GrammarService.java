@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.RandomSource;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * GrammarService runs a GrammarRunner asynchronously, so that callers are not blocked for the length of a derivation.
+ * Each call to submit returns a CompletableFuture which is completed with the generated entity once a run on the
+ * executor has finished.
+ *
+ * At most maxInFlight runs may be queued or running at once. A submission made while that many are in flight is
+ * rejected straight away, by returning a future which has failed with a RejectedExecutionException, rather than being
+ * allowed to queue without limit.
+ *
+ * Runs take place on forks of the runner, which are pooled and reused by later runs, so that no more forks are created
+ * than the number of runs in flight. A submission with a timeout fails with a TimeoutException once the timeout has
+ * elapsed, counting time spent waiting for the executor. The run itself is stopped by adding the time remaining to the
+ * budget of its fork, which works for any runner whose fork() returns a new instance, and for runners which cannot be
+ * forked, which run one at a time. Runners which share one instance between threads, such as
+ * ConcurrentGroundSequenceRunner, cannot be given a budget per run, and keep running until their own budget stops
+ * them.
+ *
+ * Any Executor may be used; on Java 21 and later, an executor which starts a virtual thread for each task lets each run
+ * block without tying up a platform thread. A GrammarService does not own its executor, and never shuts it down.
+ */
+public class GrammarService<T> {
+
+    private final GrammarRunner<T> runner;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    // Forks of the runner which are not currently running.
+    private final Queue<GrammarRunner<T>> idle = new ConcurrentLinkedQueue<>();
+    // True if each fork of the runner is a separate instance, whose budget can be set for a single run.
+    private final boolean exclusive;
+    private final GenerationBudget<T> budget;
+
+    /**
+     * Creates a service which runs on the common ForkJoinPool.
+     *
+     * @param runner GrammarRunner used to generate entities. It is forked for each concurrent run, and is not used
+     *               directly.
+     * @param maxInFlight int the maximum number of runs which may be queued or running at once.
+     */
+    public GrammarService(GrammarRunner<T> runner, int maxInFlight) {
+        this(runner, ForkJoinPool.commonPool(), maxInFlight);
+    }
+
+    /**
+     * @param runner GrammarRunner used to generate entities. It is forked for each concurrent run, and is not used
+     *               directly.
+     * @param executor Executor on which runs take place.
+     * @param maxInFlight int the maximum number of runs which may be queued or running at once.
+     */
+    public GrammarService(GrammarRunner<T> runner, Executor executor, int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive, was " + maxInFlight);
+        this.runner = Objects.requireNonNull(runner);
+        this.executor = Objects.requireNonNull(executor);
+        this.maxInFlight = maxInFlight;
+        permits = new Semaphore(maxInFlight);
+        budget = runner.getBudget();
+
+        GrammarRunner<T> first = runner.concurrentFork();
+        exclusive = first != runner;
+        idle.add(first);
+    }
+
+    /**
+     * submit generates an entity using the ThreadLocalRandom of the thread the run takes place on.
+     *
+     * @return CompletableFuture which is completed with the generated entity.
+     */
+    public CompletableFuture<T> submit() {
+        return submit(null, -1);
+    }
+
+    /**
+     * @param timeout long the maximum time to wait for the entity.
+     * @param unit TimeUnit the unit of timeout.
+     * @return CompletableFuture which is completed with the generated entity, or fails with a TimeoutException.
+     */
+    public CompletableFuture<T> submit(long timeout, TimeUnit unit) {
+        return submit(null, checkTimeout(timeout, unit));
+    }
+
+    /**
+     * @param rand RandomSource the source of random numbers to use during the run. It is used by a single run, on
+     *             another thread, and must not be used elsewhere until the future is complete.
+     * @return CompletableFuture which is completed with the generated entity.
+     */
+    public CompletableFuture<T> submit(RandomSource rand) {
+        return submit(Objects.requireNonNull(rand), -1);
+    }
+
+    /**
+     * @param rand RandomSource the source of random numbers to use during the run. It is used by a single run, on
+     *             another thread, and must not be used elsewhere until the future is complete.
+     * @param timeout long the maximum time to wait for the entity.
+     * @param unit TimeUnit the unit of timeout.
+     * @return CompletableFuture which is completed with the generated entity, or fails with a TimeoutException.
+     */
+    public CompletableFuture<T> submit(RandomSource rand, long timeout, TimeUnit unit) {
+        return submit(Objects.requireNonNull(rand), checkTimeout(timeout, unit));
+    }
+
+    private static long checkTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must be non-negative, was " + timeout);
+        return unit.toNanos(timeout);
+    }
+
+    /**
+     * @return int the number of runs which are currently queued or running.
+     */
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * @return int the maximum number of runs which may be queued or running at once.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    private CompletableFuture<T> submit(RandomSource rand, long timeoutNanos) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!permits.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException(maxInFlight + " runs are already in flight"));
+            return future;
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        if (timeoutNanos >= 0) future.orTimeout(timeoutNanos, TimeUnit.NANOSECONDS);
+        try {
+            executor.execute(() -> run(future, rand, timeoutNanos >= 0, deadline));
+        } catch (RuntimeException e) {
+            permits.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void run(CompletableFuture<T> future, RandomSource rand, boolean timed, long deadline) {
+        // The future may have timed out while the run was queued.
+        if (future.isDone()) {
+            permits.release();
+            return;
+        }
+        GrammarRunner<T> fork = null;
+        boolean limited = false;
+        T result = null;
+        Throwable failure = null;
+        try {
+            fork = idle.poll();
+            if (fork == null) fork = runner.concurrentFork();
+
+            long remaining = deadline - System.nanoTime();
+            if (timed && exclusive && (!budget.isTimed() || budget.timeoutNanos > remaining)) {
+                fork.setBudget(budget.withTimeout(Math.max(remaining, 0), TimeUnit.NANOSECONDS,
+                                                  GenerationBudget.Policy.FAIL));
+                limited = true;
+            }
+            result = fork.run(rand == null ? RandomSource.threadLocal() : rand);
+        } catch (GenerationBudget.ExceededException e) {
+            failure = e;
+            if (limited && e.limit() == GenerationBudget.Limit.TIME) {
+                failure = new TimeoutException();
+                failure.initCause(e);
+            }
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            if (fork != null) {
+                if (limited) fork.setBudget(budget);
+                idle.add(fork);
+            }
+            // Release the permit before completing the future, so that a caller which waits for the result may
+            // submit again straight away.
+            permits.release();
+        }
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        } else {
+            future.complete(result);
+        }
+    }
+}
@@ -19,6 +19,8 @@
 package com.github.kalexmills.stochrammar.runner;
 
 import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.RandomSource;
 import com.github.kalexmills.stochrammar.StochasticGrammar;
 
 import java.util.Arrays;
@@ -32,19 +34,56 @@ import java.util.Random;
  * The implementation used here involves double-buffering using two dynamic arrays. The buffers are not disposed of
  * between calls to run(), so if your grammars can generate strings of tokens which are particularly large, it is
  * certainly more memory efficient to have only one GroundSequenceRunner in memory that is shared by all clients.
+ *
+ * Two expansion modes are available. In PASSES mode, which is the default, every token in the sequence is replaced on
+ * each pass until a pass changes nothing, so ground tokens are copied again on every pass, and the cost of a run is
+ * proportional to the length of its output multiplied by the depth of its derivation. In LEFTMOST mode, the back
+ * buffer is instead used as a stack of unexpanded tokens, and the leftmost token is always expanded first, so each token
+ * is replaced exactly once, and ground tokens are written straight to the front buffer. Both modes generate the same
+ * distribution of sequences, but they draw random numbers in a different order, so a seed generally produces different
+ * sequences in each mode. LEFTMOST mode draws random numbers in the same order as a StreamingRunner.
+ *
+ * N.B.: A GroundSequenceRunner owns a single pair of buffers, so it must not be shared between threads. Use a
+ * ConcurrentGroundSequenceRunner when one runner must be shared by multiple threads.
  */
 public class GroundSequenceRunner<T> extends GrammarRunner<T> {
     static final int DEFAULT_BUFFER_SIZE = 32;
 
-    // Null-terminated buffers used to collect tokens as they are created.
-    // N.B.: A more space-efficient implementation would probably use one set of buffers per running thread.
-    private CFToken[] tokenBuffer;
-    private CFToken[] backBuffer;
+    public enum ExpansionMode {
+        PASSES,
+        LEFTMOST
+    }
+
+    private ExpansionMode expansionMode = ExpansionMode.PASSES;
+
+    // Buffers used by this runner, or null if buffers are obtained by some other means.
+    private final Buffers<T> buffers;
+    // The initial size of each buffer.
+    private final int bufferSize;
 
     public GroundSequenceRunner(StochasticGrammar<T> grammar) {
+        this(grammar, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param grammar StochasticGrammar the grammar to run.
+     * @param bufferSize int the initial size of each buffer. Buffers which start out large enough to hold the sequences
+     *                   usually generated by the grammar never need to grow.
+     */
+    public GroundSequenceRunner(StochasticGrammar<T> grammar, int bufferSize) {
+        this(grammar, checkBufferSize(bufferSize), new Buffers<>(bufferSize));
+    }
+
+    GroundSequenceRunner(StochasticGrammar<T> grammar, int bufferSize, Buffers<T> buffers) {
         super(grammar);
-        tokenBuffer = new CFToken[DEFAULT_BUFFER_SIZE];
-        backBuffer = new CFToken[DEFAULT_BUFFER_SIZE];
+        this.buffers = buffers;
+        this.bufferSize = bufferSize;
+    }
+
+    static int checkBufferSize(int bufferSize) {
+        // Room is needed for the root token and the null which follows it.
+        if (bufferSize < 2) throw new IllegalArgumentException("bufferSize must be at least 2, was " + bufferSize);
+        return bufferSize;
     }
 
     /**
@@ -55,76 +94,375 @@ public class GroundSequenceRunner<T> extends GrammarRunner<T> {
      * @return T an instance of type T which results from the generation.
      */
     public T run(Random rand) {
-        generateSequence(rand);
-        return generateEntity();
+        return run(RandomSource.of(rand));
+    }
+
+    /**
+     * Stochastically generates a new object of type T using the RandomSource passed. This runner ignores all
+     * non-ground tokens.
+     *
+     * @param rand RandomSource a pre-seeded source of random numbers to be used for the generation.
+     * @return T an instance of type T which results from the generation.
+     */
+    @Override
+    public T run(RandomSource rand) {
+        Buffers<T> buffers = buffers();
+        RunObserver observer = this.observer;
+        if (observer == null) {
+            generate(buffers, rand);
+            return generateEntity(buffers);
+        }
+        long start = System.nanoTime();
+        generate(buffers, rand);
+        long generated = System.nanoTime();
+        T result = generateEntity(buffers);
+        buffers.stats.expansionNanos = generated - start;
+        buffers.stats.actNanos = System.nanoTime() - generated;
+        observer.runCompleted(buffers.stats);
+        return result;
+    }
+
+    /**
+     * start begins a run which is carried out a little at a time, using the ThreadLocalRandom of the thread which
+     * advances it.
+     *
+     * @return ResumableRun a run which has not yet replaced any tokens.
+     */
+    public ResumableRun<T> start() {
+        return start(RandomSource.threadLocal());
+    }
+
+    /**
+     * start begins a run which is carried out a little at a time. The run makes the same choices as run would in
+     * LEFTMOST mode, whichever mode this runner is in.
+     *
+     * @param rand RandomSource a pre-seeded source of random numbers to be used for the generation.
+     * @return ResumableRun a run which has not yet replaced any tokens.
+     */
+    public ResumableRun<T> start(RandomSource rand) {
+        return new ResumableRun<>(this, bufferSize, rand);
+    }
+
+    public void setExpansionMode(ExpansionMode expansionMode) {
+        this.expansionMode = expansionMode;
+    }
+
+    @Override
+    protected GrammarRunner<T> fork() {
+        GroundSequenceRunner<T> result = new GroundSequenceRunner<>(grammar, bufferSize);
+        result.setExpansionMode(expansionMode);
+        result.setBudget(budget);
+        result.setObserver(observer);
+        return result;
+    }
+
+    /**
+     * @return Buffers the buffers to use for a run on the current thread.
+     */
+    Buffers<T> buffers() {
+        return buffers;
+    }
+
+    private void generate(Buffers<T> buffers, RandomSource rand) {
+        switch (expansionMode) {
+            default:
+            case PASSES:
+                generateSequence(buffers, rand);
+                break;
+            case LEFTMOST:
+                generateLeftmost(buffers, rand);
+                break;
+        }
+    }
+
+    /**
+     * Uses the grammar to produce a sequence of tokens, using the back buffer as a stack of unexpanded tokens and the
+     * front buffer for the output.
+     * @param buffers
+     * @param rand
+     */
+    private void generateLeftmost(Buffers<T> buffers, RandomSource rand) {
+        GenerationBudget<T> budget = this.budget;
+        int maxTokens = budget.maxTokens;
+        boolean timed = budget.isTimed();
+        long start = timed ? System.nanoTime() : 0;
+        int maxDepth = budget.maxDepth;
+        GenerationBudget.Limit limit = GenerationBudget.Limit.DEPTH;
+        GenerationBudget.Policy policy = budget.depthPolicy;
+        int visited = 0;
+        RunStats stats = buffers.stats;
+        stats.reset();
+
+        if (buffers.depths.length < buffers.backBuffer.length) {
+            // The back buffer may have grown during a run in PASSES mode.
+            buffers.depths = new int[buffers.backBuffer.length];
+        }
+
+        int top = 0; // top indexes the stack in backBuffer, whose top is the leftmost token.
+        int j = 0;   // j indexes tokenBuffer
+        buffers.depths[top] = 0;
+        buffers.backBuffer[top++] = grammar.generateRootToken();
+        stats.tokens = 1;
+
+        while (top > 0) {
+            CFToken<T> token = buffers.backBuffer[--top];
+            buffers.backBuffer[top] = null;
+            int depth = buffers.depths[top];
+
+            if (timed && (++visited & GenerationBudget.CLOCK_CHECK_MASK) == 0
+                      && System.nanoTime() - start > budget.timeoutNanos) {
+                // Out of time; cut off every token from here on.
+                timed = false;
+                maxDepth = 0;
+                limit = GenerationBudget.Limit.TIME;
+                policy = budget.timePolicy;
+            }
+
+            CFToken<T>[] tokens = CFToken.empty();
+            if (depth != GenerationBudget.CUT_OFF) {
+                tokens = token.replace(rand);
+                stats.replaceCalls++;
+            }
+            int childDepth = depth + 1;
+            if (tokens.length == 0) {
+                if (j == maxTokens) {
+                    if (budget.tokenPolicy == GenerationBudget.Policy.FAIL) {
+                        throw new GenerationBudget.ExceededException(GenerationBudget.Limit.TOKENS);
+                    }
+                    Arrays.fill(buffers.backBuffer, 0, top, null);
+                    break;
+                }
+                buffers.tokenBuffer[j++] = token;
+                if(j >= buffers.tokenBuffer.length) buffers.extendTokenBuffer();
+                continue;
+            }
+            if (depth >= maxDepth) {
+                tokens = budget.cutoff(token, limit, policy);
+                childDepth = GenerationBudget.CUT_OFF;
+            }
+            stats.tokens += tokens.length;
+            // Push in reverse, so that the leftmost token is expanded first.
+            if (top + tokens.length > buffers.backBuffer.length) buffers.extendStack(top + tokens.length);
+            for (int k = tokens.length - 1; k >= 0; --k) {
+                buffers.depths[top] = childDepth;
+                buffers.backBuffer[top++] = tokens[k];
+            }
+        }
+        // Ensure the front buffer remains null-terminated.
+        buffers.tokenBuffer[j] = null;
     }
 
     /**
      * Uses the grammar to produce a sequence of tokens.
+     * @param buffers
      * @param rand
      */
-    private void generateSequence(Random rand) {
+    private void generateSequence(Buffers<T> buffers, RandomSource rand) {
         // While a faster implementation might do some extra work to avoid calls to known GroundTokens, this will
         // only yield a practical speedup in the presence of a very large number of tokens. It may become necessary
         // at some later stage.
-        tokenBuffer[0] = grammar.generateRootToken();
-        tokenBuffer[1] = null;
+        GenerationBudget<T> budget = this.budget;
+        int maxTokens = budget.maxTokens;
+        boolean timed = budget.isTimed();
+        long start = timed ? System.nanoTime() : 0;
+        RunStats stats = buffers.stats;
+        stats.reset();
+        buffers.fitGround();
+
+        buffers.tokenBuffer[0] = grammar.generateRootToken();
+        buffers.tokenBuffer[1] = null;
+        buffers.tokenGround[0] = false;
+        stats.tokens = 1;
 
+        int passes = 0;
         boolean tokensChanged = true;
 
         // Generates a sequence of GroundTokens.
         while (tokensChanged) {
+            // Every pass expands each token by one level, so the number of passes is also the depth of the tree.
+            if (passes >= budget.maxPasses) {
+                cutoff(buffers, budget, GenerationBudget.Limit.PASSES, budget.passPolicy);
+                return;
+            }
+            if (passes >= budget.maxDepth) {
+                cutoff(buffers, budget, GenerationBudget.Limit.DEPTH, budget.depthPolicy);
+                return;
+            }
+            passes++;
+            stats.passes++;
             tokensChanged = false;
 
             int i = 0; // i indexes tokenBuffer
             int j = 0; // j indexes backBuffer
-            while(i < tokenBuffer.length && tokenBuffer[i] != null) {
-                CFToken[] tokens = tokenBuffer[i++].replace(rand);
+            while(i < buffers.tokenBuffer.length && buffers.tokenBuffer[i] != null) {
+                if (timed && (i & GenerationBudget.CLOCK_CHECK_MASK) == 0
+                          && System.nanoTime() - start > budget.timeoutNanos) {
+                    // Leave the rest of this pass unexpanded, so that the policy applies to all of it.
+                    while (i < buffers.tokenBuffer.length && buffers.tokenBuffer[i] != null) {
+                        buffers.backGround[j] = buffers.tokenGround[i];
+                        buffers.backBuffer[j++] = buffers.tokenBuffer[i++];
+                        if(j >= buffers.backBuffer.length) buffers.extendBackBuffer();
+                    }
+                    buffers.backBuffer[j] = null;
+                    buffers.swapBuffers();
+                    cutoff(buffers, budget, GenerationBudget.Limit.TIME, budget.timePolicy);
+                    return;
+                }
+                CFToken<T>[] tokens = buffers.tokenBuffer[i++].replace(rand);
+                stats.replaceCalls++;
+                stats.tokens += tokens.length;
+                if (j + Math.max(tokens.length, 1) > maxTokens) {
+                    // Tokens never shrink the sequence, so it is certain to exceed the limit. Keep whatever fits.
+                    if (budget.tokenPolicy == GenerationBudget.Policy.FAIL) {
+                        throw new GenerationBudget.ExceededException(GenerationBudget.Limit.TOKENS);
+                    }
+                    for (int k = 0; k < tokens.length && j < maxTokens; k++) {
+                        buffers.backGround[j] = false;
+                        buffers.backBuffer[j++] = tokens[k];
+                        if(j >= buffers.backBuffer.length) buffers.extendBackBuffer();
+                    }
+                    buffers.backBuffer[j] = null;
+                    buffers.swapBuffers();
+                    cutoff(buffers, budget, GenerationBudget.Limit.TOKENS, budget.tokenPolicy);
+                    return;
+                }
                 if(tokens.length != 0) {
                     tokensChanged = true;
                     // Insert new tokens
                     for (int k = 0; k < tokens.length; k++) {
-                        backBuffer[j++] = tokens[k];
-                        if(j >= backBuffer.length) extendBackBuffer();
+                        buffers.backGround[j] = false;
+                        buffers.backBuffer[j++] = tokens[k];
+                        if(j >= buffers.backBuffer.length) buffers.extendBackBuffer();
                     }
                 } else {
                     // We received an empty array. This was a ground token, so let's not overwrite it on the next pass.
-                    backBuffer[j++] = tokenBuffer[i-1];
-                    if(j >= backBuffer.length) extendBackBuffer();
+                    buffers.backGround[j] = true;
+                    buffers.backBuffer[j++] = buffers.tokenBuffer[i-1];
+                    if(j >= buffers.backBuffer.length) buffers.extendBackBuffer();
                 }
             }
             // Ensure back buffer remains null-terminated.
-            backBuffer[j] = null;
+            buffers.backBuffer[j] = null;
             if(tokensChanged) {
-                swapBuffers();
+                buffers.swapBuffers();
+            }
+        }
+    }
+
+    /**
+     * cutoff finishes the sequence in tokenBuffer once a limit of the budget has been reached. Tokens which an earlier
+     * pass found to be ground, and GroundTokens which have yet to be replaced, are kept. Every other token is replaced
+     * according to the policy, without being expanded any further. The sequence is cut short if it would exceed the
+     * token limit.
+     */
+    private void cutoff(Buffers<T> buffers, GenerationBudget<T> budget,
+                        GenerationBudget.Limit limit, GenerationBudget.Policy policy) {
+        int i = 0;
+        int j = 0;
+        while(i < buffers.tokenBuffer.length && buffers.tokenBuffer[i] != null && j < budget.maxTokens) {
+            boolean ground = buffers.tokenGround[i];
+            CFToken<T> token = buffers.tokenBuffer[i++];
+            if (ground || token instanceof GroundToken) {
+                buffers.backGround[j] = true;
+                buffers.backBuffer[j++] = token;
+                if(j >= buffers.backBuffer.length) buffers.extendBackBuffer();
+                continue;
+            }
+            CFToken<T>[] tokens = budget.cutoff(token, limit, policy);
+            buffers.stats.tokens += tokens.length;
+            for (int k = 0; k < tokens.length && j < budget.maxTokens; k++) {
+                buffers.backGround[j] = true;
+                buffers.backBuffer[j++] = tokens[k];
+                if(j >= buffers.backBuffer.length) buffers.extendBackBuffer();
             }
         }
+        buffers.backBuffer[j] = null;
+        buffers.swapBuffers();
     }
 
-    private T generateEntity() {
+    private T generateEntity(Buffers<T> buffers) {
         // Each token acts on a blankEntity instance of type T, in sequence.
+        CFToken<T>[] tokenBuffer = buffers.tokenBuffer;
         T result = grammar.blankEntity();
         int i = 0;
         while (tokenBuffer[i] != null) {
-            result = ((CFToken<T>)tokenBuffer[i++]).act(result);
+            result = tokenBuffer[i++].act(result);
         }
+        buffers.stats.groundTokens = i;
         return result;
     }
 
     /**
-     * extendBackBuffer doubles the size of the back buffer. This change eventually propagates to the front buffer,
-     * which means it is usually invoked twice whenever extensions are needed.
+     * Buffers holds the pair of null-terminated buffers used to collect tokens as they are created.
      */
-    private void extendBackBuffer() {
-        backBuffer = Arrays.copyOf(backBuffer, backBuffer.length * 2);
-    }
+    static class Buffers<T> {
+        CFToken<T>[] tokenBuffer;
+        CFToken<T>[] backBuffer;
+        // The depth of each token on the stack in LEFTMOST mode.
+        int[] depths;
+        // Whether each token in the front and back buffers is known to be ground, in PASSES mode.
+        boolean[] tokenGround;
+        boolean[] backGround;
+        // Statistics for the most recent run using these buffers.
+        final RunStats stats = new RunStats();
 
-    /**
-     * swapBuffers swaps the front and back buffers.
-     */
-    private void swapBuffers() {
-        CFToken[] temp = tokenBuffer;
-        tokenBuffer = backBuffer;
-        backBuffer = temp;
+        @SuppressWarnings("unchecked")
+        Buffers(int size) {
+            tokenBuffer = (CFToken<T>[]) new CFToken<?>[size];
+            backBuffer = (CFToken<T>[]) new CFToken<?>[size];
+            depths = new int[size];
+            tokenGround = new boolean[size];
+            backGround = new boolean[size];
+        }
+
+        /**
+         * fitGround ensures that the ground flags are as long as the buffers, which may have grown in LEFTMOST mode.
+         */
+        void fitGround() {
+            if (tokenGround.length < tokenBuffer.length) tokenGround = new boolean[tokenBuffer.length];
+            if (backGround.length < backBuffer.length) backGround = new boolean[backBuffer.length];
+        }
+
+        /**
+         * extendBackBuffer doubles the size of the back buffer. This change eventually propagates to the front buffer,
+         * which means it is usually invoked twice whenever extensions are needed.
+         */
+        void extendBackBuffer() {
+            backBuffer = Arrays.copyOf(backBuffer, backBuffer.length * 2);
+            backGround = Arrays.copyOf(backGround, backBuffer.length);
+            stats.bufferGrowths++;
+        }
+
+        /**
+         * extendTokenBuffer doubles the size of the front buffer. It is only needed in LEFTMOST mode, which writes
+         * directly to the front buffer.
+         */
+        void extendTokenBuffer() {
+            tokenBuffer = Arrays.copyOf(tokenBuffer, tokenBuffer.length * 2);
+            stats.bufferGrowths++;
+        }
+
+        /**
+         * extendStack grows the back buffer and the depths of the stack it holds in LEFTMOST mode, so that they have
+         * room for at least size tokens.
+         */
+        void extendStack(int size) {
+            size = Math.max(backBuffer.length * 2, size);
+            backBuffer = Arrays.copyOf(backBuffer, size);
+            depths = Arrays.copyOf(depths, size);
+            stats.bufferGrowths++;
+        }
+
+        /**
+         * swapBuffers swaps the front and back buffers.
+         */
+        void swapBuffers() {
+            CFToken<T>[] temp = tokenBuffer;
+            tokenBuffer = backBuffer;
+            backBuffer = temp;
+            boolean[] ground = tokenGround;
+            tokenGround = backGround;
+            backGround = ground;
+        }
     }
 }
\ No newline at end of file
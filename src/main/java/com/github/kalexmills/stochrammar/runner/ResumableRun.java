@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ResumableRun is a run of a GroundSequenceRunner which is carried out a little at a time, for callers which cannot
+ * afford to block for the length of a whole derivation, such as those which must finish each frame within a fixed
+ * time. A ResumableRun is created by GroundSequenceRunner::start, and is then advanced by a number of steps, or for a
+ * length of time, as many times as needed until it is done.
+ *
+ * Tokens are expanded in LEFTMOST order, and each step replaces a single token, so a ResumableRun makes the same
+ * random choices, and generates the same entity, as its runner would in LEFTMOST mode. Since the leftmost token is
+ * always expanded first, the ground tokens produced so far are a prefix of the final sequence, and can be inspected
+ * using groundTokens before the run is done.
+ *
+ * The budget of the runner applies to a ResumableRun as it does to a single call to run, except that only the time spent
+ * advancing the run counts towards the timeout. The observer of the runner is notified once the entity is produced.
+ *
+ * A ResumableRun keeps its own buffers, so its runner may be used for other runs in the meantime. The grammar and the
+ * RandomSource must not be used by other threads while the run is being advanced.
+ */
+public final class ResumableRun<T> {
+
+    private final StochasticGrammar<T> grammar;
+    private final RandomSource rand;
+    private final GenerationBudget<T> budget;
+    private final RunObserver observer;
+    private final GroundSequenceRunner.Buffers<T> buffers;
+
+    private int top; // top indexes the stack in backBuffer, whose top is the leftmost token.
+    private int j;   // j indexes tokenBuffer
+    private long steps;
+    private long elapsedNanos;
+    // The depth beyond which tokens are cut off, and the limit and policy to apply when they are.
+    private int maxDepth;
+    private GenerationBudget.Limit limit = GenerationBudget.Limit.DEPTH;
+    private GenerationBudget.Policy policy;
+    private boolean timed;
+
+    private T result;
+    private RuntimeException failure;
+
+    ResumableRun(GroundSequenceRunner<T> runner, int bufferSize, RandomSource rand) {
+        this.grammar = runner.grammar;
+        this.rand = rand;
+        this.budget = runner.budget;
+        this.observer = runner.observer;
+        buffers = new GroundSequenceRunner.Buffers<>(bufferSize);
+        maxDepth = budget.maxDepth;
+        policy = budget.depthPolicy;
+        timed = budget.isTimed();
+
+        buffers.stats.reset();
+        buffers.depths[top] = 0;
+        buffers.backBuffer[top++] = grammar.generateRootToken();
+        buffers.stats.tokens = 1;
+    }
+
+    /**
+     * advance replaces up to the given number of tokens, and produces the entity if the run is then done.
+     *
+     * @param steps long the maximum number of tokens to replace.
+     * @return boolean true if the run is done.
+     * @throws GenerationBudget.ExceededException if a limit of the budget is reached under the FAIL policy.
+     */
+    public boolean advance(long steps) {
+        if (steps < 0) throw new IllegalArgumentException("steps must be non-negative, was " + steps);
+        return expand(steps, 0, false);
+    }
+
+    /**
+     * advanceFor replaces tokens until the run is done, or until the given time has passed. The clock is only read
+     * every few hundred tokens, so the time may be overrun by the time it takes to replace that many tokens.
+     *
+     * @param time long the maximum time to spend.
+     * @param unit TimeUnit the unit of time.
+     * @return boolean true if the run is done.
+     * @throws GenerationBudget.ExceededException if a limit of the budget is reached under the FAIL policy.
+     */
+    public boolean advanceFor(long time, TimeUnit unit) {
+        if (time < 0) throw new IllegalArgumentException("time must be non-negative, was " + time);
+        return expand(Long.MAX_VALUE, unit.toNanos(time), true);
+    }
+
+    /**
+     * finish advances the run until it is done.
+     *
+     * @return T the generated entity.
+     * @throws GenerationBudget.ExceededException if a limit of the budget is reached under the FAIL policy.
+     */
+    public T finish() {
+        advance(Long.MAX_VALUE);
+        return getResult();
+    }
+
+    /**
+     * @return boolean true if every token has been replaced, or the run has failed.
+     */
+    public boolean isDone() {
+        return top == 0;
+    }
+
+    /**
+     * @return T the generated entity.
+     * @throws IllegalStateException if the run is not done.
+     * @throws GenerationBudget.ExceededException if the run failed because a limit of the budget was reached.
+     */
+    public T getResult() {
+        if (failure != null) throw failure;
+        if (result == null) throw new IllegalStateException("The run is not done");
+        return result;
+    }
+
+    /**
+     * @return long the number of tokens replaced so far.
+     */
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * @return int the number of tokens which are still to be replaced.
+     */
+    public int pendingTokens() {
+        return top;
+    }
+
+    /**
+     * @return List a read-only view of the ground tokens produced so far, in order. Tokens are only ever appended to
+     *              it, so the view remains valid as the run advances.
+     */
+    public List<CFToken<T>> groundTokens() {
+        return new AbstractList<CFToken<T>>() {
+            @Override
+            public CFToken<T> get(int index) {
+                if (index < 0 || index >= j) throw new IndexOutOfBoundsException("Index " + index + " of " + j);
+                return buffers.tokenBuffer[index];
+            }
+
+            @Override
+            public int size() {
+                return j;
+            }
+        };
+    }
+
+    /**
+     * @return RunStats the statistics of this run so far.
+     */
+    public RunStats stats() {
+        return buffers.stats;
+    }
+
+    private boolean expand(long maxSteps, long timeNanos, boolean clocked) {
+        if (top == 0) return true;
+        GroundSequenceRunner.Buffers<T> buffers = this.buffers;
+        RunStats stats = buffers.stats;
+        long start = System.nanoTime();
+        long n = 0;
+        try {
+            while (top > 0 && n < maxSteps) {
+                // The clock is checked periodically within this call, and periodically over the steps of the whole
+                // run, so that the time budget is still honored when the run is advanced a few steps at a time.
+                if ((n & GenerationBudget.CLOCK_CHECK_MASK) == GenerationBudget.CLOCK_CHECK_MASK
+                        || ((steps + n) & GenerationBudget.CLOCK_CHECK_MASK) == GenerationBudget.CLOCK_CHECK_MASK) {
+                    long now = System.nanoTime();
+                    if (clocked && now - start >= timeNanos) break;
+                    if (timed && elapsedNanos + (now - start) > budget.timeoutNanos) {
+                        // Out of time; cut off every token from here on.
+                        timed = false;
+                        maxDepth = 0;
+                        limit = GenerationBudget.Limit.TIME;
+                        policy = budget.timePolicy;
+                    }
+                }
+                n++;
+                CFToken<T> token = buffers.backBuffer[--top];
+                buffers.backBuffer[top] = null;
+                int depth = buffers.depths[top];
+
+                CFToken<T>[] tokens = CFToken.empty();
+                if (depth != GenerationBudget.CUT_OFF) {
+                    tokens = token.replace(rand);
+                    stats.replaceCalls++;
+                }
+                int childDepth = depth + 1;
+                if (tokens.length == 0) {
+                    if (j == budget.maxTokens) {
+                        if (budget.tokenPolicy == GenerationBudget.Policy.FAIL) {
+                            throw new GenerationBudget.ExceededException(GenerationBudget.Limit.TOKENS);
+                        }
+                        Arrays.fill(buffers.backBuffer, 0, top, null);
+                        top = 0;
+                        break;
+                    }
+                    buffers.tokenBuffer[j++] = token;
+                    if (j >= buffers.tokenBuffer.length) buffers.extendTokenBuffer();
+                    continue;
+                }
+                if (depth >= maxDepth) {
+                    tokens = budget.cutoff(token, limit, policy);
+                    childDepth = GenerationBudget.CUT_OFF;
+                }
+                stats.tokens += tokens.length;
+                // Push in reverse, so that the leftmost token is expanded first.
+                if (top + tokens.length > buffers.backBuffer.length) buffers.extendStack(top + tokens.length);
+                for (int k = tokens.length - 1; k >= 0; --k) {
+                    buffers.depths[top] = childDepth;
+                    buffers.backBuffer[top++] = tokens[k];
+                }
+            }
+        } catch (RuntimeException e) {
+            Arrays.fill(buffers.backBuffer, 0, top, null);
+            top = 0;
+            failure = e;
+            throw e;
+        } finally {
+            steps += n;
+            elapsedNanos += System.nanoTime() - start;
+        }
+        if (top == 0) produce();
+        return top == 0;
+    }
+
+    private void produce() {
+        RunStats stats = buffers.stats;
+        long start = System.nanoTime();
+        T entity = grammar.blankEntity();
+        for (int i = 0; i < j; ++i) {
+            entity = buffers.tokenBuffer[i].act(entity);
+        }
+        result = entity;
+        stats.groundTokens = j;
+        stats.expansionNanos = elapsedNanos;
+        stats.actNanos = System.nanoTime() - start;
+        if (observer != null) observer.runCompleted(stats);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RunMetrics is a RunObserver which aggregates the RunStats of every run it observes. Each total is kept in a LongAdder,
+ * so many threads may report runs at once without contending with one another. Reading a total while runs are being
+ * reported is safe, but the totals are not a consistent snapshot of one another.
+ */
+public class RunMetrics implements RunObserver {
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder replaceCalls = new LongAdder();
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder groundTokens = new LongAdder();
+    private final LongAdder bufferGrowths = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder expansionNanos = new LongAdder();
+    private final LongAdder actNanos = new LongAdder();
+
+    @Override
+    public void runCompleted(RunStats stats) {
+        runs.increment();
+        replaceCalls.add(stats.replaceCalls);
+        passes.add(stats.passes);
+        groundTokens.add(stats.groundTokens);
+        bufferGrowths.add(stats.bufferGrowths);
+        tokens.add(stats.tokens);
+        expansionNanos.add(stats.expansionNanos);
+        actNanos.add(stats.actNanos);
+    }
+
+    /**
+     * @return long the number of runs observed.
+     */
+    public long runs() {
+        return runs.sum();
+    }
+
+    /**
+     * @return long the total number of calls made to CFToken.replace().
+     */
+    public long replaceCalls() {
+        return replaceCalls.sum();
+    }
+
+    /**
+     * @return long the total number of expansion passes.
+     */
+    public long passes() {
+        return passes.sum();
+    }
+
+    /**
+     * @return long the total number of GroundTokens which acted.
+     */
+    public long groundTokens() {
+        return groundTokens.sum();
+    }
+
+    /**
+     * @return long the total number of times a buffer or stack had to grow.
+     */
+    public long bufferGrowths() {
+        return bufferGrowths.sum();
+    }
+
+    /**
+     * @return long the total number of tokens generated.
+     */
+    public long tokens() {
+        return tokens.sum();
+    }
+
+    /**
+     * @return long the total number of nanoseconds spent expanding tokens.
+     */
+    public long expansionNanos() {
+        return expansionNanos.sum();
+    }
+
+    /**
+     * @return long the total number of nanoseconds spent applying the act() methods of tokens.
+     */
+    public long actNanos() {
+        return actNanos.sum();
+    }
+
+    /**
+     * reset sets every total back to zero. Runs reported while reset is in progress may be partially lost.
+     */
+    public void reset() {
+        runs.reset();
+        replaceCalls.reset();
+        passes.reset();
+        groundTokens.reset();
+        bufferGrowths.reset();
+        tokens.reset();
+        expansionNanos.reset();
+        actNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "RunMetrics{runs=" + runs() + ", replaceCalls=" + replaceCalls() + ", passes=" + passes() +
+               ", groundTokens=" + groundTokens() + ", bufferGrowths=" + bufferGrowths() + ", tokens=" + tokens() +
+               ", expansionNanos=" + expansionNanos() + ", actNanos=" + actNanos() + "}";
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+/**
+ * RunObserver is notified by a GrammarRunner at the end of each run which completes normally. Runners which are forked
+ * for batch generation share the observer of the runner they were forked from, so an observer used for batches must be
+ * safe to use from multiple threads.
+ */
+@FunctionalInterface
+public interface RunObserver {
+
+    /**
+     * runCompleted is called by the thread which performed the run, after the run has finished.
+     *
+     * @param stats RunStats describing the work done by the run. Runners reuse their RunStats, so observers must copy
+     *              any values they wish to keep before returning.
+     */
+    void runCompleted(RunStats stats);
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+/**
+ * RunStats describes the work done by a single run of a GrammarRunner.
+ *
+ * Counting is cheap, and is always performed. Timing requires calls to System.nanoTime(), so time is only measured
+ * while a RunObserver is set on the runner.
+ */
+public final class RunStats {
+    long replaceCalls;
+    int passes;
+    long groundTokens;
+    int bufferGrowths;
+    long tokens;
+    long expansionNanos;
+    long actNanos;
+
+    RunStats() {
+    }
+
+    /**
+     * @return long the number of calls made to CFToken.replace().
+     */
+    public long replaceCalls() {
+        return replaceCalls;
+    }
+
+    /**
+     * @return int the number of expansion passes made over the sequence. Only GroundSequenceRunner expands in passes;
+     *             other runners report 0.
+     */
+    public int passes() {
+        return passes;
+    }
+
+    /**
+     * @return long the number of GroundTokens which acted on the entity.
+     */
+    public long groundTokens() {
+        return groundTokens;
+    }
+
+    /**
+     * @return int the number of times a buffer or stack had to grow during the run.
+     */
+    public int bufferGrowths() {
+        return bufferGrowths;
+    }
+
+    /**
+     * @return long the number of tokens generated, ground or not, including the root. This is the number of nodes in
+     *              the derivation tree.
+     */
+    public long tokens() {
+        return tokens;
+    }
+
+    /**
+     * @return long the number of nanoseconds spent expanding tokens.
+     */
+    public long expansionNanos() {
+        return expansionNanos;
+    }
+
+    /**
+     * @return long the number of nanoseconds spent applying the act() methods of tokens.
+     */
+    public long actNanos() {
+        return actNanos;
+    }
+
+    void reset() {
+        replaceCalls = 0;
+        passes = 0;
+        groundTokens = 0;
+        bufferGrowths = 0;
+        tokens = 0;
+        expansionNanos = 0;
+        actNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RunStats{replaceCalls=" + replaceCalls + ", passes=" + passes + ", groundTokens=" + groundTokens +
+               ", bufferGrowths=" + bufferGrowths + ", tokens=" + tokens + ", expansionNanos=" + expansionNanos +
+               ", actNanos=" + actNanos + "}";
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * StreamingRunner provides an algorithm for running a StochasticGrammar which hands each GroundToken to its caller as
+ * soon as the token is known to be final. Tokens are always expanded leftmost-first using a stack, so every
+ * GroundToken which is produced is final, and GroundTokens are produced in the same left-to-right order in which a
+ * GroundSequenceRunner would apply them. Only the tokens which have not yet been expanded are ever stored, so memory
+ * use is proportional to the depth of the derivation, not to the size of its output.
+ *
+ * The stack is not disposed of between calls to run(), so a StreamingRunner must not be shared between threads.
+ */
+public class StreamingRunner<T> extends GrammarRunner<T> {
+    static final int DEFAULT_STACK_SIZE = 32;
+
+    // Tokens which have not yet been expanded. The top of the stack is the leftmost token.
+    private CFToken<T>[] stack;
+    // The depth of each token on the stack, used to enforce the budget.
+    private int[] depths;
+    // Statistics for the most recent run.
+    private final RunStats stats = new RunStats();
+
+    public StreamingRunner(StochasticGrammar<T> grammar) {
+        super(grammar);
+        stack = CFToken.newArray(DEFAULT_STACK_SIZE);
+        depths = new int[DEFAULT_STACK_SIZE];
+    }
+
+    /**
+     * Stochastically generates a new object of type T using the Random instance passed. This runner ignores all
+     * non-ground tokens, and applies each GroundToken to the blankEntity as soon as it is generated.
+     *
+     * @param rand Random a pre-seeded random number generator to be used for the generation.
+     * @return T an instance of type T which results from the generation.
+     */
+    @Override
+    public T run(Random rand) {
+        return run(RandomSource.of(rand));
+    }
+
+    /**
+     * Stochastically generates a new object of type T using the RandomSource passed. This runner ignores all
+     * non-ground tokens, and applies each GroundToken to the blankEntity as soon as it is generated.
+     *
+     * @param rand RandomSource a pre-seeded source of random numbers to be used for the generation.
+     * @return T an instance of type T which results from the generation.
+     */
+    @Override
+    public T run(RandomSource rand) {
+        EntitySink<T> sink = new EntitySink<>(grammar.blankEntity());
+        generate(rand, sink);
+        return sink.entity;
+    }
+
+    @Override
+    protected GrammarRunner<T> fork() {
+        StreamingRunner<T> result = new StreamingRunner<>(grammar);
+        result.setBudget(budget);
+        result.setObserver(observer);
+        return result;
+    }
+
+    /**
+     * Stochastically generates a sequence of GroundTokens, passing each one to the sink in order as soon as it is
+     * generated.
+     *
+     * @param rand Random a pre-seeded random number generator to be used for the generation.
+     * @param sink Consumer which accepts each GroundToken in the sequence.
+     */
+    public void generate(Random rand, Consumer<? super CFToken<T>> sink) {
+        generate(RandomSource.of(rand), sink);
+    }
+
+    /**
+     * Stochastically generates a sequence of GroundTokens, passing each one to the sink in order as soon as it is
+     * generated.
+     *
+     * @param rand RandomSource a pre-seeded source of random numbers to be used for the generation.
+     * @param sink Consumer which accepts each GroundToken in the sequence.
+     */
+    public void generate(RandomSource rand, Consumer<? super CFToken<T>> sink) {
+        GenerationBudget<T> budget = this.budget;
+        boolean timed = budget.isTimed();
+        long start = timed ? System.nanoTime() : 0;
+        int maxDepth = budget.maxDepth;
+        GenerationBudget.Limit limit = GenerationBudget.Limit.DEPTH;
+        GenerationBudget.Policy policy = budget.depthPolicy;
+        int visited = 0;
+        RunObserver observer = this.observer;
+        stats.reset();
+        long runStart = (observer == null) ? 0 : System.nanoTime();
+
+        int top = 0;
+        depths[top] = 0;
+        stack[top++] = grammar.generateRootToken();
+        stats.tokens = 1;
+
+        while (top > 0) {
+            CFToken<T> token = stack[--top];
+            stack[top] = null;
+            int depth = depths[top];
+
+            if (timed && (++visited & GenerationBudget.CLOCK_CHECK_MASK) == 0
+                      && System.nanoTime() - start > budget.timeoutNanos) {
+                // Out of time; cut off every token from here on.
+                timed = false;
+                maxDepth = 0;
+                limit = GenerationBudget.Limit.TIME;
+                policy = budget.timePolicy;
+            }
+
+            CFToken<T>[] tokens = CFToken.empty();
+            if (depth != GenerationBudget.CUT_OFF) {
+                tokens = token.replace(rand);
+                stats.replaceCalls++;
+            }
+            int childDepth = depth + 1;
+            if (tokens.length == 0) {
+                if (stats.groundTokens == budget.maxTokens) {
+                    if (budget.tokenPolicy == GenerationBudget.Policy.FAIL) {
+                        throw new GenerationBudget.ExceededException(GenerationBudget.Limit.TOKENS);
+                    }
+                    Arrays.fill(stack, 0, top, null);
+                    break;
+                }
+                stats.groundTokens++;
+                if (observer != null) {
+                    long actStart = System.nanoTime();
+                    sink.accept(token);
+                    stats.actNanos += System.nanoTime() - actStart;
+                } else {
+                    sink.accept(token);
+                }
+                continue;
+            }
+            if (depth >= maxDepth) {
+                tokens = budget.cutoff(token, limit, policy);
+                childDepth = GenerationBudget.CUT_OFF;
+            }
+            // Push in reverse, so that the leftmost token is expanded first.
+            if (top + tokens.length > stack.length) {
+                int size = Math.max(stack.length * 2, top + tokens.length);
+                stack = Arrays.copyOf(stack, size);
+                depths = Arrays.copyOf(depths, size);
+                stats.bufferGrowths++;
+            }
+            for (int k = tokens.length - 1; k >= 0; --k) {
+                depths[top] = childDepth;
+                stack[top++] = tokens[k];
+            }
+            stats.tokens += tokens.length;
+        }
+        if (observer != null) {
+            stats.expansionNanos = System.nanoTime() - runStart - stats.actNanos;
+            observer.runCompleted(stats);
+        }
+    }
+
+    /**
+     * EntitySink applies each token it accepts to a single entity.
+     */
+    private static class EntitySink<T> implements Consumer<CFToken<T>> {
+        private T entity;
+
+        EntitySink(T entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public void accept(CFToken<T> token) {
+            entity = token.act(entity);
+        }
+    }
+}
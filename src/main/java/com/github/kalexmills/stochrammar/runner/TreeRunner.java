@@ -19,159 +19,251 @@
 package com.github.kalexmills.stochrammar.runner;
 
 import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.RandomSource;
 import com.github.kalexmills.stochrammar.StochasticGrammar;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
- * TreeRunner provides an algorithm for running a StochasticGrammar. GrammarTokens generated by the grammar are
- * stored in a tree. The act() methods are applied to a blankEntity object via either a depth-first or a breadth-first
- * traversal of the resulting tree.
+ * TreeRunner provides an algorithm for running a StochasticGrammar. The act() methods of every token generated by the
+ * grammar, ground or not, are applied to a blankEntity object in the order of either a depth-first or a breadth-first
+ * traversal of the derivation tree.
+ *
+ * The derivation tree is never actually constructed. In DEPTH_FIRST mode, each token acts as soon as it is taken from
+ * a stack of unexpanded tokens, and its replacement is then pushed onto the same stack. The tree is visited in
+ * pre-order, with the children of each token visited from right to left. In BREADTH_FIRST mode, each level of the tree
+ * acts from left to right as it is replaced to produce the next level. The arrays used for the stack and the levels
+ * are not disposed of between calls to run(), so a TreeRunner must not be shared between threads.
  *
  * @param <T>
  */
 public class TreeRunner<T> extends GrammarRunner<T> {
-    // TODO: This could be much more performant if it didn't construct an actual tree at all.
+    static final int DEFAULT_BUFFER_SIZE = 32;
 
     public enum TraversalType {
         DEPTH_FIRST,
         BREADTH_FIRST
     }
 
-    private TreeNode root;
     private TraversalType traversalType = TraversalType.DEPTH_FIRST;
 
+    // The stack in DEPTH_FIRST mode, or the current level in BREADTH_FIRST mode.
+    private CFToken<T>[] tokenBuffer;
+    // The next level in BREADTH_FIRST mode.
+    private CFToken<T>[] backBuffer;
+    // The depth of each token in tokenBuffer and backBuffer, used to enforce the budget.
+    private int[] depthBuffer;
+    private int[] backDepthBuffer;
+    // Statistics for the most recent run.
+    private final RunStats stats = new RunStats();
+
     public TreeRunner(StochasticGrammar<T> grammar) {
         super(grammar);
+        tokenBuffer = CFToken.newArray(DEFAULT_BUFFER_SIZE);
+        backBuffer = CFToken.newArray(DEFAULT_BUFFER_SIZE);
+        depthBuffer = new int[DEFAULT_BUFFER_SIZE];
+        backDepthBuffer = new int[DEFAULT_BUFFER_SIZE];
     }
 
     @Override
     public T run(Random rand) {
-        generateTree(rand);
-        return generateEntity();
-    }
-
-    public void setTraversalType(TraversalType traversalType) {
-        this.traversalType = traversalType;
-    }
-
-    private void generateTree(Random rand) {
-        Stack<TreeNode> frontier = new Stack<>();
-
-        root = new TreeNode(grammar.generateRootToken());
-        frontier.push(root);
-        while(!frontier.isEmpty()) {
-            TreeNode<T> node = frontier.pop();
-
-            CFToken[] tokens = node.token.replace(rand);
-            if (tokens != null) {
-
-                node.addChildren(tokens);
-                for (int i = 0; i < node.nChildren; ++i) {
-                    frontier.push(node.children[i]);
-                }
-            }
-        }
+        return run(RandomSource.of(rand));
     }
 
-    private T generateEntity() {
-        TraversalSequence sequence;
+    @Override
+    public T run(RandomSource rand) {
+        RunObserver observer = this.observer;
+        stats.reset();
+        long start = (observer == null) ? 0 : System.nanoTime();
+        T result;
         switch (traversalType) {
             default:
             case DEPTH_FIRST:
-                sequence = new TraversalStack();
+                result = runDepthFirst(rand, observer != null);
                 break;
             case BREADTH_FIRST:
-                sequence = new TraversalQueue();
+                result = runBreadthFirst(rand, observer != null);
                 break;
         }
-        T entity = grammar.blankEntity();
-        sequence.add(root);
-        while(!sequence.isEmpty()) {
-            TreeNode<T> curr = sequence.next();
-
-            for (int i = 0; i < curr.nChildren; ++i) {
-                sequence.add(curr.children[i]);
-            }
-            entity = curr.token.act(entity);
+        if (observer != null) {
+            stats.expansionNanos = System.nanoTime() - start - stats.actNanos;
+            observer.runCompleted(stats);
         }
-        return entity;
+        return result;
     }
 
-    /**
-     * TraversalList provides an interface for sequential data structures used for tree traversal.
-     */
-    private interface TraversalSequence {
-        void add(TreeNode node);
-        TreeNode next();
-        boolean isEmpty();
+    public void setTraversalType(TraversalType traversalType) {
+        this.traversalType = traversalType;
+    }
+
+    @Override
+    protected GrammarRunner<T> fork() {
+        TreeRunner<T> result = new TreeRunner<>(grammar);
+        result.setTraversalType(traversalType);
+        result.setBudget(budget);
+        result.setObserver(observer);
+        return result;
     }
 
-    private static class TraversalStack implements TraversalSequence {
+    private T runDepthFirst(RandomSource rand, boolean timeActs) {
+        GenerationBudget<T> budget = this.budget;
+        boolean timed = budget.isTimed();
+        long start = timed ? System.nanoTime() : 0;
+        int maxDepth = budget.maxDepth;
+        GenerationBudget.Limit limit = GenerationBudget.Limit.DEPTH;
+        GenerationBudget.Policy policy = budget.depthPolicy;
+        int acted = 0;
+        int visited = 0;
 
-        private Stack<TreeNode> stack;
-        public TraversalStack() { this.stack = new Stack<>(); }
+        T entity = grammar.blankEntity();
 
-        @Override
-        public void add(TreeNode node) { stack.push(node); }
+        int top = 0;
+        depthBuffer[top] = 0;
+        tokenBuffer[top++] = grammar.generateRootToken();
+        stats.tokens = 1;
+        while (top > 0) {
+            CFToken<T> token = tokenBuffer[--top];
+            tokenBuffer[top] = null;
+            int depth = depthBuffer[top];
 
-        @Override
-        public TreeNode next() { return stack.pop(); }
+            if (timed && (++visited & GenerationBudget.CLOCK_CHECK_MASK) == 0
+                      && System.nanoTime() - start > budget.timeoutNanos) {
+                // Out of time; cut off every token from here on.
+                timed = false;
+                maxDepth = 0;
+                limit = GenerationBudget.Limit.TIME;
+                policy = budget.timePolicy;
+            }
 
-        @Override
-        public boolean isEmpty() {
-            return stack.isEmpty();
+            // Every token acts, so every token counts towards the limit.
+            if (acted++ == budget.maxTokens) {
+                checkTokenPolicy(budget);
+                Arrays.fill(tokenBuffer, 0, top, null);
+                return entity;
+            }
+
+            CFToken<T>[] tokens = CFToken.empty();
+            if (depth != GenerationBudget.CUT_OFF) {
+                tokens = token.replace(rand);
+                stats.replaceCalls++;
+            }
+            int childDepth = depth + 1;
+            if (tokens.length == 0) {
+                stats.groundTokens++;
+            } else if (depth >= maxDepth) {
+                tokens = budget.cutoff(token, limit, policy);
+                childDepth = GenerationBudget.CUT_OFF;
+            }
+            stats.tokens += tokens.length;
+            if (timeActs) {
+                long actStart = System.nanoTime();
+                entity = token.act(entity);
+                stats.actNanos += System.nanoTime() - actStart;
+            } else {
+                entity = token.act(entity);
+            }
+
+            if (top + tokens.length > tokenBuffer.length) {
+                int size = Math.max(tokenBuffer.length * 2, top + tokens.length);
+                tokenBuffer = Arrays.copyOf(tokenBuffer, size);
+                depthBuffer = Arrays.copyOf(depthBuffer, size);
+                stats.bufferGrowths++;
+            }
+            // The last child is on top of the stack, and is visited first.
+            System.arraycopy(tokens, 0, tokenBuffer, top, tokens.length);
+            Arrays.fill(depthBuffer, top, top + tokens.length, childDepth);
+            top += tokens.length;
         }
+        return entity;
     }
 
-    private static class TraversalQueue implements TraversalSequence {
-        private Queue<TreeNode> queue;
-        public TraversalQueue() { this.queue = new LinkedList<>(); }
+    private T runBreadthFirst(RandomSource rand, boolean timeActs) {
+        GenerationBudget<T> budget = this.budget;
+        boolean timed = budget.isTimed();
+        long start = timed ? System.nanoTime() : 0;
+        int maxDepth = budget.maxDepth;
+        GenerationBudget.Limit limit = GenerationBudget.Limit.DEPTH;
+        GenerationBudget.Policy policy = budget.depthPolicy;
+        int acted = 0;
+        int visited = 0;
 
-        @Override
-        public void add(TreeNode node) { queue.add(node); }
+        T entity = grammar.blankEntity();
 
-        @Override
-        public TreeNode next() { return queue.remove(); }
+        int n = 0; // the number of tokens in the current level.
+        depthBuffer[n] = 0;
+        tokenBuffer[n++] = grammar.generateRootToken();
+        stats.tokens = 1;
+        while (n > 0) {
+            int m = 0; // the number of tokens in the next level.
+            for (int i = 0; i < n; ++i) {
+                CFToken<T> token = tokenBuffer[i];
+                int depth = depthBuffer[i];
 
-        @Override
-        public boolean isEmpty() {
-            return queue.isEmpty();
-        }
-    }
+                if (timed && (++visited & GenerationBudget.CLOCK_CHECK_MASK) == 0
+                          && System.nanoTime() - start > budget.timeoutNanos) {
+                    // Out of time; cut off every token from here on.
+                    timed = false;
+                    maxDepth = 0;
+                    limit = GenerationBudget.Limit.TIME;
+                    policy = budget.timePolicy;
+                }
 
-    /**
-     * TreeNode wraps CFToken, providing an n-ary tree structure on top of it.
-     * @param <T>
-     */
-    private static class TreeNode<T> {
-        // The default number of slots to allocate a new TreeNode.
-        private static final int DEFAULT_ARITY = 4;
-        private TreeNode[] children;
-        private int nChildren = 0;
-        CFToken<T> token;
-
-        public TreeNode(CFToken<T> token) {
-            this(token, DEFAULT_ARITY);
-        }
+                // Every token acts, so every token counts towards the limit.
+                if (acted++ == budget.maxTokens) {
+                    checkTokenPolicy(budget);
+                    Arrays.fill(tokenBuffer, 0, n, null);
+                    Arrays.fill(backBuffer, 0, m, null);
+                    return entity;
+                }
 
-        public TreeNode(CFToken<T> token, int arity) {
-            this.token = token;
-            this.children = new TreeNode[4];
-        }
+                CFToken<T>[] tokens = CFToken.empty();
+                if (depth != GenerationBudget.CUT_OFF) {
+                    tokens = token.replace(rand);
+                    stats.replaceCalls++;
+                }
+                int childDepth = depth + 1;
+                if (tokens.length == 0) {
+                    stats.groundTokens++;
+                } else if (depth >= maxDepth) {
+                    tokens = budget.cutoff(token, limit, policy);
+                    childDepth = GenerationBudget.CUT_OFF;
+                }
+                stats.tokens += tokens.length;
+                if (timeActs) {
+                    long actStart = System.nanoTime();
+                    entity = token.act(entity);
+                    stats.actNanos += System.nanoTime() - actStart;
+                } else {
+                    entity = token.act(entity);
+                }
 
-        public void addChildren(CFToken<T>... tokens) {
-            // Double size of children array if needed.
-            if (nChildren + tokens.length < children.length) {
-                int newLen = Math.max(children.length*2, nChildren + tokens.length);
-                children = Arrays.copyOf(children, newLen);
-            }
-            // Insert TreeNode into children array.
-            for (int i = 0; i < tokens.length; ++i) {
-                children[nChildren + i] = new TreeNode(tokens[i]);
+                if (m + tokens.length > backBuffer.length) {
+                    int size = Math.max(backBuffer.length * 2, m + tokens.length);
+                    backBuffer = Arrays.copyOf(backBuffer, size);
+                    backDepthBuffer = Arrays.copyOf(backDepthBuffer, size);
+                    stats.bufferGrowths++;
+                }
+                System.arraycopy(tokens, 0, backBuffer, m, tokens.length);
+                Arrays.fill(backDepthBuffer, m, m + tokens.length, childDepth);
+                m += tokens.length;
             }
-            // Update dynamic array length.
-            nChildren += tokens.length;
+            Arrays.fill(tokenBuffer, 0, n, null);
+
+            CFToken<T>[] temp = tokenBuffer;
+            tokenBuffer = backBuffer;
+            backBuffer = temp;
+            int[] tempDepths = depthBuffer;
+            depthBuffer = backDepthBuffer;
+            backDepthBuffer = tempDepths;
+            n = m;
+        }
+        return entity;
+    }
+
+    private static void checkTokenPolicy(GenerationBudget<?> budget) {
+        if (budget.tokenPolicy == GenerationBudget.Policy.FAIL) {
+            throw new GenerationBudget.ExceededException(GenerationBudget.Limit.TOKENS);
         }
     }
 }
@@ -0,0 +1,51 @@
+package com.github.kalexmills.stochrammar;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class AliasTableTest {
+
+    @Test
+    public void testSamplesAccordingToWeights() {
+        double[] weights = { 1, 2, 3, 4, 0, 10 };
+        AliasTable underTest = new AliasTable(weights);
+        Random rand = new Random(0);
+
+        int n = 200000;
+        int[] counts = new int[weights.length];
+        for (int i = 0; i < n; ++i) {
+            counts[underTest.sample(rand)]++;
+        }
+
+        assertThat(underTest.size()).isEqualTo(weights.length);
+        for (int i = 0; i < weights.length; ++i) {
+            assertThat((double) counts[i] / n).isCloseTo(weights[i] / 20, within(0.01));
+        }
+        assertThat(counts[4]).isEqualTo(0);
+    }
+
+    @Test
+    public void testSingleOutcome() {
+        AliasTable underTest = new AliasTable(0.5);
+        Random rand = new Random(0);
+
+        for (int i = 0; i < 100; ++i) {
+            assertThat(underTest.sample(rand)).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidWeights() {
+        assertThatThrownBy(() -> new AliasTable()).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AliasTable(0, 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AliasTable(1, -1)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AliasTable(1, Double.NaN)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AliasTable(1, Double.POSITIVE_INFINITY))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.kalexmills.stochrammar;
+
+import com.github.kalexmills.stochrammar.examples.WeightedGrammar;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import com.github.kalexmills.stochrammar.runner.GrammarRunner;
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import com.github.kalexmills.stochrammar.runner.TreeRunner;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ChoiceLogTest {
+
+    private static TextGrammar abracadabra() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, 1, g.new Literal("abra"));
+        g.addRule(TextGrammar.ROOT_KEY, 2, g.new Literal("cadabra"));
+        g.addRule(TextGrammar.ROOT_KEY, 4, g.new Literal("abra"), g.new ProductionRule("ROOT"));
+        g.addRule(TextGrammar.ROOT_KEY, 3, g.new Literal("cadabra"), g.new ProductionRule("ROOT"));
+        g.addRule(TextGrammar.ROOT_KEY, 3, g.new ProductionRule("NAME"), g.new ProductionRule("ROOT"));
+        g.addRule("NAME", g.new Literal("al"));
+        g.addRule("NAME", g.new Literal("bob"));
+        g.addRule("NAME", g.new Literal("cy"));
+        return g;
+    }
+
+    private static List<GrammarRunner<StringBuilder>> runners() {
+        return Arrays.asList(new GroundSequenceRunner<>(abracadabra()),
+                             new GroundSequenceRunner<>(abracadabra().compile(true)),
+                             new TreeRunner<>(abracadabra().compile()));
+    }
+
+    @Test
+    public void testReplayGeneratesRecordedText() {
+        for (GrammarRunner<StringBuilder> runner : runners()) {
+            ChoiceLog log = new ChoiceLog();
+            for (long seed = 0; seed < 100; ++seed) {
+                log.clear();
+                String expected = runner.run(new Random(seed)).toString();
+
+                assertThat(runner.run(log.record(RandomSource.of(new Random(seed)))).toString()).isEqualTo(expected);
+                assertThat(runner.run(log.replay()).toString()).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void testReplaysChoiceTokens() {
+        WeightedGrammar g = new WeightedGrammar();
+        GroundSequenceRunner<String> runner = new GroundSequenceRunner<>(g);
+        ChoiceLog log = new ChoiceLog();
+
+        String expected = runner.run(log.record(RandomSource.of(new Random(3))));
+
+        assertThat(runner.run(log.replay())).isEqualTo(expected);
+    }
+
+    @Test
+    public void testRoundTripsThroughBytes() {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        ChoiceLog log = new ChoiceLog();
+        String expected = runner.run(log.record(RandomSource.of(new Random(11)))).toString();
+
+        byte[] bytes = log.toByteArray();
+
+        assertThat(bytes.length).isEqualTo((int) ((log.bitLength() + 7) / 8));
+        assertThat(runner.run(ChoiceLog.fromByteArray(bytes).replay()).toString()).isEqualTo(expected);
+    }
+
+    @Test
+    public void testStoresEachChoiceInFewestBits() {
+        ChoiceLog log = new ChoiceLog();
+        RandomSource recorder = log.record(RandomSource.of(new Random(0)));
+
+        recorder.choose(1);
+        assertThat(log.bitLength()).isEqualTo(0);
+        recorder.choose(2);
+        assertThat(log.bitLength()).isEqualTo(1);
+        recorder.choose(5);
+        assertThat(log.bitLength()).isEqualTo(4);
+        recorder.choose(new AliasTable(1, 2, 3, 4));
+        assertThat(log.bitLength()).isEqualTo(6);
+        recorder.choose(1000);
+        assertThat(log.bitLength()).isEqualTo(16);
+    }
+
+    @Test
+    public void testReplaysChoicesSpanningWords() {
+        ChoiceLog log = new ChoiceLog();
+        RandomSource recorder = log.record(RandomSource.of(new Random(0)));
+        int[] choices = new int[200];
+        for (int i = 0; i < choices.length; ++i) {
+            choices[i] = recorder.choose(1 + (i * 7919) % 100000);
+        }
+
+        RandomSource replay = ChoiceLog.fromByteArray(log.toByteArray()).replay();
+        for (int i = 0; i < choices.length; ++i) {
+            assertThat(replay.choose(1 + (i * 7919) % 100000)).isEqualTo(choices[i]);
+        }
+    }
+
+    @Test
+    public void testReplayDrawsNoRandomNumbers() {
+        RandomSource replay = new ChoiceLog().replay();
+
+        assertThatThrownBy(replay::nextDouble).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> replay.choose(2)).isInstanceOf(IllegalStateException.class);
+        assertThat(replay.choose(1)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.kalexmills.stochrammar;
+
+import com.github.kalexmills.stochrammar.examples.WeightedGrammar;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class ChoiceTokenTest {
+
+    private static class Ground extends GroundToken<String> {
+    }
+
+    @Test
+    public void testReturnsSharedChoices() {
+        Ground a = new Ground();
+        Ground b = new Ground();
+        ChoiceToken<String> underTest = new ChoiceToken<String>().add(1, a).add(1, b, a);
+
+        Map<CFToken<String>[], Integer> counts = new IdentityHashMap<>();
+        Random rand = new Random(42);
+        for (int i = 0; i < 1000; ++i) {
+            counts.merge(underTest.replace(rand), 1, Integer::sum);
+        }
+
+        // Only one array is ever returned for each choice.
+        assertThat(counts).hasSize(2);
+    }
+
+    @Test
+    public void testWeightedChoices() {
+        Ground a = new Ground();
+        Ground b = new Ground();
+        ChoiceToken<String> underTest = new ChoiceToken<String>().add(1, a).add(3, b);
+
+        Random rand = new Random(42);
+        int n = 100000;
+        int hits = 0;
+        for (int i = 0; i < n; ++i) {
+            if (underTest.replace(rand)[0] == a) hits++;
+        }
+
+        assertThat((double) hits / n).isCloseTo(0.25, within(0.01));
+    }
+
+    @Test
+    public void testManyChoicesAreTheSameForRandomAndRandomSource() {
+        int n = 100000;
+        ChoiceToken<String> underTest = new ChoiceToken<>();
+        for (int i = 0; i < n; ++i) {
+            underTest.add(1 + i % 3, new Ground());
+        }
+
+        Random rand = new Random(42);
+        RandomSource source = RandomSource.of(new Random(42));
+        for (int i = 0; i < 1000; ++i) {
+            assertThat(underTest.replace(rand)).isSameAs(underTest.replace(source));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsReplacementWithoutChoices() {
+        new ChoiceToken<String>().replace(new Random());
+    }
+
+    @Test
+    public void testNeverChoosesWeightZero() {
+        Ground a = new Ground();
+        Ground b = new Ground();
+        ChoiceToken<String> underTest = new ChoiceToken<String>().add(0, a).add(1, b).add(0, a);
+
+        Random rand = new Random(42);
+        RandomSource source = RandomSource.of(new Random(42));
+        for (int i = 0; i < 100; ++i) {
+            assertThat(underTest.replace(rand)).containsExactly(b);
+            assertThat(underTest.replace(source)).containsExactly(b);
+        }
+    }
+
+    @Test
+    public void testRejectsReplacementWhenAllWeightsAreZero() {
+        ChoiceToken<String> underTest = new ChoiceToken<String>().add(0, new Ground()).add(0, new Ground());
+
+        assertThatThrownBy(() -> underTest.replace(new Random())).isInstanceOf(TextGrammar.ReplaceException.class);
+        assertThatThrownBy(() -> underTest.replace(RandomSource.of(new Random())))
+                .isInstanceOf(TextGrammar.ReplaceException.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeWeights() {
+        new ChoiceToken<String>().add(-1, new Ground());
+    }
+
+    @Test
+    public void testWeightedGrammar() {
+        GroundSequenceRunner<String> runner = new GroundSequenceRunner<>(new WeightedGrammar());
+
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(runner.run(new Random(seed))).matches("^[aA][bB]?$");
+        }
+    }
+}
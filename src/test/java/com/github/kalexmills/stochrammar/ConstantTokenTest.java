@@ -0,0 +1,51 @@
+package com.github.kalexmills.stochrammar;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConstantTokenTest {
+
+    private static class Ground extends GroundToken<String> {
+    }
+
+    @Test
+    public void testReturnsTheSameArray() {
+        Ground a = new Ground();
+        Ground b = new Ground();
+        ConstantToken<String> underTest = new ConstantToken<>(a, b);
+
+        CFToken<String>[] first = underTest.replace(new Random());
+
+        assertThat(first).containsExactly(a, b);
+        assertThat(underTest.replace(new Random())).isSameAs(first);
+        assertThat(underTest.replace(RandomSource.threadLocal())).isSameAs(first);
+    }
+
+    @Test
+    public void testCopiesTheCallersArray() {
+        Ground a = new Ground();
+        CFToken<String>[] tokens = new CFToken[] { a };
+        ConstantToken<String> underTest = new ConstantToken<>(tokens);
+
+        tokens[0] = new Ground();
+
+        assertThat(underTest.replace(new Random())).containsExactly(a);
+    }
+
+    @Test
+    public void testSelfReference() {
+        Ground a = new Ground();
+        ConstantToken<String> underTest = new ConstantToken<>();
+        underTest.setReplacement(a, underTest);
+
+        assertThat(underTest.replace(new Random())).containsExactly(a, underTest);
+    }
+
+    @Test
+    public void testEmptyReplacement() {
+        assertThat(new ConstantToken<String>().replace(new Random())).isSameAs(CFToken.EMPTY);
+    }
+}
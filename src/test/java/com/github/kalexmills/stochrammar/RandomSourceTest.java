@@ -0,0 +1,108 @@
+package com.github.kalexmills.stochrammar;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class RandomSourceTest {
+
+    @Test
+    public void testRandomAdapterDrawsSameNumbers() {
+        Random expected = new Random(42);
+        RandomSource underTest = RandomSource.of(new Random(42));
+
+        for (int i = 0; i < 100; ++i) {
+            assertThat(underTest.nextInt(i + 1)).isEqualTo(expected.nextInt(i + 1));
+            assertThat(underTest.nextDouble()).isEqualTo(expected.nextDouble());
+            assertThat(underTest.nextFloat()).isEqualTo(expected.nextFloat());
+            assertThat(underTest.nextLong()).isEqualTo(expected.nextLong());
+        }
+    }
+
+    @Test
+    public void testSplittableAdapterDrawsSameNumbers() {
+        SplittableRandom expected = new SplittableRandom(42);
+        RandomSource underTest = RandomSource.of(new SplittableRandom(42));
+
+        for (int i = 0; i < 100; ++i) {
+            assertThat(underTest.nextInt(i + 1)).isEqualTo(expected.nextInt(i + 1));
+            assertThat(underTest.nextDouble()).isEqualTo(expected.nextDouble());
+            assertThat(underTest.nextLong()).isEqualTo(expected.nextLong());
+        }
+    }
+
+    @Test
+    public void testDefaultMethodsStayInRange() {
+        RandomSource underTest = new RandomSource() {
+            private long state = 0;
+            public long nextLong() {
+                return state += 0x9e3779b97f4a7c15L;
+            }
+        };
+
+        for (int i = 0; i < 10000; ++i) {
+            int bound = (i % 37) + 1;
+            assertThat(underTest.nextInt(bound)).isBetween(0, bound - 1);
+            assertThat(underTest.nextDouble()).isGreaterThanOrEqualTo(0).isLessThan(1);
+            assertThat(underTest.nextFloat()).isGreaterThanOrEqualTo(0).isLessThan(1);
+        }
+        assertThatThrownBy(() -> underTest.nextInt(0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testChoosesByWeight() {
+        RandomSource source = RandomSource.of(new SplittableRandom(3));
+        double[] weights = {0, 1, 0, 3, 7};
+        int[] counts = new int[5];
+        int n = 40000;
+        for (int i = 0; i < n; ++i) {
+            counts[source.choose(weights, 4)]++;
+        }
+
+        assertThat(counts[0] + counts[2] + counts[4]).isZero();
+        assertThat(counts[3] / (double) n).isCloseTo(0.75, within(0.01));
+        assertThatThrownBy(() -> source.choose(weights, 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testAsRandomDrawsFromSource() {
+        RandomSource expected = RandomSource.of(new SplittableRandom(7));
+        RandomSource underTest = RandomSource.of(new SplittableRandom(7));
+
+        Random view = underTest.asRandom();
+        assertThat(underTest.asRandom()).isSameAs(view);
+        for (int i = 0; i < 100; ++i) {
+            assertThat(view.nextInt(10)).isEqualTo(expected.nextInt(10));
+            assertThat(view.nextLong()).isEqualTo(expected.nextLong());
+        }
+    }
+
+    @Test
+    public void testThreadLocal() {
+        assertThat(RandomSource.threadLocal().asRandom()).isSameAs(ThreadLocalRandom.current());
+        assertThat(RandomSource.threadLocal().nextInt(5)).isBetween(0, 4);
+    }
+
+    @Test
+    public void testRandomOnlyTokensUseView() {
+        class Token extends CFToken<String> {
+            Random seen;
+            public CFToken<String>[] replace(Random rand) {
+                seen = rand;
+                return EMPTY;
+            }
+        }
+        Token underTest = new Token();
+        RandomSource source = RandomSource.of(new SplittableRandom());
+
+        underTest.replace(source);
+
+        assertThat(underTest.seen).isSameAs(source.asRandom());
+    }
+}
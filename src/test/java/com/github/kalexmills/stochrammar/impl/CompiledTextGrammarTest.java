@@ -0,0 +1,347 @@
+/**
+ * Copyright (c) 2018, NiftySoft LLC.
+ *
+ * This file is part of Stochrammar.
+ *
+ * Stochrammar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stochrammar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Stochrammar.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.runner.ConcurrentGroundSequenceRunner;
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CompiledTextGrammarTest {
+
+    @Test
+    public void testGeneratesSameTextAsSource() {
+        TextGrammar g = abracadabra();
+        GroundSequenceRunner<StringBuilder> expected = new GroundSequenceRunner<>(g);
+        GroundSequenceRunner<StringBuilder> underTest = new GroundSequenceRunner<>(g.compile());
+
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(underTest.run(new Random(seed)).toString())
+                    .isEqualTo(expected.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test
+    public void testWeightedRulesGenerateSameTextAsSource() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, 1, g.new Literal("abra"));
+        g.addRule(TextGrammar.ROOT_KEY, 2, g.new Literal("cadabra"));
+        g.addRule(TextGrammar.ROOT_KEY, 4, g.new Literal("abra"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule(TextGrammar.ROOT_KEY, 3, g.new Literal("cadabra"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+
+        GroundSequenceRunner<StringBuilder> expected = new GroundSequenceRunner<>(g);
+        GroundSequenceRunner<StringBuilder> underTest = new GroundSequenceRunner<>(g.compile());
+
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(underTest.run(new Random(seed)).toString())
+                    .isEqualTo(expected.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test
+    public void testRuleIds() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"), g.new ProductionRule("B"));
+        g.addRule("A", g.new Literal("a"));
+
+        CompiledTextGrammar underTest = g.compile();
+
+        assertThat(underTest.ruleCount()).isEqualTo(3);
+        assertThat(underTest.ruleId(TextGrammar.ROOT_KEY)).isEqualTo(0);
+        assertThat(underTest.ruleId("A")).isEqualTo(1);
+        assertThat(underTest.ruleId("B")).isEqualTo(2);
+        assertThat(underTest.ruleId("C")).isEqualTo(-1);
+        assertThat(underTest.key(1)).isEqualTo("A");
+        assertThat(underTest.generateRootToken()).isSameAs(underTest.rule(0));
+    }
+
+    @Test
+    public void testUndefinedKeyThrowsWhenReplaced() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"));
+
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(g.compile());
+
+        assertThatThrownBy(runner::run).isInstanceOf(TextGrammar.ReplaceException.class);
+    }
+
+    @Test
+    public void testEmptyRoot() {
+        TextGrammar g = new TextGrammar();
+        g.addRule("A", g.new Literal("abra"), g.new Literal("cadabra"));
+
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(g.compile());
+
+        assertThat(runner.run().toString()).isEqualTo("");
+    }
+
+    @Test
+    public void testUnaffectedByLaterRules() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"));
+
+        CompiledTextGrammar underTest = g.compile();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("cadabra"));
+
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(underTest);
+        for (int i = 0; i < 20; ++i) {
+            assertThat(runner.run().toString()).isEqualTo("abra");
+        }
+    }
+
+    @Test
+    public void testFlattenInlinesSingleAlternatives() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("Hello"), g.new Literal(", "), g.new ProductionRule("NAME"),
+                                        g.new Literal("!"));
+        g.addRule("NAME", g.new Literal("wor"), g.new Literal("ld"));
+
+        CompiledTextGrammar underTest = g.compile(true);
+
+        CFToken<StringBuilder>[] tokens = underTest.generateRootToken().replace(new Random());
+        assertThat(tokens).hasSize(1);
+        assertThat(((TextGrammar.Literal) tokens[0]).length()).isEqualTo("Hello, world!".length());
+        assertThat(new GroundSequenceRunner<>(underTest).run().toString()).isEqualTo("Hello, world!");
+    }
+
+    @Test
+    public void testFlattenKeepsChoices() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("GREETING"), g.new Literal(" "),
+                                        g.new ProductionRule("NAME"));
+        g.addRule("GREETING", g.new Literal("hi"));
+        g.addRule("GREETING", g.new Literal("hello"));
+        g.addRule("NAME", g.new Literal("bob"));
+
+        CompiledTextGrammar underTest = g.compile(true);
+
+        CFToken<StringBuilder>[] tokens = underTest.generateRootToken().replace(new Random());
+        assertThat(tokens).hasSize(2);
+        assertThat(tokens[0]).isSameAs(underTest.rule(underTest.ruleId("GREETING")));
+        assertThat(((TextGrammar.Literal) tokens[1]).text).isEqualTo(" bob");
+
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(underTest);
+        for (int i = 0; i < 20; ++i) {
+            assertThat(runner.run().toString()).isIn("hi bob", "hello bob");
+        }
+    }
+
+    @Test
+    public void testFlattenStopsAtCycles() {
+        TextGrammar g = new TextGrammar();
+        g.addRule("A", g.new Literal("a"), g.new ProductionRule("B"));
+        g.addRule("B", g.new Literal("b"), g.new ProductionRule("A"));
+
+        CompiledTextGrammar underTest = g.compile(true);
+
+        CFToken<StringBuilder>[] tokens = underTest.rule(underTest.ruleId("A")).replace(new Random());
+        assertThat(tokens).hasSize(2);
+        assertThat(((TextGrammar.Literal) tokens[0]).text).isEqualTo("ab");
+        assertThat(tokens[1]).isSameAs(underTest.rule(underTest.ruleId("A")));
+    }
+
+    @Test
+    public void testFlattenKeepsCustomLiterals() {
+        TextGrammar g = new TextGrammar();
+        TextGrammar.Literal shout = g.new Literal("b");
+        shout.setAction((str) -> str.append("B"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"), shout, g.new Literal("c"), g.new Literal("d"));
+
+        CompiledTextGrammar underTest = g.compile(true);
+
+        assertThat(underTest.generateRootToken().replace(new Random())).hasSize(3);
+        assertThat(new GroundSequenceRunner<>(underTest).run().toString()).isEqualTo("aBcd");
+    }
+
+    @Test
+    public void testFlattenedGrammarGeneratesSameLanguage() {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile(true));
+
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(runner.run(new Random(seed)).toString()).matches("^(abra|cadabra)+$");
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static CompiledTextGrammar roundTrip(CompiledTextGrammar grammar) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        grammar.writeTo(out);
+        return CompiledTextGrammar.read(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static void assertSameText(CompiledTextGrammar expected, CompiledTextGrammar actual) {
+        GroundSequenceRunner<StringBuilder> expectedRunner = new GroundSequenceRunner<>(expected);
+        GroundSequenceRunner<StringBuilder> actualRunner = new GroundSequenceRunner<>(actual);
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(actualRunner.run(new Random(seed)).toString())
+                    .isEqualTo(expectedRunner.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test
+    public void testSerializedGrammarGeneratesSameText() throws IOException {
+        TextGrammar g = abracadabra();
+        g.addRule("WEIGHTED", 1, g.new Literal("x"));
+        g.addRule("WEIGHTED", 3, g.new Literal("y"));
+        g.addRule("WEIGHTED", 0, g.new ProductionRule("UNDEFINED"));
+        g.addRule(TextGrammar.ROOT_KEY, 1, g.new ProductionRule("WEIGHTED"), g);
+
+        for (CompiledTextGrammar compiled : new CompiledTextGrammar[] { g.compile(), g.compile(true) }) {
+            CompiledTextGrammar underTest = roundTrip(compiled);
+
+            assertThat(underTest.ruleCount()).isEqualTo(compiled.ruleCount());
+            assertThat(underTest.ruleId("UNDEFINED")).isEqualTo(compiled.ruleId("UNDEFINED"));
+            assertSameText(compiled, underTest);
+        }
+    }
+
+    @Test
+    public void testSerializedGrammarKeepsCapacityAndEmptyRoot() throws IOException {
+        TextGrammar g = new TextGrammar();
+        g.addRule("A", g.new Literal("abra"));
+
+        CompiledTextGrammar underTest = roundTrip(g.compile().withCapacity(100));
+
+        assertThat(underTest.blankEntity().capacity()).isEqualTo(100);
+        assertThat(new GroundSequenceRunner<>(underTest).run().toString()).isEmpty();
+    }
+
+    @Test
+    public void testSerializedLiteralsAreInterned() throws IOException {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"), g.new Literal("b"), g.new Literal("a"));
+
+        CompiledTextGrammar underTest = roundTrip(g.compile());
+
+        CFToken<StringBuilder>[] tokens = underTest.generateRootToken().replace(new Random());
+        assertThat(tokens[0]).isSameAs(tokens[2]).isNotSameAs(tokens[1]);
+    }
+
+    @Test
+    public void testLoadMapsFile() throws IOException {
+        CompiledTextGrammar compiled = abracadabra().compile();
+        File file = folder.newFile("abracadabra.stgr");
+        try (OutputStream out = new FileOutputStream(file)) {
+            compiled.writeTo(out);
+        }
+
+        assertSameText(compiled, CompiledTextGrammar.load(file.toPath()));
+    }
+
+    @Test
+    public void testRejectsCustomTokens() {
+        TextGrammar g = new TextGrammar();
+        TextGrammar.Literal shout = g.new Literal("b");
+        shout.setAction((str) -> str.append("B"));
+        g.addRule(TextGrammar.ROOT_KEY, shout);
+
+        assertThatThrownBy(() -> g.compile().writeTo(new ByteArrayOutputStream()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testRejectsCorruptData() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        abracadabra().compile().writeTo(out);
+        byte[] bytes = out.toByteArray();
+
+        assertThatThrownBy(() -> CompiledTextGrammar.read(ByteBuffer.wrap(bytes, 0, bytes.length - 5)))
+                .isInstanceOf(IOException.class);
+        bytes[0] = 0;
+        assertThatThrownBy(() -> CompiledTextGrammar.read(ByteBuffer.wrap(bytes)))
+                .isInstanceOf(IOException.class).hasMessage("Not a serialized grammar");
+    }
+
+    @Test
+    public void testDecodesRulesWhenFirstNeeded() throws IOException {
+        TextGrammar g = abracadabra();
+        g.addRule("A", g.new Literal("a"));
+        g.addRule("B", g.new Literal("b"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        g.compile().writeTo(out);
+        // The last symbol is followed by the root rule id and the capacity.
+        ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+        bytes.putInt(bytes.capacity() - 12, Integer.MAX_VALUE);
+
+        // Only the rule which contains the corrupt symbol fails, and only once it is needed.
+        CompiledTextGrammar underTest = CompiledTextGrammar.read(bytes);
+        int failures = 0;
+        for (int id = 0; id < underTest.ruleCount(); ++id) {
+            try {
+                underTest.rule(id).replace(new Random(0));
+            } catch (IllegalStateException e) {
+                assertThat(e).hasMessageContaining("Invalid symbol");
+                failures++;
+            }
+        }
+        assertThat(failures).isEqualTo(1);
+    }
+
+    @Test
+    public void testRulesMayBeDecodedByManyThreads() throws Exception {
+        // Each rule picks a digit, then moves on to the next rule, so that every thread decodes rules as it goes.
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("R0"));
+        for (int r = 0; r < 100; ++r) {
+            for (int digit = 0; digit < 10; ++digit) {
+                g.addRule("R" + r, g.new Literal(Integer.toString(digit)), g.new ProductionRule("R" + (r + 1)));
+            }
+        }
+        g.addRule("R100", g.new Literal("."));
+        CompiledTextGrammar compiled = g.compile();
+        GroundSequenceRunner<StringBuilder> expected = new GroundSequenceRunner<>(compiled);
+        CompiledTextGrammar loaded = roundTrip(compiled);
+        ConcurrentGroundSequenceRunner<StringBuilder> underTest = new ConcurrentGroundSequenceRunner<>(loaded);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int seed = 0; seed < 64; ++seed) {
+                final long s = seed;
+                futures.add(executor.submit(() -> underTest.run(new Random(s)).toString()));
+            }
+            for (int seed = 0; seed < 64; ++seed) {
+                assertThat(futures.get(seed).get()).isEqualTo(expected.run(new Random(seed)).toString());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
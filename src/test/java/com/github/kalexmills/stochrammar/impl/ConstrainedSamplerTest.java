@@ -0,0 +1,152 @@
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.ChoiceLog;
+import com.github.kalexmills.stochrammar.RandomSource;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class ConstrainedSamplerTest {
+
+    private static TextGrammar greetings() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("GREETING"), g.new Literal(" "),
+                  g.new ProductionRule("NAME"), g.new ProductionRule("END"));
+        g.addRule("GREETING", 6, g.new Literal("hello"));
+        g.addRule("GREETING", 3, g.new Literal("hi"));
+        g.addRule("GREETING", 1, g.new Literal("hey"));
+        g.addRule("NAME", 3, g.new Literal("alice"));
+        g.addRule("NAME", 1, g.new Literal("bob"));
+        g.addRule("END");
+        g.addRule("END", g.new Literal("!"));
+        return g;
+    }
+
+    @Test
+    public void testUnconstrainedSamplesMatchGrammar() {
+        ConstrainedSampler sampler = new ConstrainedSampler(greetings().compile());
+        Random rand = new Random(1);
+        for (int i = 0; i < 100; ++i) {
+            assertThat(sampler.sample(rand).toString()).matches("(hello|hi|hey) (alice|bob)!?");
+        }
+    }
+
+    @Test
+    public void testPrefixReweightsAlternatives() {
+        ConstrainedSampler sampler = new ConstrainedSampler(greetings().compile());
+        sampler.setPrefix("he");
+        RandomSource rand = RandomSource.of(new Random(2));
+        Map<String, Integer> greetings = new HashMap<>();
+        int n = 20000;
+        for (int i = 0; i < n; ++i) {
+            String s = sampler.sample(rand).toString();
+            greetings.merge(s.substring(0, s.indexOf(' ')), 1, Integer::sum);
+        }
+
+        assertThat(greetings).containsOnlyKeys("hello", "hey");
+        assertThat(greetings.get("hello") / (double) n).isCloseTo(6 / 7.0, within(0.01));
+    }
+
+    @Test
+    public void testSuffixSkipsEmptyRules() {
+        ConstrainedSampler sampler = new ConstrainedSampler(greetings().compile());
+        sampler.setLast((text) -> text.equals("bob"));
+        Random rand = new Random(3);
+        for (int i = 0; i < 200; ++i) {
+            assertThat(sampler.sample(rand).toString()).matches("(hello|hi|hey) bob");
+        }
+
+        sampler.setSuffix("!");
+        for (int i = 0; i < 200; ++i) {
+            assertThat(sampler.sample(rand).toString()).endsWith("!");
+        }
+    }
+
+    @Test
+    public void testFirstLiteralMayFollowEmptyRules() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"), g.new Literal(""), g.new Literal("x"));
+        g.addRule("A");
+        g.addRule("A", g.new Literal("a"));
+        ConstrainedSampler sampler = new ConstrainedSampler(g.compile());
+        sampler.setFirst((text) -> text.equals("x"));
+
+        assertThat(sampler.sample(new Random(4)).toString()).isEqualTo("x");
+    }
+
+    @Test
+    public void testRequiredLiteralInRecursiveRule() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, 9, g.new Literal("a"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule(TextGrammar.ROOT_KEY, 1, g.new Literal("b"));
+        g.addRule(TextGrammar.ROOT_KEY, 1, g.new Literal("c"));
+        ConstrainedSampler sampler = new ConstrainedSampler(g.compile());
+        sampler.setRequired((text) -> text.equals("c"));
+        sampler.setForbidden("b");
+
+        Random rand = new Random(5);
+        for (int i = 0; i < 200; ++i) {
+            assertThat(sampler.sample(rand).toString()).matches("a*c");
+        }
+    }
+
+    @Test
+    public void testCombinedConstraints() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("W"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("W"), g.new Literal(" "),
+                  g.new ProductionRule(TextGrammar.ROOT_KEY));
+        for (String w : new String[]{"red", "green", "blue", "cat", "dog"}) {
+            g.addRule("W", g.new Literal(w));
+        }
+        ConstrainedSampler sampler = new ConstrainedSampler(g.compile());
+        sampler.setPrefix("red");
+        sampler.setSuffix("dog");
+        sampler.setRequired((text) -> text.equals("cat"));
+        sampler.setForbidden("blue");
+
+        Random rand = new Random(6);
+        for (int i = 0; i < 500; ++i) {
+            String s = sampler.sample(rand).toString();
+            assertThat(s).startsWith("red ").endsWith(" dog").contains("cat").doesNotContain("blue");
+        }
+    }
+
+    @Test
+    public void testUnsatisfiableConstraints() {
+        ConstrainedSampler sampler = new ConstrainedSampler(greetings().compile());
+        sampler.setForbidden("alice", "bob");
+
+        assertThat(sampler.isSatisfiable()).isFalse();
+        assertThatThrownBy(() -> sampler.sample(new Random(7)))
+                .isInstanceOf(ConstrainedSampler.UnsatisfiableException.class);
+
+        sampler.setForbidden((Predicate<String>) null);
+        sampler.setRequired((text) -> text.equals("hi"));
+        sampler.setSuffix("hi");
+        assertThat(sampler.isSatisfiable()).isFalse();
+        sampler.setLast(null);
+        assertThat(sampler.isSatisfiable()).isTrue();
+    }
+
+    @Test
+    public void testSamplesCanBeReplayed() {
+        ConstrainedSampler sampler = new ConstrainedSampler(greetings().compile());
+        sampler.setPrefix("he");
+        sampler.setRequired((text) -> text.equals("!"));
+        RandomSource rand = RandomSource.of(new Random(4));
+        for (int i = 0; i < 100; ++i) {
+            ChoiceLog log = new ChoiceLog();
+            String expected = sampler.sample(log.record(rand)).toString();
+
+            assertThat(sampler.sample(log.replay()).toString()).isEqualTo(expected);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class DerivationEnumeratorTest {
+
+    private static TextGrammar suffixes() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, 5, g.new Literal("a"));
+        g.addRule(TextGrammar.ROOT_KEY, 3, g.new Literal("b"));
+        g.addRule(TextGrammar.ROOT_KEY, 2, g.new ProductionRule(TextGrammar.ROOT_KEY), g.new Literal("c"));
+        return g;
+    }
+
+    @Test
+    public void testEnumeratesInDecreasingProbability() {
+        List<DerivationEnumerator.Derivation> top = DerivationEnumerator.top(suffixes().compile(), 6);
+
+        assertThat(top).extracting((d) -> d.generate().toString())
+                       .containsExactly("a", "b", "ac", "bc", "acc", "bcc");
+        double[] expected = {0.5, 0.3, 0.1, 0.06, 0.02, 0.012};
+        for (int i = 0; i < expected.length; ++i) {
+            assertThat(top.get(i).probability()).isCloseTo(expected[i], within(1e-12));
+        }
+    }
+
+    @Test
+    public void testStopsWhenGrammarIsFinite() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"), g.new ProductionRule("B"));
+        g.addRule("A", 3, g.new Literal("a"));
+        g.addRule("A", 1, g.new Literal("b"));
+        g.addRule("A", 0, g.new Literal("z"));
+        g.addRule("B", g.new Literal("x"));
+        g.addRule("B", g.new Literal("y"));
+        g.addRule("B", g.new ProductionRule("MISSING"));
+
+        List<DerivationEnumerator.Derivation> all = DerivationEnumerator.top(g.compile(), 100);
+
+        assertThat(all).extracting((d) -> d.generate().toString()).containsExactly("ax", "ay", "bx", "by");
+        assertThat(all.get(0).probability()).isCloseTo(0.25, within(1e-12));
+        assertThat(all.get(3).probability()).isCloseTo(1.0 / 12, within(1e-12));
+    }
+
+    @Test
+    public void testMatchesSampledFrequencies() {
+        TextGrammar g = suffixes();
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(g);
+        Map<String, Integer> counts = new HashMap<>();
+        Random rand = new Random(42);
+        int n = 100000;
+        for (int i = 0; i < n; ++i) {
+            counts.merge(runner.run(rand).toString(), 1, Integer::sum);
+        }
+
+        for (DerivationEnumerator.Derivation d : DerivationEnumerator.top(g.compile(true), 4)) {
+            assertThat(counts.get(d.generate().toString()) / (double) n).isCloseTo(d.probability(), within(0.01));
+        }
+    }
+
+    @Test
+    public void testEmptyGrammarHasOneEmptyDerivation() {
+        List<DerivationEnumerator.Derivation> all = DerivationEnumerator.top(new TextGrammar().compile(), 2);
+
+        assertThat(all).hasSize(1);
+        assertThat(all.get(0).generate().toString()).isEqualTo("");
+        assertThat(all.get(0).probability()).isEqualTo(1.0);
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.ChoiceLog;
+import com.github.kalexmills.stochrammar.RandomSource;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class SizedSamplerTest {
+
+    // Binary trees with k leaves have 3k - 2 ground tokens, and there are Catalan(k - 1) of them.
+    private static TextGrammar trees() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, 9, g.new Literal("x"));
+        g.addRule(TextGrammar.ROOT_KEY, 1, g.new Literal("("), g.new ProductionRule(TextGrammar.ROOT_KEY),
+                  g.new ProductionRule(TextGrammar.ROOT_KEY), g.new Literal(")"));
+        return g;
+    }
+
+    @Test
+    public void testCountsDerivationsOfEachSize() {
+        SizedSampler sampler = new SizedSampler(trees().compile(), 13, SizedSampler.Mode.UNIFORM);
+
+        double[] expected = {0, 1, 0, 0, 1, 0, 0, 2, 0, 0, 5, 0, 0, 14};
+        for (int n = 0; n <= 13; ++n) {
+            assertThat(sampler.count(n)).as("size %d", n).isEqualTo(expected[n]);
+        }
+    }
+
+    @Test
+    public void testSamplesUniformlyDespiteWeights() {
+        SizedSampler sampler = new SizedSampler(trees().compile(), 10, SizedSampler.Mode.UNIFORM);
+        RandomSource rand = RandomSource.of(new Random(42));
+        Map<String, Integer> counts = new HashMap<>();
+        int n = 50000;
+        for (int i = 0; i < n; ++i) {
+            String s = sampler.sample(10, rand).toString();
+            assertThat(s.replaceAll("[()]", "")).hasSize(4);
+            counts.merge(s, 1, Integer::sum);
+        }
+
+        assertThat(counts).hasSize(5);
+        for (int c : counts.values()) {
+            assertThat(c / (double) n).isCloseTo(0.2, within(0.01));
+        }
+    }
+
+    @Test
+    public void testWeightedModeConditionsOnSize() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, 5, g.new Literal("a"));
+        g.addRule(TextGrammar.ROOT_KEY, 3, g.new Literal("b"));
+        g.addRule(TextGrammar.ROOT_KEY, 2, g.new ProductionRule(TextGrammar.ROOT_KEY), g.new Literal("c"));
+        SizedSampler sampler = new SizedSampler(g.compile(), 3, SizedSampler.Mode.WEIGHTED);
+
+        assertThat(sampler.count(1)).isCloseTo(0.8, within(1e-12));
+        assertThat(sampler.count(3)).isCloseTo(0.032, within(1e-12));
+
+        Random rand = new Random(7);
+        int acc = 0;
+        int n = 40000;
+        for (int i = 0; i < n; ++i) {
+            String s = sampler.sample(3, rand).toString();
+            assertThat(s).isIn("acc", "bcc");
+            if (s.equals("acc")) ++acc;
+        }
+        assertThat(acc / (double) n).isCloseTo(0.625, within(0.01));
+    }
+
+    @Test
+    public void testDividesSizeBetweenNullableRules() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"), g.new Literal("b"), g.new ProductionRule("A"));
+        g.addRule("A");
+        g.addRule("A", g.new Literal("a"), g.new ProductionRule("A"));
+        SizedSampler sampler = new SizedSampler(g.compile(), 6, SizedSampler.Mode.UNIFORM);
+
+        assertThat(sampler.count(0)).isEqualTo(0);
+        assertThat(sampler.count(6)).isEqualTo(6);
+
+        RandomSource rand = RandomSource.of(new Random(3));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30000; ++i) {
+            counts.merge(sampler.sample(6, rand).toString(), 1, Integer::sum);
+        }
+        assertThat(counts).hasSize(6).containsKeys("aaaaab", "baaaaa");
+        for (int c : counts.values()) {
+            assertThat(c / 30000.0).isCloseTo(1 / 6.0, within(0.015));
+        }
+    }
+
+    @Test
+    public void testSamplesWithinRange() {
+        SizedSampler sampler = new SizedSampler(trees().compile(), 13, SizedSampler.Mode.UNIFORM);
+        RandomSource rand = RandomSource.of(new Random(11));
+        int large = 0;
+        int n = 22000;
+        for (int i = 0; i < n; ++i) {
+            int size = sampler.sample(5, 13, rand).length();
+            assertThat(size).isIn(7, 10, 13);
+            if (size == 13) ++large;
+        }
+        assertThat(large / (double) n).isCloseTo(14 / 21.0, within(0.015));
+    }
+
+    @Test
+    public void testRejectsImpossibleSizes() {
+        SizedSampler sampler = new SizedSampler(trees().compile(), 13, SizedSampler.Mode.UNIFORM);
+
+        assertThatThrownBy(() -> sampler.sample(5, new Random(1))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> sampler.sample(14, new Random(1))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> sampler.sample(2, 3, RandomSource.of(new Random(1))))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testUnitCycles() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("B"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"));
+        g.addRule("B", g.new ProductionRule(TextGrammar.ROOT_KEY));
+
+        assertThatThrownBy(() -> new SizedSampler(g.compile(), 2, SizedSampler.Mode.UNIFORM))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        SizedSampler weighted = new SizedSampler(g.compile(), 2, SizedSampler.Mode.WEIGHTED);
+        assertThat(weighted.count(1)).isCloseTo(1, within(1e-9));
+        assertThat(weighted.sample(1, new Random(5)).toString()).isEqualTo("a");
+    }
+
+    @Test
+    public void testLongUnitCycles() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("R0"));
+        int n = 1000;
+        for (int i = 0; i < n; ++i) {
+            g.addRule("R" + i, g.new ProductionRule("R" + ((i + 1) % n)));
+        }
+        g.addRule("R0", g.new Literal("a"));
+
+        assertThatThrownBy(() -> new SizedSampler(g.compile(), 2, SizedSampler.Mode.UNIFORM))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("size 1");
+    }
+
+    @Test
+    public void testNearlyCertainUnitCycles() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, 999999, g.new ProductionRule("B"));
+        g.addRule(TextGrammar.ROOT_KEY, 1, g.new Literal("a"));
+        g.addRule("B", 999999, g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule("B", 1, g.new Literal("b"), g.new Literal("b"));
+
+        SizedSampler sampler = new SizedSampler(g.compile(), 2, SizedSampler.Mode.WEIGHTED);
+
+        // Each pass around the cycle returns with probability q, and otherwise ends with a or bb.
+        double q = 0.999999 * 0.999999;
+        assertThat(sampler.count(1)).isCloseTo(1e-6 / (1 - q), within(1e-9));
+        assertThat(sampler.count(2)).isCloseTo(0.999999 * 1e-6 / (1 - q), within(1e-9));
+        assertThat(sampler.sample(1, new Random(5)).toString()).isEqualTo("a");
+    }
+
+    @Test
+    public void testSamplesCanBeReplayed() {
+        SizedSampler sampler = new SizedSampler(trees().compile(), 13, SizedSampler.Mode.WEIGHTED);
+        RandomSource rand = RandomSource.of(new Random(6));
+        for (int i = 0; i < 100; ++i) {
+            ChoiceLog log = new ChoiceLog();
+            String expected = sampler.sample(1, 13, log.record(rand)).toString();
+
+            assertThat(sampler.sample(1, 13, log.replay()).toString()).isEqualTo(expected);
+        }
+    }
+}
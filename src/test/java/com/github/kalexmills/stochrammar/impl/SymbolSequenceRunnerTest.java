@@ -0,0 +1,127 @@
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SymbolSequenceRunnerTest {
+
+    private static TextGrammar greetings() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("GREETING"), g.new Literal(", "),
+                  g.new ProductionRule("NAME"), g.new Literal("!"));
+        g.addRule(TextGrammar.ROOT_KEY, 3, g.new ProductionRule("NAME"), g.new Literal(", "),
+                  g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule("GREETING", g.new Literal("Hello"));
+        g.addRule("GREETING", g.new Literal("Hi"));
+        g.addRule("NAME", g.new Literal("bob"));
+        g.addRule("NAME", g.new Literal("al"));
+        g.addRule("NAME");
+        return g;
+    }
+
+    @Test
+    public void testDecodesToLeftmostText() {
+        for (boolean flatten : new boolean[]{false, true}) {
+            CompiledTextGrammar g = greetings().compile(flatten);
+            GroundSequenceRunner<StringBuilder> expected = new GroundSequenceRunner<>(g);
+            expected.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+            SymbolSequenceRunner underTest = new SymbolSequenceRunner(g);
+
+            for (long seed = 0; seed < 100; ++seed) {
+                int length = underTest.run(new Random(seed));
+                assertThat(length).isEqualTo(underTest.length());
+                assertThat(underTest.decode(underTest.symbols(), 0, length, new StringBuilder()).toString())
+                        .isEqualTo(expected.run(new Random(seed)).toString());
+            }
+        }
+    }
+
+    @Test
+    public void testLiteralsWithTheSameTextShareASymbol() {
+        SymbolSequenceRunner underTest = new SymbolSequenceRunner(greetings().compile());
+
+        // ", " appears in two alternatives.
+        assertThat(underTest.symbolCount()).isEqualTo(6);
+        for (int symbol = 0; symbol < underTest.symbolCount(); ++symbol) {
+            assertThat(underTest.terminal(symbol)).isInstanceOf(TextGrammar.Literal.class);
+        }
+    }
+
+    @Test
+    public void testPutsSymbolsIntoBuffer() {
+        SymbolSequenceRunner underTest = new SymbolSequenceRunner(greetings().compile());
+        IntBuffer out = IntBuffer.allocate(1024);
+        out.put(-1);
+
+        int length = underTest.run(RandomSource.of(new Random(5)), out);
+
+        assertThat(out.position()).isEqualTo(length + 1);
+        for (int i = 0; i < length; ++i) {
+            assertThat(out.get(i + 1)).isEqualTo(underTest.symbols()[i]);
+        }
+    }
+
+    @Test
+    public void testFullBufferIsLeftUntouched() {
+        SymbolSequenceRunner underTest = new SymbolSequenceRunner(greetings().compile());
+        IntBuffer out = IntBuffer.allocate(1);
+
+        assertThatThrownBy(() -> underTest.run(RandomSource.of(new Random(0)), out))
+                .isInstanceOf(BufferOverflowException.class);
+        assertThat(out.position()).isEqualTo(0);
+    }
+
+    @Test
+    public void testForkGeneratesSameSymbols() {
+        SymbolSequenceRunner underTest = new SymbolSequenceRunner(greetings().compile());
+        SymbolSequenceRunner fork = underTest.fork();
+
+        for (long seed = 0; seed < 20; ++seed) {
+            int length = underTest.run(new Random(seed));
+            assertThat(fork.run(new Random(seed))).isEqualTo(length);
+            for (int i = 0; i < length; ++i) {
+                assertThat(fork.symbols()[i]).isEqualTo(underTest.symbols()[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testGrammarWithoutRootGeneratesNothing() {
+        TextGrammar g = new TextGrammar();
+        g.addRule("NAME", g.new Literal("bob"));
+
+        assertThat(new SymbolSequenceRunner(g.compile()).run()).isEqualTo(0);
+    }
+
+    @Test
+    public void testUndefinedRuleThrows() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("MISSING"));
+
+        assertThatThrownBy(() -> new SymbolSequenceRunner(g.compile()).run())
+                .isInstanceOf(TextGrammar.ReplaceException.class);
+    }
+
+    @Test
+    public void testRejectsNonGroundTokens() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, new CFToken<StringBuilder>() {
+            @Override
+            public CFToken<StringBuilder>[] replace(Random rand) {
+                return EMPTY;
+            }
+        });
+
+        assertThatThrownBy(() -> new SymbolSequenceRunner(g.compile()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.kalexmills.stochrammar.impl;
+
+/**
+ * TestGrammars holds grammars shared by the tests of several packages.
+ */
+public final class TestGrammars {
+
+    private TestGrammars() {
+    }
+
+    /**
+     * @return TextGrammar a grammar which generates "abra" or "cadabra", followed by itself half the time.
+     */
+    public static TextGrammar abracadabra() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("cadabra"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("cadabra"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        return g;
+    }
+}
@@ -0,0 +1,226 @@
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import com.github.kalexmills.stochrammar.runner.RunMetrics;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class TextGrammarAnalysisTest {
+
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * ROOT -> "x" ROOT ROOT (weight w) | "y" (weight 1 - w)
+     */
+    private static TextGrammar binaryTree(double w) {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, w, g.new Literal("x"), g.new ProductionRule(TextGrammar.ROOT_KEY),
+                                           g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule(TextGrammar.ROOT_KEY, 1 - w, g.new Literal("y"));
+        return g;
+    }
+
+    @Test
+    public void testNonRecursiveGrammar() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("ab"), g.new ProductionRule("B"));
+        g.addRule("B", g.new Literal("c"));
+        g.addRule("B", g.new Literal("de"));
+
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(g);
+
+        assertThat(underTest.isFinite()).isTrue();
+        assertThat(underTest.expectedExpansions()).isCloseTo(2, within(TOLERANCE));
+        assertThat(underTest.expectedGroundTokens()).isCloseTo(2, within(TOLERANCE));
+        assertThat(underTest.expectedLength()).isCloseTo(3.5, within(TOLERANCE));
+        assertThat(underTest.expectedLength("B")).isCloseTo(1.5, within(TOLERANCE));
+    }
+
+    @Test
+    public void testSubcriticalGrammar() {
+        // Each "x" expands into two copies of ROOT, 0.8 copies on average, so ROOT is expanded 1 / (1 - 0.8) times.
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(binaryTree(0.4)).requireFinite();
+
+        assertThat(underTest.expectedExpansions()).isCloseTo(5, within(TOLERANCE));
+        assertThat(underTest.expectedGroundTokens()).isCloseTo(5, within(TOLERANCE));
+        assertThat(underTest.expectedLength()).isCloseTo(5, within(TOLERANCE));
+    }
+
+    @Test
+    public void testSupercriticalGrammar() {
+        TextGrammar g = binaryTree(0.6);
+        g.addRule("A", g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule("B", g.new Literal("b"));
+
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(g);
+
+        assertThat(underTest.isFinite()).isFalse();
+        assertThat(underTest.isFinite("A")).isFalse();
+        assertThat(underTest.isFinite("B")).isTrue();
+        assertThat(underTest.expectedLength()).isEqualTo(Double.POSITIVE_INFINITY);
+        assertThat(underTest.divergentRules()).containsExactly(TextGrammar.ROOT_KEY, "A");
+        assertThatThrownBy(underTest::requireFinite)
+                .isInstanceOf(TextGrammarAnalysis.DivergentGrammarException.class)
+                .hasFieldOrPropertyWithValue("keys", underTest.divergentRules());
+        assertThatThrownBy(underTest::suggestedBufferSize)
+                .isInstanceOf(TextGrammarAnalysis.DivergentGrammarException.class);
+    }
+
+    @Test
+    public void testCriticalGrammar() {
+        // A critical grammar terminates almost surely, but its expected size is still infinite.
+        assertThat(TextGrammarAnalysis.of(binaryTree(0.5)).isFinite()).isFalse();
+    }
+
+    @Test
+    public void testMutualRecursion() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"));
+        g.addRule("A", g.new Literal("a"), g.new ProductionRule("B"));
+        g.addRule("A", g.new Literal("a"));
+        g.addRule("B", g.new Literal("bb"), g.new ProductionRule("A"));
+        g.addRule("B", g.new Literal("bb"));
+
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(g);
+
+        // x_A = 1 + x_B / 2 and x_B = 1 + x_A / 2.
+        assertThat(underTest.expectedExpansions("A")).isCloseTo(2, within(TOLERANCE));
+        assertThat(underTest.expectedExpansions("B")).isCloseTo(2, within(TOLERANCE));
+        assertThat(underTest.expectedExpansions()).isCloseTo(3, within(TOLERANCE));
+        // l_A = 1 + l_B / 2 and l_B = 2 + l_A / 2.
+        assertThat(underTest.expectedLength("A")).isCloseTo(8.0 / 3, within(TOLERANCE));
+        assertThat(underTest.expectedLength("B")).isCloseTo(10.0 / 3, within(TOLERANCE));
+    }
+
+    @Test
+    public void testEmptyGrammar() {
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(new TextGrammar());
+
+        assertThat(underTest.isFinite()).isTrue();
+        assertThat(underTest.expectedLength()).isEqualTo(0);
+    }
+
+    @Test
+    public void testExpectedLengthMatchesGeneratedText() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("cadabra"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("cadabra"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(g);
+        assertThat(underTest.expectedLength()).isCloseTo(11, within(TOLERANCE));
+
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(g);
+        Random rand = new Random(42);
+        long total = 0;
+        int n = 20000;
+        for (int i = 0; i < n; ++i) {
+            total += runner.run(rand).length();
+        }
+        assertThat((double) total / n).isCloseTo(11, within(0.3));
+    }
+
+    /**
+     * R0 -> "a" R1 (weight p[0]) | "b", R1 -> "a" R2 (weight p[1]) | "b", ..., with the last rule referring to R0.
+     */
+    private static TextGrammar ring(double[] p) {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("R0"));
+        for (int i = 0; i < p.length; ++i) {
+            g.addRule("R" + i, p[i], g.new Literal("a"), g.new ProductionRule("R" + ((i + 1) % p.length)));
+            g.addRule("R" + i, 1 - p[i], g.new Literal("b"));
+        }
+        return g;
+    }
+
+    @Test
+    public void testLongChainOfRules() {
+        int n = 100000;
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("R0"));
+        for (int i = 0; i < n - 1; ++i) {
+            g.addRule("R" + i, g.new Literal("a"), g.new ProductionRule("R" + (i + 1)));
+        }
+        g.addRule("R" + (n - 1), g.new Literal("z"));
+
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(g);
+
+        assertThat(underTest.expectedExpansions()).isCloseTo(n + 1, within(TOLERANCE));
+        assertThat(underTest.expectedGroundTokens()).isCloseTo(n, within(TOLERANCE));
+    }
+
+    @Test
+    public void testLargeComponents() {
+        int s = 3 * TextGrammarAnalysis.DENSE_LIMIT;
+        double[] p = new double[s];
+        for (int i = 0; i < s; ++i) {
+            p[i] = 0.9 + 0.009 * ((7 * i) % 10);
+        }
+        // The ground tokens generated by R0 are 1 + p[0] (1 + p[1] (1 + ...)), around the ring any number of times.
+        double sum = 0;
+        double product = 1;
+        for (int i = 0; i < s; ++i) {
+            sum += product;
+            product *= p[i];
+        }
+        double expected = sum / (1 - product);
+
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(ring(p));
+
+        assertThat(underTest.isFinite()).isTrue();
+        assertThat(underTest.expectedGroundTokens()).isCloseTo(expected, within(1e-6 * expected));
+        assertThat(underTest.expectedExpansions()).isCloseTo(expected + 1, within(1e-6 * expected));
+        assertThat(underTest.expectedLength()).isCloseTo(expected, within(1e-6 * expected));
+    }
+
+    @Test
+    public void testLargeNearlyCriticalComponent() {
+        double[] p = new double[2 * TextGrammarAnalysis.DENSE_LIMIT];
+        Arrays.fill(p, 0.9999);
+
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(ring(p));
+
+        assertThat(underTest.isFinite()).isTrue();
+        assertThat(underTest.expectedGroundTokens()).isCloseTo(10000, within(1e-2));
+    }
+
+    @Test
+    public void testLargeCriticalComponent() {
+        double[] p = new double[2 * TextGrammarAnalysis.DENSE_LIMIT];
+        Arrays.fill(p, 1);
+        p[17] = 0.5;
+        assertThat(TextGrammarAnalysis.of(ring(p)).isFinite()).isTrue();
+
+        p[17] = 1;
+        TextGrammarAnalysis underTest = TextGrammarAnalysis.of(ring(p));
+        assertThat(underTest.isFinite()).isFalse();
+        assertThat(underTest.divergentRules()).hasSize(p.length + 1);
+    }
+
+    @Test
+    public void testPresizing() {
+        TextGrammar g = new TextGrammar();
+        for (int i = 0; i < 100; ++i) {
+            g.addRule(TextGrammar.ROOT_KEY, g.new Literal("word "), g.new Literal("word "), g.new Literal("word "));
+        }
+        TextGrammarAnalysis analysis = TextGrammarAnalysis.of(g);
+        assertThat(analysis.suggestedBufferSize()).isEqualTo(4);
+        assertThat(analysis.suggestedCapacity()).isEqualTo(15);
+
+        CompiledTextGrammar presized = analysis.grammar().withCapacity(analysis.suggestedCapacity());
+        assertThat(presized.blankEntity().capacity()).isEqualTo(15);
+
+        RunMetrics metrics = new RunMetrics();
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(presized, analysis.suggestedBufferSize());
+        runner.setObserver(metrics);
+        assertThat(runner.run().toString()).isEqualTo("word word word ");
+        assertThat(metrics.bufferGrowths()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TextGrammarParserTest {
+
+    private static final String GREETINGS =
+            "# Greets someone.\n" +
+            "ROOT     := GREETING \", \" NAME \"!\" | \"Hello!\" (0.5)\n" +
+            "GREETING := \"Hello\" | \"Hi\"\n" +
+            "          | \"Howdy\" ;  NAME := \"world\" (2)\n" +
+            "\n" +
+            "NAME     := \"bob\" | \"\\\"al\\\"\\u0021\"   # defined twice\n";
+
+    @Test
+    public void testParsesRules() throws IOException {
+        GroundSequenceRunner<StringBuilder> runner =
+                new GroundSequenceRunner<>(TextGrammarParser.parse(new StringReader(GREETINGS)));
+
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(runner.run(new Random(seed)).toString())
+                    .matches("Hello!|(Hello|Hi|Howdy), (world|bob|\"al\"!)!");
+        }
+    }
+
+    @Test
+    public void testCompiledGrammarMatchesParsedGrammar() throws IOException {
+        TextGrammar g = TextGrammarParser.parse(new StringReader(GREETINGS));
+        CompiledTextGrammar underTest = TextGrammarParser.parseCompiled(new StringReader(GREETINGS));
+        CompiledTextGrammar expected = g.compile();
+
+        for (String key : new String[]{"ROOT", "GREETING", "NAME"}) {
+            assertThat(underTest.ruleId(key)).isEqualTo(expected.ruleId(key));
+        }
+        GroundSequenceRunner<StringBuilder> expectedRunner = new GroundSequenceRunner<>(g);
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(underTest);
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(runner.run(new Random(seed)).toString())
+                    .isEqualTo(expectedRunner.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test
+    public void testUndefinedKeysFollowDefinedKeys() throws IOException {
+        String grammar = "A := X\nB := Y\nA := Z\n";
+        CompiledTextGrammar expected = TextGrammarParser.parse(new StringReader(grammar)).compile();
+        CompiledTextGrammar underTest = TextGrammarParser.parseCompiled(new StringReader(grammar));
+
+        for (String key : new String[]{"A", "B", "X", "Y", "Z"}) {
+            assertThat(underTest.ruleId(key)).isEqualTo(expected.ruleId(key));
+        }
+        assertThat(underTest.ruleId("Z")).isEqualTo(3);
+    }
+
+    @Test
+    public void testEmptyGrammarHasEmptyRoot() throws IOException {
+        CompiledTextGrammar underTest = TextGrammarParser.parseCompiled(new StringReader("# nothing\n\n"));
+
+        assertThat(new GroundSequenceRunner<>(underTest).run().toString()).isEqualTo("");
+    }
+
+    @Test
+    public void testReadsPastBufferBoundaries() throws IOException {
+        StringBuilder sb = new StringBuilder("ROOT := ");
+        for (int i = 0; i < 5000; ++i) {
+            sb.append("\"ab\" ");
+        }
+        CompiledTextGrammar g = TextGrammarParser.parseCompiled(new StringReader(sb.toString()));
+        String text = new GroundSequenceRunner<>(g).run().toString();
+
+        assertThat(text).hasSize(10000);
+    }
+
+    @Test
+    public void testReportsErrorPositions() {
+        assertSyntaxError("ROOT := \"a\"\nNAME \"b\"", 2, 6);
+        assertSyntaxError("ROOT := \"a\n", 1, 9);
+        assertSyntaxError("ROOT := \"a\" (-1)", 1, 13);
+        assertSyntaxError("ROOT := \"a\" (x)", 1, 13);
+        assertSyntaxError("ROOT := \"a\" (1) \"b\"", 1, 17);
+        assertSyntaxError("ROOT = \"a\"", 1, 6);
+        assertSyntaxError("ROOT := \"\\q\"", 1, 9);
+        assertSyntaxError("ROOT := 'a'", 1, 9);
+    }
+
+    private static void assertSyntaxError(String grammar, int line, int column) {
+        assertThatThrownBy(() -> TextGrammarParser.parse(new StringReader(grammar)))
+                .isInstanceOf(TextGrammarParser.SyntaxException.class)
+                .hasFieldOrPropertyWithValue("line", line)
+                .hasFieldOrPropertyWithValue("column", column);
+    }
+}
@@ -21,11 +21,13 @@ package com.github.kalexmills.stochrammar.impl;
 import com.github.kalexmills.stochrammar.runner.GroundSequenceRunner;
 import org.junit.Test;
 
+import java.util.Random;
 import java.util.regex.Pattern;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.fail;
 
 /**
  * TextGrammarTest implements a components of the TextGrammar implementation. The tests in this class are stochastic, so they
@@ -96,4 +98,61 @@ public class TextGrammarTest {
 
         assertThat(runner.run().toString(), is(equalTo("abracadabra")));
     }
+
+    @Test
+    public void testWeightedRules() {
+        // Rules with zero weight should never be chosen, and the rest should be chosen in proportion to their weights.
+        TextGrammar g = new TextGrammar();
+        g.addRule(g.ROOT_KEY, 3, g.new Literal("abra"));
+        g.addRule(g.ROOT_KEY, 1, g.new Literal("cadabra"));
+        g.addRule(g.ROOT_KEY, 0, g.new Literal("alakazam"));
+
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(g);
+        Random rand = new Random(0);
+
+        int n = 10000;
+        int abras = 0;
+        for (int i = 0; i < n; i++) {
+            String str = runner.run(rand).toString();
+            assertThat(str, is(not(equalTo("alakazam"))));
+            if (str.equals("abra")) abras++;
+        }
+        assertThat(Math.abs(abras - 0.75 * n) < 0.02 * n, is(true));
+    }
+
+    @Test
+    public void testRulesWithOnlyZeroWeightsCannotBeReplaced() {
+        // A rule whose alternatives all have weight 0 has nothing to choose, whether or not it is compiled.
+        TextGrammar g = new TextGrammar();
+        g.addRule(g.ROOT_KEY, g.new ProductionRule("A"));
+        g.addRule("A", 0, g.new Literal("abra"));
+        g.addRule("A", 0, g.new Literal("cadabra"));
+        g.addRule("B", 0, g.new Literal("alakazam"));
+        g.addRule("B", 1, g.new Literal("abracadabra"));
+
+        CompiledTextGrammar compiled = g.compile();
+        int a = compiled.ruleId("A");
+        assertThat(compiled.probability(a, 0), is(0.0));
+        assertThat(compiled.probability(a, 1), is(0.0));
+        assertThat(compiled.probability(compiled.ruleId("B"), 0), is(0.0));
+        assertThat(compiled.probability(compiled.ruleId("B"), 1), is(1.0));
+
+        Random rand = new Random(0);
+        try {
+            new GroundSequenceRunner<>(g).run(rand);
+            fail("Expected a ReplaceException");
+        } catch (TextGrammar.ReplaceException expected) {
+        }
+        try {
+            new GroundSequenceRunner<>(compiled).run(rand);
+            fail("Expected a ReplaceException");
+        } catch (TextGrammar.ReplaceException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeWeights() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(g.ROOT_KEY, -1, g.new Literal("abra"));
+    }
 }
@@ -0,0 +1,89 @@
+package com.github.kalexmills.stochrammar.impl;
+
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.runner.StreamingRunner;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TextStreamerTest {
+
+    @Test
+    public void testWritesSameTextAsStreamingRunner() throws IOException {
+        TextGrammar g = abracadabra();
+        TextStreamer underTest = new TextStreamer(g);
+        StreamingRunner<StringBuilder> expected = new StreamingRunner<>(g);
+
+        for (long seed = 0; seed < 100; ++seed) {
+            StringWriter out = new StringWriter();
+            underTest.writeTo(out, new Random(seed));
+            assertThat(out.toString()).isEqualTo(expected.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test
+    public void testWritesToCharBuffer() throws IOException {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"), g.new Literal("cadabra"));
+
+        CharBuffer out = CharBuffer.allocate(11);
+        new TextStreamer(g.compile()).writeTo(out);
+        out.flip();
+
+        assertThat(out.toString()).isEqualTo("abracadabra");
+
+        CharBuffer tooSmall = CharBuffer.allocate(10);
+        assertThatThrownBy(() -> new TextStreamer(g).writeTo(tooSmall)).isInstanceOf(BufferOverflowException.class);
+    }
+
+    @Test
+    public void testWritesNonLiteralGroundTokens() throws IOException {
+        class Upper extends GroundToken<StringBuilder> {
+            Upper(String text) {
+                setAction((str) -> str.append(text.toUpperCase()));
+            }
+        }
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"), new Upper("cad"), g.new Literal("abra"));
+
+        StringWriter out = new StringWriter();
+        new TextStreamer(g).writeTo(out);
+
+        assertThat(out.toString()).isEqualTo("abraCADabra");
+    }
+
+    @Test
+    public void testWritesLiteralsWithCustomActions() throws IOException {
+        TextGrammar g = new TextGrammar();
+        TextGrammar.Literal cad = g.new Literal("cad");
+        cad.setAction((str) -> str.append("CAD"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"), cad, g.new Literal("abra"));
+
+        StringWriter out = new StringWriter();
+        new TextStreamer(g).writeTo(out);
+
+        assertThat(out.toString()).isEqualTo("abraCADabra");
+        assertThat(out.toString()).isEqualTo(new StreamingRunner<>(g).run().toString());
+    }
+
+    @Test
+    public void testPropagatesIOException() {
+        Writer broken = new Writer() {
+            public void write(char[] cbuf, int off, int len) throws IOException { throw new IOException("broken"); }
+            public void flush() { }
+            public void close() { }
+        };
+
+        assertThatThrownBy(() -> new TextStreamer(abracadabra()).writeTo(broken))
+                .isInstanceOf(IOException.class).hasMessage("broken");
+    }
+}
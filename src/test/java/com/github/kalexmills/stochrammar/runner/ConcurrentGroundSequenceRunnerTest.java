@@ -0,0 +1,74 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentGroundSequenceRunnerTest {
+
+    @Test
+    public void testMatchesGroundSequenceRunner() {
+        TextGrammar g = abracadabra();
+        GroundSequenceRunner<StringBuilder> expected = new GroundSequenceRunner<>(g);
+        ConcurrentGroundSequenceRunner<StringBuilder> underTest = new ConcurrentGroundSequenceRunner<>(g);
+
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(underTest.run(new Random(seed)).toString())
+                    .isEqualTo(expected.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test
+    public void testSharedBetweenThreads() throws Exception {
+        TextGrammar g = abracadabra();
+        int n = 1000;
+
+        GroundSequenceRunner<StringBuilder> sequential = new GroundSequenceRunner<>(g);
+        List<String> expected = new ArrayList<>();
+        for (int seed = 0; seed < n; ++seed) {
+            expected.add(sequential.run(new Random(seed)).toString());
+        }
+
+        ConcurrentGroundSequenceRunner<StringBuilder> underTest = new ConcurrentGroundSequenceRunner<>(g);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int seed = 0; seed < n; ++seed) {
+                final long s = seed;
+                futures.add(executor.submit(() -> underTest.run(new Random(s)).toString()));
+            }
+            for (int i = 0; i < n; ++i) {
+                assertThat(futures.get(i).get()).isEqualTo(expected.get(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testStartUsesBufferSize() {
+        TextGrammar g = new TextGrammar();
+        TextGrammar.Literal[] literals = new TextGrammar.Literal[100];
+        for (int i = 0; i < literals.length; ++i) {
+            literals[i] = g.new Literal("a");
+        }
+        g.addRule(TextGrammar.ROOT_KEY, literals);
+
+        ResumableRun<StringBuilder> small = new ConcurrentGroundSequenceRunner<>(g).start();
+        assertThat(small.finish().length()).isEqualTo(100);
+        assertThat(small.stats().bufferGrowths()).isPositive();
+
+        ResumableRun<StringBuilder> large = new ConcurrentGroundSequenceRunner<>(g, 256).start();
+        assertThat(large.finish().length()).isEqualTo(100);
+        assertThat(large.stats().bufferGrowths()).isEqualTo(0);
+    }
+}
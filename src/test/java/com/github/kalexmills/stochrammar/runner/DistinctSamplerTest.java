@@ -0,0 +1,108 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class DistinctSamplerTest {
+
+    // Generates exactly six strings, each with equal probability.
+    private static TextGrammar sixWords() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"), g.new ProductionRule("B"));
+        g.addRule("A", g.new Literal("a"));
+        g.addRule("A", g.new Literal("b"));
+        g.addRule("A", g.new Literal("c"));
+        g.addRule("B", g.new Literal("x"));
+        g.addRule("B", g.new Literal("y"));
+        return g;
+    }
+
+    private static List<String> toStrings(List<StringBuilder> builders) {
+        return builders.stream().map(StringBuilder::toString).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSamplesAreDistinct() {
+        DistinctSampler<StringBuilder> underTest = new DistinctSampler<>(new GroundSequenceRunner<>(abracadabra()));
+
+        List<String> result = toStrings(underTest.sample(2000, RandomSource.of(new Random(42))));
+
+        assertThat(result).hasSize(2000).doesNotHaveDuplicates();
+        assertThat(underTest.attempts()).isGreaterThanOrEqualTo(2000);
+    }
+
+    @Test
+    public void testStopsWhenLanguageIsExhausted() {
+        DistinctSampler<StringBuilder> underTest = new DistinctSampler<>(new GroundSequenceRunner<>(sixWords()));
+
+        List<String> result = toStrings(underTest.sample(10, RandomSource.of(new Random(42))));
+
+        assertThat(result).containsExactlyInAnyOrder("ax", "ay", "bx", "by", "cx", "cy");
+        assertThat(underTest.estimatedLanguageSize()).isCloseTo(6, within(0.5));
+    }
+
+    @Test
+    public void testEstimateIsInfiniteWithoutRepeats() {
+        DistinctSampler<StringBuilder> underTest = new DistinctSampler<>(new GroundSequenceRunner<>(sixWords()));
+
+        underTest.sample(1, RandomSource.of(new Random(42)));
+
+        assertThat(underTest.estimatedLanguageSize()).isEqualTo(Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void testChoiceFingerprintDistinguishesDerivations() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"));
+        g.addRule("A", g.new Literal("a"));
+        DistinctSampler<StringBuilder> underTest = new DistinctSampler<>(new GroundSequenceRunner<>(g.compile()));
+
+        assertThat(toStrings(underTest.sample(5, RandomSource.of(new Random(1))))).containsExactly("a");
+
+        underTest.setFingerprint(DistinctSampler.Fingerprint.CHOICES);
+        assertThat(toStrings(underTest.sample(5, RandomSource.of(new Random(1))))).containsExactly("a", "a");
+    }
+
+    @Test
+    public void testChoiceFingerprintSamplesAreDistinct() {
+        DistinctSampler<StringBuilder> underTest =
+                new DistinctSampler<>(new GroundSequenceRunner<>(abracadabra().compile()));
+        underTest.setFingerprint(DistinctSampler.Fingerprint.CHOICES);
+
+        assertThat(toStrings(underTest.sample(1000, RandomSource.of(new Random(7)))))
+                .hasSize(1000).doesNotHaveDuplicates();
+    }
+
+    @Test
+    public void testBloomFilterNeverLetsRepeatsThrough() {
+        DistinctSampler<StringBuilder> underTest = new DistinctSampler<>(new TreeRunner<>(abracadabra().compile()));
+        underTest.setBloomFilter(0.01);
+        Set<String> seen = new HashSet<>();
+
+        long count = underTest.sample(5000, RandomSource.of(new Random(3)), (sb) -> seen.add(sb.toString()));
+
+        assertThat(count).isEqualTo(5000);
+        assertThat(seen).hasSize(5000);
+    }
+
+    @Test
+    public void testStopsAtMaxAttempts() {
+        DistinctSampler<StringBuilder> underTest = new DistinctSampler<>(new GroundSequenceRunner<>(abracadabra()));
+        underTest.setMaxAttempts(10);
+
+        assertThat(underTest.sample(100, RandomSource.of(new Random(3))).size()).isLessThanOrEqualTo(10);
+        assertThat(underTest.attempts()).isEqualTo(10);
+    }
+}
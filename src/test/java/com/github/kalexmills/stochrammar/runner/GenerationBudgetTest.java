@@ -0,0 +1,205 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GenerationBudgetTest {
+
+    /**
+     * ROOT -> "a" ROOT, which never terminates.
+     */
+    private static TextGrammar runawayGrammar() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        return g;
+    }
+
+    // The index of the depth-first TreeRunner returned by runners().
+    private static final int DEPTH_FIRST_TREE_RUNNER = 4;
+
+    private static List<GrammarRunner<StringBuilder>> runners(TextGrammar g) {
+        GroundSequenceRunner<StringBuilder> leftmost = new GroundSequenceRunner<>(g);
+        leftmost.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+        TreeRunner<StringBuilder> breadthFirst = new TreeRunner<>(g);
+        breadthFirst.setTraversalType(TreeRunner.TraversalType.BREADTH_FIRST);
+        return Arrays.asList(new GroundSequenceRunner<>(g), new ConcurrentGroundSequenceRunner<>(g), leftmost,
+                             new StreamingRunner<>(g), new TreeRunner<>(g), breadthFirst);
+    }
+
+    @Test
+    public void testTokenLimitFails() {
+        for (GrammarRunner<StringBuilder> runner : runners(runawayGrammar())) {
+            runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                    .withMaxTokens(10, GenerationBudget.Policy.FAIL));
+
+            assertThatThrownBy(runner::run)
+                    .isInstanceOf(GenerationBudget.ExceededException.class)
+                    .hasFieldOrPropertyWithValue("limit", GenerationBudget.Limit.TOKENS);
+        }
+    }
+
+    @Test
+    public void testTokenLimitTruncates() {
+        TextGrammar g = runawayGrammar();
+        GenerationBudget<StringBuilder> budget = GenerationBudget.<StringBuilder>unlimited()
+                .withMaxTokens(10, GenerationBudget.Policy.TRUNCATE);
+        GrammarRunner<StringBuilder> groundSequence = new GroundSequenceRunner<>(g);
+        GrammarRunner<StringBuilder> streaming = new StreamingRunner<>(g);
+        for (GrammarRunner<StringBuilder> runner : Arrays.asList(groundSequence, streaming)) {
+            runner.setBudget(budget);
+
+            assertThat(runner.run().toString()).isEqualTo("aaaaaaaaaa");
+        }
+
+        // TreeRunner counts non-ground tokens as well, and visits the last child first.
+        TreeRunner<StringBuilder> tree = new TreeRunner<>(g);
+        tree.setBudget(budget);
+        assertThat(tree.run().toString()).isEmpty();
+
+        tree.setTraversalType(TreeRunner.TraversalType.BREADTH_FIRST);
+        assertThat(tree.run().toString()).isEqualTo("aaaaa");
+    }
+
+    @Test
+    public void testDepthLimitFallsBack() {
+        TextGrammar g = runawayGrammar();
+        Function<CFToken<StringBuilder>, CFToken<StringBuilder>[]> fallback =
+                (token) -> new CFToken[] { g.new Literal("z") };
+        List<GrammarRunner<StringBuilder>> runners = runners(g);
+        for (int i = 0; i < runners.size(); ++i) {
+            GrammarRunner<StringBuilder> runner = runners.get(i);
+            runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                    .withMaxDepth(5, GenerationBudget.Policy.FALLBACK)
+                    .withFallback(fallback));
+
+            // The grammar itself is at depth 0, and each ROOT rule adds one level, so the ROOT at depth 5 is cut off.
+            // The depth-first TreeRunner visits the last child first.
+            String expected = (i == DEPTH_FIRST_TREE_RUNNER) ? "zaaaaa" : "aaaaaz";
+            assertThat(runner.run().toString()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testDepthLimitTruncates() {
+        for (GrammarRunner<StringBuilder> runner : runners(runawayGrammar())) {
+            runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                    .withMaxDepth(5, GenerationBudget.Policy.TRUNCATE));
+
+            assertThat(runner.run().toString()).isEqualTo("aaaaa");
+        }
+    }
+
+    @Test
+    public void testPassLimitAppliesToGroundSequenceRunner() {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(runawayGrammar());
+        runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                .withMaxPasses(3, GenerationBudget.Policy.FAIL));
+
+        assertThatThrownBy(runner::run)
+                .isInstanceOf(GenerationBudget.ExceededException.class)
+                .hasFieldOrPropertyWithValue("limit", GenerationBudget.Limit.PASSES);
+    }
+
+    @Test
+    public void testPassLimitDoesNotReplaceRemainingTokens() {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(runawayGrammar());
+        runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                .withMaxPasses(3, GenerationBudget.Policy.TRUNCATE));
+        RunStats[] stats = new RunStats[1];
+        runner.setObserver((s) -> stats[0] = s);
+
+        assertThat(runner.run().toString()).isEqualTo("aaa");
+        // Passes replace 1, 2 and 3 tokens; the cutoff replaces none.
+        assertThat(stats[0].replaceCalls()).isEqualTo(6);
+    }
+
+    @Test
+    public void testTokenLimitFallsBackOnlyInPasses() {
+        // In PASSES mode, the token kept before the cut is still unexpanded, so FALLBACK replaces it.
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("A"), g.new ProductionRule("B"));
+        g.addRule("A", g.new Literal("a"));
+        g.addRule("B", g.new Literal("b"));
+        GenerationBudget<StringBuilder> truncate = GenerationBudget.<StringBuilder>unlimited()
+                .withMaxTokens(1, GenerationBudget.Policy.TRUNCATE)
+                .withFallback((token) -> new CFToken[]{g.new Literal("?")});
+        GenerationBudget<StringBuilder> fallback = truncate.withMaxTokens(1, GenerationBudget.Policy.FALLBACK);
+
+        GroundSequenceRunner<StringBuilder> passes = new GroundSequenceRunner<>(g);
+        passes.setBudget(truncate);
+        assertThat(passes.run().toString()).isEqualTo("");
+        passes.setBudget(fallback);
+        assertThat(passes.run().toString()).isEqualTo("?");
+
+        GroundSequenceRunner<StringBuilder> leftmost = new GroundSequenceRunner<>(g);
+        leftmost.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+        leftmost.setBudget(truncate);
+        assertThat(leftmost.run().toString()).isEqualTo("a");
+        leftmost.setBudget(fallback);
+        assertThat(leftmost.run().toString()).isEqualTo("a");
+    }
+
+    @Test
+    public void testTimeLimit() {
+        for (GrammarRunner<StringBuilder> runner : runners(runawayGrammar())) {
+            runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                    .withTimeout(5, TimeUnit.MILLISECONDS, GenerationBudget.Policy.FAIL));
+
+            assertThatThrownBy(runner::run)
+                    .isInstanceOf(GenerationBudget.ExceededException.class)
+                    .hasFieldOrPropertyWithValue("limit", GenerationBudget.Limit.TIME);
+
+            runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                    .withTimeout(5, TimeUnit.MILLISECONDS, GenerationBudget.Policy.TRUNCATE));
+
+            assertThat(runner.run().toString()).matches("^a+$");
+        }
+    }
+
+    @Test
+    public void testUnreachedLimitsDoNotChangeOutput() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("cadabra"), g.new ProductionRule(TextGrammar.ROOT_KEY),
+                                        g.new Literal("!"));
+        GenerationBudget<StringBuilder> budget = GenerationBudget.<StringBuilder>unlimited()
+                .withMaxTokens(1000, GenerationBudget.Policy.FAIL)
+                .withMaxDepth(1000, GenerationBudget.Policy.FAIL)
+                .withMaxPasses(1000, GenerationBudget.Policy.FAIL)
+                .withTimeout(1, TimeUnit.MINUTES, GenerationBudget.Policy.FAIL);
+
+        for (GrammarRunner<StringBuilder> runner : runners(g)) {
+            for (long seed = 0; seed < 20; ++seed) {
+                String expected = runner.run(new Random(seed)).toString();
+                runner.setBudget(budget);
+                assertThat(runner.run(new Random(seed)).toString()).isEqualTo(expected);
+                runner.setBudget(GenerationBudget.unlimited());
+            }
+        }
+    }
+
+    @Test
+    public void testBatchesUseTheBudget() {
+        for (GrammarRunner<StringBuilder> runner : runners(runawayGrammar())) {
+            runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                    .withMaxTokens(3, GenerationBudget.Policy.TRUNCATE));
+
+            assertThat(runner.runBatch(8, 42L)).allSatisfy((entity) -> assertThat(entity.toString()).matches("^a{0,3}$"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeLimits() {
+        GenerationBudget.unlimited().withMaxDepth(-1, GenerationBudget.Policy.FAIL);
+    }
+}
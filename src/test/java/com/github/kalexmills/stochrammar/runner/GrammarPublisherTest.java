@@ -0,0 +1,166 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GrammarPublisherTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private GrammarPublisher<StringBuilder> publisher(GrammarRunner<StringBuilder> runner, int parallelism,
+                                                      int prefetch) {
+        GrammarPublisher<StringBuilder> publisher = new GrammarPublisher<>(runner);
+        publisher.setExecutor(executor);
+        publisher.setParallelism(parallelism);
+        publisher.setPrefetch(prefetch);
+        return publisher;
+    }
+
+    /**
+     * Recorder requests a fixed number of entities when it subscribes, and records whatever it receives.
+     */
+    private static class Recorder implements Flow.Subscriber<StringBuilder> {
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch done;
+        final long initialRequest;
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        Recorder(long initialRequest, int expected) {
+            this.initialRequest = initialRequest;
+            this.done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(StringBuilder item) {
+            received.add(item.toString());
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            while (done.getCount() > 0) done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        void await() throws InterruptedException {
+            assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    public void testDeliversRequestedEntities() throws InterruptedException {
+        Recorder recorder = new Recorder(1000, 1000);
+
+        publisher(new GroundSequenceRunner<>(abracadabra().compile()), 4, 64).subscribe(recorder);
+        recorder.await();
+
+        assertThat(recorder.error).isNull();
+        assertThat(recorder.received).hasSize(1000);
+        assertThat(recorder.received).allMatch((s) -> s.matches("(abra|cadabra)+"));
+    }
+
+    @Test
+    public void testGeneratesNoMoreThanDemandPlusPrefetch() throws InterruptedException {
+        RunMetrics metrics = new RunMetrics();
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        runner.setObserver(metrics);
+        Recorder recorder = new Recorder(3, 3);
+
+        publisher(runner, 2, 4).subscribe(recorder);
+        recorder.await();
+        Thread.sleep(100);
+
+        assertThat(recorder.received).hasSize(3);
+        assertThat(metrics.runs()).isBetween(3L, 7L);
+
+        recorder.subscription.request(5);
+        Thread.sleep(100);
+        assertThat(recorder.received).hasSize(8);
+        assertThat(metrics.runs()).isBetween(8L, 12L);
+    }
+
+    @Test
+    public void testGeneratesNothingUntilRequested() throws InterruptedException {
+        RunMetrics metrics = new RunMetrics();
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        runner.setObserver(metrics);
+
+        publisher(runner, 1, 16).subscribe(new Recorder(0, 0) {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+            }
+        });
+        Thread.sleep(50);
+
+        assertThat(metrics.runs()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCancelStopsDelivery() throws InterruptedException {
+        Recorder recorder = new Recorder(Long.MAX_VALUE, 10) {
+            @Override
+            public void onNext(StringBuilder item) {
+                super.onNext(item);
+                if (received.size() == 10) subscription.cancel();
+            }
+        };
+
+        publisher(new GroundSequenceRunner<>(abracadabra().compile()), 4, 8).subscribe(recorder);
+        recorder.await();
+        Thread.sleep(50);
+
+        assertThat(recorder.received).hasSize(10);
+    }
+
+    @Test
+    public void testFailedRunIsReported() throws InterruptedException {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("MISSING"));
+        Recorder recorder = new Recorder(5, 1);
+
+        publisher(new GroundSequenceRunner<>(g), 2, 4).subscribe(recorder);
+        recorder.await();
+
+        assertThat(recorder.error).isInstanceOf(TextGrammar.ReplaceException.class);
+        assertThat(recorder.received).isEmpty();
+    }
+
+    @Test
+    public void testNonPositiveRequestIsReported() throws InterruptedException {
+        Recorder recorder = new Recorder(0, 1);
+
+        publisher(new GroundSequenceRunner<>(abracadabra().compile()), 1, 4).subscribe(recorder);
+        recorder.await();
+
+        assertThat(recorder.error).isInstanceOf(IllegalArgumentException.class);
+    }
+}
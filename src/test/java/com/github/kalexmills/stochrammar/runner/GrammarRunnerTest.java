@@ -0,0 +1,144 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GrammarRunnerTest {
+
+    /**
+     * StatefulRunner keeps state between runs, and does not override fork, so it must never run on two threads at once.
+     */
+    static class StatefulRunner extends GrammarRunner<StringBuilder> {
+        private final GroundSequenceRunner<StringBuilder> delegate;
+        private final AtomicInteger active = new AtomicInteger();
+        volatile boolean overlapped;
+
+        StatefulRunner(StochasticGrammar<StringBuilder> grammar) {
+            super(grammar);
+            delegate = new GroundSequenceRunner<>(grammar);
+        }
+
+        @Override
+        public StringBuilder run(Random rand) {
+            return run(RandomSource.of(rand));
+        }
+
+        @Override
+        public StringBuilder run(RandomSource rand) {
+            if (active.incrementAndGet() > 1) overlapped = true;
+            try {
+                delegate.setBudget(budget);
+                Thread.yield();
+                return delegate.run(rand);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    private static List<String> toStrings(List<StringBuilder> builders) {
+        return builders.stream().map(StringBuilder::toString).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testBatchMatchesSequentialRuns() {
+        GroundSequenceRunner<StringBuilder> underTest = new GroundSequenceRunner<>(abracadabra());
+
+        int n = 500;
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            expected.add(underTest.run(GrammarRunner.randomFor(7, i)).toString());
+        }
+
+        assertThat(toStrings(underTest.runBatch(n, 7))).isEqualTo(expected);
+    }
+
+    @Test
+    public void testBatchIndependentOfThreadCount() {
+        TreeRunner<StringBuilder> underTest = new TreeRunner<>(abracadabra().compile());
+        int n = 1000;
+
+        List<String> expected = toStrings(underTest.runBatch(n, 42, new ForkJoinPool(1)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(7);
+        try {
+            assertThat(toStrings(underTest.runBatch(n, 42, executor))).isEqualTo(expected);
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(toStrings(underTest.runBatch(n, 42))).isEqualTo(expected);
+        assertThat(toStrings(underTest.runBatch(n, 43))).isNotEqualTo(expected);
+    }
+
+    @Test
+    public void testStreamBatchMatchesRunBatch() {
+        StreamingRunner<StringBuilder> underTest = new StreamingRunner<>(abracadabra());
+        int n = 1000;
+
+        List<String> expected = toStrings(underTest.runBatch(n, 42));
+
+        assertThat(underTest.streamBatch(n, 42).map(StringBuilder::toString).collect(Collectors.toList()))
+                .isEqualTo(expected);
+        assertThat(underTest.streamBatch(n, 42).parallel().map(StringBuilder::toString).collect(Collectors.toList()))
+                .isEqualTo(expected);
+    }
+
+    @Test
+    public void testRunnersWhichCannotBeForkedRunOneAtATime() {
+        StatefulRunner underTest = new StatefulRunner(abracadabra());
+        int n = 500;
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            expected.add(underTest.run(GrammarRunner.randomFor(7, i)).toString());
+        }
+
+        assertThat(toStrings(underTest.runBatch(n, 7))).isEqualTo(expected);
+        assertThat(underTest.streamBatch(n, 7).parallel().map(StringBuilder::toString).collect(Collectors.toList()))
+                .isEqualTo(expected);
+        assertThat(underTest.overlapped).isFalse();
+    }
+
+    @Test
+    public void testEmptyBatch() {
+        assertThat(new GroundSequenceRunner<>(abracadabra()).runBatch(0, 0)).isEmpty();
+    }
+
+    @Test
+    public void testBatchPropagatesExceptions() {
+        class Failing extends CFToken<String> {
+            public CFToken<String>[] replace(Random rand) {
+                throw new IllegalStateException("failed");
+            }
+        }
+        class Grammar implements StochasticGrammar<String> {
+            public CFToken<String> generateRootToken() {
+                return new Failing();
+            }
+
+            public String blankEntity() {
+                return "";
+            }
+        }
+
+        GroundSequenceRunner<String> underTest = new GroundSequenceRunner<>(new Grammar());
+
+        assertThatThrownBy(() -> underTest.runBatch(10, 0))
+                .isInstanceOf(IllegalStateException.class).hasMessage("failed");
+    }
+}
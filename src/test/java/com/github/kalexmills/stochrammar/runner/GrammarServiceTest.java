@@ -0,0 +1,139 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GrammarServiceTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static TextGrammar endless() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        return g;
+    }
+
+    @Test
+    public void testRunsRunnersWhichCannotBeForkedOneAtATime() throws Exception {
+        GrammarRunnerTest.StatefulRunner runner = new GrammarRunnerTest.StatefulRunner(abracadabra().compile());
+        GrammarService<StringBuilder> underTest = new GrammarService<>(runner, executor, 100);
+
+        List<CompletableFuture<StringBuilder>> futures = new ArrayList<>();
+        for (long seed = 0; seed < 100; ++seed) {
+            futures.add(underTest.submit(RandomSource.of(new Random(seed))));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        assertThat(runner.overlapped).isFalse();
+        for (int seed = 0; seed < 100; ++seed) {
+            assertThat(futures.get(seed).get().toString()).isEqualTo(runner.run(new Random(seed)).toString());
+        }
+
+        GrammarRunnerTest.StatefulRunner endless = new GrammarRunnerTest.StatefulRunner(endless());
+        GrammarService<StringBuilder> timedService = new GrammarService<>(endless, executor, 1);
+        CompletableFuture<StringBuilder> timed = timedService.submit(10, TimeUnit.MILLISECONDS);
+        assertThatThrownBy(() -> timed.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(TimeoutException.class);
+        // The run is stopped by the timeout added to the budget of the fork, which is then restored.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (timedService.inFlight() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(timedService.inFlight()).isEqualTo(0);
+        assertThat(endless.getBudget().isTimed()).isFalse();
+    }
+
+    @Test
+    public void testMatchesSynchronousRuns() throws Exception {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        GrammarService<StringBuilder> underTest = new GrammarService<>(runner, executor, 100);
+
+        List<CompletableFuture<StringBuilder>> futures = new ArrayList<>();
+        for (long seed = 0; seed < 100; ++seed) {
+            futures.add(underTest.submit(RandomSource.of(new Random(seed))));
+        }
+        for (int seed = 0; seed < 100; ++seed) {
+            assertThat(futures.get(seed).get(10, TimeUnit.SECONDS).toString())
+                    .isEqualTo(runner.run(new Random(seed)).toString());
+        }
+        assertThat(underTest.inFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRejectsSubmissionsBeyondMaxInFlight() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        GrammarService<StringBuilder> underTest =
+                new GrammarService<>(new GroundSequenceRunner<>(abracadabra().compile()), queued::add, 2);
+
+        CompletableFuture<StringBuilder> first = underTest.submit();
+        CompletableFuture<StringBuilder> second = underTest.submit();
+        CompletableFuture<StringBuilder> third = underTest.submit();
+
+        assertThat(underTest.inFlight()).isEqualTo(2);
+        assertThatThrownBy(third::join).hasCauseInstanceOf(RejectedExecutionException.class);
+
+        queued.forEach(Runnable::run);
+        assertThat(first.join().toString()).matches("(abra|cadabra)+");
+        assertThat(second.join().toString()).matches("(abra|cadabra)+");
+        assertThat(underTest.inFlight()).isEqualTo(0);
+        assertThat(underTest.submit()).isNotNull();
+    }
+
+    @Test
+    public void testTimeoutStopsLongRuns() throws Exception {
+        GrammarService<StringBuilder> underTest = new GrammarService<>(new TreeRunner<>(endless()), executor, 1);
+
+        CompletableFuture<StringBuilder> future = underTest.submit(50, TimeUnit.MILLISECONDS);
+
+        assertThatThrownBy(() -> future.get(10, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+        // The run itself must also stop, returning its permit.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (underTest.inFlight() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(underTest.inFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void testTimeoutDoesNotOutliveRun() throws Exception {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        GrammarService<StringBuilder> underTest = new GrammarService<>(runner, executor, 1);
+
+        for (int i = 0; i < 10; ++i) {
+            assertThat(underTest.submit(10, TimeUnit.SECONDS).get().toString()).matches("(abra|cadabra)+");
+        }
+        assertThat(runner.getBudget()).isSameAs(GenerationBudget.unlimited());
+    }
+
+    @Test
+    public void testRunFailureCompletesExceptionally() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("MISSING"));
+        GrammarService<StringBuilder> underTest = new GrammarService<>(new GroundSequenceRunner<>(g), executor, 1);
+
+        assertThatThrownBy(() -> underTest.submit().get(10, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(TextGrammar.ReplaceException.class);
+    }
+}
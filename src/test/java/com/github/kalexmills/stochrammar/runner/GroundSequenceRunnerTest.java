@@ -3,6 +3,7 @@ package com.github.kalexmills.stochrammar.runner;
 import com.github.kalexmills.stochrammar.CFToken;
 import com.github.kalexmills.stochrammar.GroundToken;
 import com.github.kalexmills.stochrammar.StochasticGrammar;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
 import org.junit.Test;
 
 import java.util.Random;
@@ -217,4 +218,50 @@ public class GroundSequenceRunnerTest {
         assertThat(entity.length()).isEqualTo(GroundSequenceRunner.DEFAULT_BUFFER_SIZE*4);
         assertThat(entity).matches("^a+$");
     }
+
+    @Test
+    public void testLeftmostExpansionPreservesOrder() {
+        GroundSequenceRunner<String> underTest = new GroundSequenceRunner<>(new TraversalTestGrammar());
+        underTest.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+
+        assertThat(underTest.run()).isEqualTo("abdebca");
+    }
+
+    @Test
+    public void testLeftmostExpansionResizing() {
+        // R0 -> "a" R1 "b", R1 -> "a" R2 "b", ..., which is both deep and long enough to grow every buffer.
+        TextGrammar g = new TextGrammar();
+        for (int i = 0; i < 4 * GroundSequenceRunner.DEFAULT_BUFFER_SIZE; ++i) {
+            g.addRule("R" + i, g.new Literal("a"), g.new ProductionRule("R" + (i + 1)), g.new Literal("b"));
+        }
+        g.addRule("R" + 4 * GroundSequenceRunner.DEFAULT_BUFFER_SIZE);
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("R0"));
+
+        GroundSequenceRunner<StringBuilder> underTest = new GroundSequenceRunner<>(g);
+        String expected = underTest.run().toString();
+        underTest.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+
+        assertThat(underTest.run().toString()).isEqualTo(expected).matches("^a{128}b{128}$");
+    }
+
+    @Test
+    public void testLeftmostExpansionMatchesStreamingRunner() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("x"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule(TextGrammar.ROOT_KEY), g.new Literal("+"),
+                                        g.new ProductionRule(TextGrammar.ROOT_KEY));
+
+        GroundSequenceRunner<StringBuilder> underTest = new GroundSequenceRunner<>(g);
+        underTest.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+        StreamingRunner<StringBuilder> streaming = new StreamingRunner<>(g);
+        for (long seed = 0; seed < 100; ++seed) {
+            assertThat(underTest.run(new Random(seed)).toString())
+                    .isEqualTo(streaming.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsBuffersWithoutRoomForTheRoot() {
+        new GroundSequenceRunner<>(new TraversalTestGrammar(), 1);
+    }
 }
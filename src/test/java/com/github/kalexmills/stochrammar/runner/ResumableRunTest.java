@@ -0,0 +1,116 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.RandomSource;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.kalexmills.stochrammar.impl.TestGrammars.abracadabra;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ResumableRunTest {
+
+    @Test
+    public void testMatchesLeftmostRun() {
+        GroundSequenceRunner<StringBuilder> expected = new GroundSequenceRunner<>(abracadabra().compile());
+        expected.setExpansionMode(GroundSequenceRunner.ExpansionMode.LEFTMOST);
+        GroundSequenceRunner<StringBuilder> underTest = new GroundSequenceRunner<>(abracadabra().compile(), 2);
+
+        for (long seed = 0; seed < 100; ++seed) {
+            ResumableRun<StringBuilder> run = underTest.start(RandomSource.of(new Random(seed)));
+            int calls = 0;
+            while (!run.advance(1)) {
+                calls++;
+            }
+            assertThat(run.steps()).isEqualTo(calls + 1);
+            assertThat(run.getResult().toString()).isEqualTo(expected.run(new Random(seed)).toString());
+        }
+    }
+
+    @Test
+    public void testGroundTokensGrowAsPrefix() {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra());
+        ResumableRun<StringBuilder> run = runner.start(RandomSource.of(new Random(5)));
+
+        int previous = 0;
+        while (!run.advance(3)) {
+            assertThat(run.groundTokens().size()).isGreaterThanOrEqualTo(previous);
+            assertThat(run.pendingTokens()).isPositive();
+            previous = run.groundTokens().size();
+        }
+        StringBuilder prefix = new StringBuilder();
+        run.groundTokens().forEach((token) -> token.act(prefix));
+
+        assertThat(prefix.toString()).isEqualTo(run.getResult().toString());
+        assertThat(run.stats().groundTokens()).isEqualTo(run.groundTokens().size());
+    }
+
+    @Test
+    public void testAdvanceForFinishes() {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        ResumableRun<StringBuilder> run = runner.start(RandomSource.of(new Random(1)));
+
+        while (!run.advanceFor(1, TimeUnit.MILLISECONDS)) {
+            assertThat(run.isDone()).isFalse();
+        }
+        assertThat(run.getResult().toString()).matches("(abra|cadabra)+");
+    }
+
+    @Test
+    public void testResultIsUnavailableUntilDone() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"), g.new ProductionRule("B"));
+        g.addRule("B", g.new Literal("b"));
+        ResumableRun<StringBuilder> run = new GroundSequenceRunner<>(g).start();
+
+        assertThat(run.advance(1)).isFalse();
+        assertThatThrownBy(run::getResult).isInstanceOf(IllegalStateException.class);
+        assertThat(run.finish().toString()).isEqualTo("ab");
+    }
+
+    @Test
+    public void testHonorsBudget() {
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                                 .withMaxTokens(0, GenerationBudget.Policy.FAIL));
+        ResumableRun<StringBuilder> run = runner.start(RandomSource.of(new Random(0)));
+
+        assertThatThrownBy(run::finish).isInstanceOf(GenerationBudget.ExceededException.class);
+        assertThat(run.isDone()).isTrue();
+        assertThatThrownBy(run::getResult).isInstanceOf(GenerationBudget.ExceededException.class);
+    }
+
+    @Test
+    public void testHonorsTimeoutWhenAdvancedInSmallSteps() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"), g.new ProductionRule(TextGrammar.ROOT_KEY));
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(g.compile());
+        runner.setBudget(GenerationBudget.<StringBuilder>unlimited()
+                                 .withTimeout(1, TimeUnit.MILLISECONDS, GenerationBudget.Policy.FAIL));
+        ResumableRun<StringBuilder> run = runner.start(RandomSource.of(new Random(0)));
+
+        assertThatThrownBy(() -> {
+            for (int i = 0; i < 100000; ++i) {
+                run.advance(100);
+            }
+        }).isInstanceOf(GenerationBudget.ExceededException.class);
+        assertThat(run.isDone()).isTrue();
+    }
+
+    @Test
+    public void testNotifiesObserverOnce() {
+        RunMetrics metrics = new RunMetrics();
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abracadabra().compile());
+        runner.setObserver(metrics);
+        ResumableRun<StringBuilder> run = runner.start(RandomSource.of(new Random(0)));
+
+        run.finish();
+        run.advance(10);
+
+        assertThat(metrics.runs()).isEqualTo(1);
+        assertThat(metrics.replaceCalls()).isEqualTo(run.steps());
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RunMetricsTest {
+
+    /**
+     * ROOT -> "a" B "c"
+     * B -> "b"
+     */
+    private static TextGrammar abcGrammar() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("a"), g.new ProductionRule("B"), g.new Literal("c"));
+        g.addRule("B", g.new Literal("b"));
+        return g;
+    }
+
+    /**
+     * Records a copy of the values of each RunStats it observes.
+     */
+    private static class Recorder implements RunObserver {
+        List<long[]> runs = new ArrayList<>();
+
+        @Override
+        public void runCompleted(RunStats stats) {
+            assertThat(stats.expansionNanos()).isNotNegative();
+            assertThat(stats.actNanos()).isNotNegative();
+            runs.add(new long[] { stats.replaceCalls(), stats.passes(), stats.groundTokens(), stats.tokens() });
+        }
+    }
+
+    @Test
+    public void testGroundSequenceRunnerStats() {
+        Recorder recorder = new Recorder();
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abcGrammar());
+        runner.setObserver(recorder);
+
+        assertThat(runner.run().toString()).isEqualTo("abc");
+
+        // Each pass replaces every token in the sequence, until a pass changes nothing.
+        assertThat(recorder.runs).containsExactly(new long[] { 7, 3, 3, 5 });
+    }
+
+    @Test
+    public void testTreeRunnerStats() {
+        for (TreeRunner.TraversalType type : TreeRunner.TraversalType.values()) {
+            Recorder recorder = new Recorder();
+            TreeRunner<StringBuilder> runner = new TreeRunner<>(abcGrammar());
+            runner.setTraversalType(type);
+            runner.setObserver(recorder);
+
+            runner.run();
+
+            assertThat(recorder.runs).containsExactly(new long[] { 5, 0, 3, 5 });
+        }
+    }
+
+    @Test
+    public void testStreamingRunnerStats() {
+        Recorder recorder = new Recorder();
+        StreamingRunner<StringBuilder> runner = new StreamingRunner<>(abcGrammar());
+        runner.setObserver(recorder);
+
+        assertThat(runner.run().toString()).isEqualTo("abc");
+
+        assertThat(recorder.runs).containsExactly(new long[] { 5, 0, 3, 5 });
+    }
+
+    @Test
+    public void testBufferGrowths() {
+        TextGrammar g = new TextGrammar();
+        TextGrammar.Literal[] wide = new TextGrammar.Literal[2 * GroundSequenceRunner.DEFAULT_BUFFER_SIZE];
+        for (int i = 0; i < wide.length; ++i) {
+            wide[i] = g.new Literal("a");
+        }
+        g.addRule(TextGrammar.ROOT_KEY, wide);
+        RunMetrics metrics = new RunMetrics();
+
+        for (GrammarRunner<StringBuilder> runner : new GrammarRunner[] {
+                new GroundSequenceRunner<>(g), new TreeRunner<>(g), new StreamingRunner<>(g) }) {
+            runner.setObserver(metrics);
+            runner.run();
+            runner.run();
+        }
+
+        // Buffers are kept between runs, so only the first run of each runner grows them.
+        assertThat(metrics.runs()).isEqualTo(6);
+        assertThat(metrics.bufferGrowths()).isPositive();
+        long growths = metrics.bufferGrowths();
+        metrics.reset();
+        for (GrammarRunner<StringBuilder> runner : new GrammarRunner[] {
+                new GroundSequenceRunner<>(g), new TreeRunner<>(g), new StreamingRunner<>(g) }) {
+            runner.setObserver(metrics);
+            runner.run();
+        }
+        assertThat(metrics.bufferGrowths()).isEqualTo(growths);
+    }
+
+    @Test
+    public void testAggregatesBatches() {
+        RunMetrics metrics = new RunMetrics();
+        GroundSequenceRunner<StringBuilder> runner = new GroundSequenceRunner<>(abcGrammar());
+        runner.setObserver(metrics);
+
+        runner.runBatch(1000, 42L);
+
+        assertThat(metrics.runs()).isEqualTo(1000);
+        assertThat(metrics.replaceCalls()).isEqualTo(7000);
+        assertThat(metrics.passes()).isEqualTo(3000);
+        assertThat(metrics.groundTokens()).isEqualTo(3000);
+        assertThat(metrics.tokens()).isEqualTo(5000);
+    }
+
+    @Test
+    public void testRemovingTheObserver() {
+        RunMetrics metrics = new RunMetrics();
+        StreamingRunner<StringBuilder> runner = new StreamingRunner<>(abcGrammar());
+        runner.setObserver(metrics);
+        runner.run();
+        runner.setObserver(null);
+        runner.run();
+
+        assertThat(metrics.runs()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.kalexmills.stochrammar.runner;
+
+import com.github.kalexmills.stochrammar.CFToken;
+import com.github.kalexmills.stochrammar.GroundToken;
+import com.github.kalexmills.stochrammar.StochasticGrammar;
+import com.github.kalexmills.stochrammar.impl.TextGrammar;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StreamingRunnerTest {
+
+    /**
+     * A convenient Ground class used by multiple tests.
+     */
+    private static class Ground extends GroundToken<String> {
+        String val;
+        public Ground(String val) {
+            this.val = val;
+            this.setAction((str) -> str + val);
+        }
+    }
+
+    /**
+     * A -> aBCa
+     * B -> bDEb
+     * C -> c
+     * D -> d
+     * E -> e
+     *
+     * Thus A -> abdebca
+     */
+    class TraversalTestGrammar implements StochasticGrammar<String> {
+
+        class TokenE extends CFToken<String> {
+            public CFToken<String>[] replace(Random rand) {
+                return new CFToken[] { new Ground("e") };
+            }
+        }
+        class TokenD extends CFToken<String> {
+            public CFToken<String>[] replace(Random rand) {
+                return new CFToken[] { new Ground("d") };
+            }
+        }
+        class TokenC extends CFToken<String> {
+            public CFToken<String>[] replace(Random rand) { return new CFToken[] { new Ground("c") }; }
+        }
+        class TokenB extends CFToken<String> {
+            public CFToken<String>[] replace(Random rand) { return new CFToken[]{ new Ground("b"), new TokenD(), new TokenE(), new Ground("b")}; }
+        }
+        class TokenA extends CFToken<String> {
+            public CFToken<String>[] replace(Random rand) { return new CFToken[] { new Ground("a"), new TokenB(), new TokenC(), new Ground("a") }; }
+        }
+        public CFToken<String> generateRootToken() {
+            return new TokenA();
+        }
+
+        public String blankEntity() {
+            return "";
+        }
+    }
+
+    @Test
+    public void testInvokesActOnGroundsAccordingToPreOrderTraversal() {
+        StreamingRunner<String> underTest = new StreamingRunner<>(new TraversalTestGrammar());
+
+        assertThat(underTest.run()).isEqualTo("abdebca");
+    }
+
+    @Test
+    public void testGeneratePassesGroundTokensInOrder() {
+        StreamingRunner<String> underTest = new StreamingRunner<>(new TraversalTestGrammar());
+
+        List<String> tokens = new ArrayList<>();
+        underTest.generate(new Random(), (token) -> tokens.add(((Ground) token).val));
+
+        assertThat(tokens).containsExactly("a", "b", "d", "e", "b", "c", "a");
+    }
+
+    @Test
+    public void testStackResizing() {
+        // ROOT -> "a" ROOT | "a", which is deep enough to grow the stack many times over.
+        TextGrammar g = new TextGrammar();
+        for (int i = 0; i < 4 * StreamingRunner.DEFAULT_STACK_SIZE; ++i) {
+            g.addRule("R" + i, g.new Literal("a"), g.new ProductionRule("R" + (i + 1)), g.new Literal("b"));
+        }
+        g.addRule("R" + 4 * StreamingRunner.DEFAULT_STACK_SIZE);
+        g.addRule(TextGrammar.ROOT_KEY, g.new ProductionRule("R0"));
+
+        StreamingRunner<StringBuilder> underTest = new StreamingRunner<>(g);
+
+        String entity = underTest.run().toString();
+        assertThat(entity).matches("^a{128}b{128}$");
+    }
+
+    @Test
+    public void testGeneratesSameTextAsGroundSequenceRunner() {
+        TextGrammar g = new TextGrammar();
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("abra"));
+        g.addRule(TextGrammar.ROOT_KEY, g.new Literal("cadabra"), g.new ProductionRule(TextGrammar.ROOT_KEY),
+                                        g.new Literal("!"));
+
+        StreamingRunner<StringBuilder> underTest = new StreamingRunner<>(g);
+        for (long seed = 0; seed < 100; ++seed) {
+            // A single rule per expansion means both runners consume random numbers in the same order.
+            assertThat(underTest.run(new Random(seed)).toString())
+                    .isEqualTo(new GroundSequenceRunner<>(g).run(new Random(seed)).toString());
+        }
+    }
+}
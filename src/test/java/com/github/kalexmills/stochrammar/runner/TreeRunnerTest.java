@@ -117,6 +117,69 @@ public class TreeRunnerTest {
         assertThat(underTest.run()).isEqualTo("hello world");
     }
 
+    @Test
+    public void testWideProductionRule() {
+        class TokenA extends CFToken<String> {
+            public CFToken<String>[] replace(Random rand) {
+                CFToken[] result = new CFToken[16];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = new Ground("a");
+                }
+                return result;
+            }
+        }
+        class Grammar implements StochasticGrammar<String> {
+            public CFToken<String> generateRootToken() {
+                return new TokenA();
+            }
+
+            public String blankEntity() {
+                return "";
+            }
+        }
+
+        TreeRunner<String> underTest = new TreeRunner<>(new Grammar());
+
+        assertThat(underTest.run()).isEqualTo("aaaaaaaaaaaaaaaa");
+    }
+
+    @Test
+    public void testBufferResizing() {
+        // Each B is replaced by four more B's, until the tree is four levels deep.
+        class TokenB extends CFToken<String> {
+            int depth;
+            TokenB(int depth) {
+                this.depth = depth;
+                this.setAction((str) -> str + depth);
+            }
+            public CFToken<String>[] replace(Random rand) {
+                if (depth == 4) return EMPTY;
+                return new CFToken[] { new TokenB(depth + 1), new TokenB(depth + 1),
+                                       new TokenB(depth + 1), new TokenB(depth + 1) };
+            }
+        }
+        class Grammar implements StochasticGrammar<String> {
+            public CFToken<String> generateRootToken() {
+                return new TokenB(0);
+            }
+
+            public String blankEntity() {
+                return "";
+            }
+        }
+
+        TreeRunner<String> underTest = new TreeRunner<>(new Grammar());
+        underTest.setTraversalType(TreeRunner.TraversalType.BREADTH_FIRST);
+
+        assertThat(underTest.run()).matches("^0 1{4} 2{16} 3{64} 4{256}$".replace(" ", ""));
+
+        underTest.setTraversalType(TreeRunner.TraversalType.DEPTH_FIRST);
+
+        String entity = underTest.run();
+        assertThat(entity).hasSize(1 + 4 + 16 + 64 + 256);
+        assertThat(entity).startsWith("01234444");
+    }
+
     @Test
     public void testInvokesActOnNonGroundTokens() {
         class TokenA extends CFToken<String> {